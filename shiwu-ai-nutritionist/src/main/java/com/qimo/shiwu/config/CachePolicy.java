@@ -0,0 +1,38 @@
+package com.qimo.shiwu.config;
+
+import org.springframework.data.redis.cache.RedisCacheWriter;
+
+import java.time.Duration;
+
+/**
+ * 单个缓存名的防击穿策略 (shiwu.cache.spec.<缓存名>.*，见 CacheConfig)
+ *
+ * @param ttl             Redis (L2) 的基准 TTL
+ * @param ttlJitter       TTL 抖动比例: 实际 TTL 在 ttl * (1 ± jitter) 之间，按 key 的哈希确定
+ *                        (同一个 key 每次写入的 TTL 相同，不同 key 的过期时间被打散，不会同时过期)
+ * @param earlyRefreshBeta XFetch 提前刷新系数，0 表示关闭；越大越早刷新
+ * @param distributedLock 是否在加载前加 Redis 互斥锁 (跨节点只有一个节点回源)
+ */
+public record CachePolicy(Duration ttl, double ttlJitter, double earlyRefreshBeta, boolean distributedLock) {
+
+    /**
+     * 某个 key 的实际 TTL
+     */
+    public Duration ttlFor(Object key) {
+        long base = ttl.toMillis();
+        if (ttlJitter <= 0 || base <= 0) {
+            return ttl;
+        }
+        // 哈希映射到 [-1, 1)
+        int hash = key.toString().hashCode() * 0x9E3779B9;
+        double unit = hash / (double) Integer.MAX_VALUE;
+        return Duration.ofMillis(Math.max(1, Math.round(base * (1 + ttlJitter * unit))));
+    }
+
+    /**
+     * 供 RedisCacheConfiguration 使用的 TTL 函数 (@Cacheable 写入和 ProductCacheService 批量写回都会用到)
+     */
+    public RedisCacheWriter.TtlFunction ttlFunction() {
+        return (key, value) -> ttlFor(key);
+    }
+}
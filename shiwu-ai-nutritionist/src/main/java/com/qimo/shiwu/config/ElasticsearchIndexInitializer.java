@@ -1,24 +1,26 @@
 package com.qimo.shiwu.config;
 
-import com.qimo.shiwu.data.es.ProductDocument;
+import com.qimo.shiwu.service.ProductReindexService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
-import org.springframework.data.elasticsearch.core.IndexOperations;
 
 import jakarta.annotation.PostConstruct;
 
+import java.util.Set;
+
 /**
  * ===================================================================
  * 【新功能】: Elasticsearch 索引初始化器
  * ===================================================================
  * [开发者注意]:
  * 这个组件会在 Spring Boot 启动时自动运行。
- * * 它的职责是检查 "products_shiwu" 索引是否存在。
- * 如果不存在，它会根据 ProductDocument.class 上的注解 (如 @Field)
- * 自动创建索引并配置映射 (Mapping)。
+ * * "products_shiwu" 是一个别名，真正的数据在版本索引 "products_shiwu_v<时间戳>" 中
+ * (由 ProductReindexService 的全量重建蓝绿切换)。
+ * 如果别名不存在，它会根据 ProductDocument.class 上的注解 (如 @Field)
+ * 创建第一个版本索引并挂上别名。
+ * * 旧部署留下的同名实体索引会被原样保留，下一次全量重建时在切换别名的同一个请求里删除。
  * * 这确保了 DataLayerTestRunner 在运行搜索之前，索引是存在的。
  */
 @Configuration
@@ -27,30 +29,25 @@ public class ElasticsearchIndexInitializer {
     private static final Logger log = LoggerFactory.getLogger(ElasticsearchIndexInitializer.class);
 
     @Autowired
-    private ElasticsearchOperations elasticsearchOperations;
+    private ProductReindexService productReindexService;
 
     @PostConstruct
     public void createIndexIfNeeded() {
-        // 获取与 ProductDocument 实体绑定的索引操作客户端
-        IndexOperations indexOps = elasticsearchOperations.indexOps(ProductDocument.class);
-
-        // 检查索引是否存在
-        if (!indexOps.exists()) {
-            log.info("Elasticsearch 索引 'products_shiwu' 不存在。正在创建...");
-            try {
-                // 1. 创建索引 (基于 @Document)
-                indexOps.create();
-
-                // 2. 应用映射 (基于 @Field)
-                // 这一步至关重要，它会配置 "productName" 为 text, "tags" 为 keyword 等。
-                indexOps.putMapping();
-
-                log.info("索引 'products_shiwu' 创建并应用映射成功!");
-            } catch (Exception e) {
-                log.error("创建 ES 索引 'products_shiwu' 失败。", e);
+        try {
+            Set<String> indices = productReindexService.currentIndices();
+            if (indices.isEmpty()) {
+                log.info("Elasticsearch 别名 'products_shiwu' 不存在。正在创建...");
+                // 空索引直接使用线上配置 (副本、refresh)，映射基于 @Field
+                String index = productReindexService.createVersionedIndex(false);
+                productReindexService.swapAlias(index, Set.of());
+                log.info("索引 '{}' 创建成功，别名 'products_shiwu' 已指向它!", index);
+            } else if (indices.contains(ProductReindexService.ALIAS)) {
+                log.info("Elasticsearch 索引 'products_shiwu' 是旧版实体索引，将在下一次全量重建时切换为别名。");
+            } else {
+                log.info("Elasticsearch 别名 'products_shiwu' 已存在，指向 {}，跳过创建。", indices);
             }
-        } else {
-            log.info("Elasticsearch 索引 'products_shiwu' 已存在，跳过创建。");
+        } catch (Exception e) {
+            log.error("初始化 ES 索引 'products_shiwu' 失败。", e);
         }
     }
 }
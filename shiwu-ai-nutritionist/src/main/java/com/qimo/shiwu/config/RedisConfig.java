@@ -0,0 +1,26 @@
+package com.qimo.shiwu.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+/**
+ * ===================================================================
+ * Redis 公共配置
+ * ===================================================================
+ * [开发者注意]:
+ * 提供一个全局共享的 Redis 发布/订阅监听容器。
+ * 需要订阅频道的组件 (如 RedisLeaseLock) 在自己的 @PostConstruct 中调用 addMessageListener 注册即可，
+ * 整个应用只占用一条订阅连接。
+ */
+@Configuration
+public class RedisConfig {
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        return container;
+    }
+}
@@ -0,0 +1,734 @@
+package com.qimo.shiwu.config;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.cache.support.SimpleValueWrapper;
+import org.springframework.data.redis.cache.RedisCache;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * 两级缓存: 进程内 Caffeine (L1) + Redis (L2)
+ * 读: L1 -> L2 -> 加载，L2 命中或加载后的值回填 L1；
+ * 写: 同时写两级；
+ * 清除: 两级都清除，并通过 TieredCacheManager 广播给其他节点清除各自的 L1。
+ * L1 的 key 统一用 key.toString()，这样广播消息里的字符串 key 可以直接用来清除。
+ *
+ * 防缓存击穿 (@Cacheable(sync = true) 走 get(key, loader)，批量回填走 getAll):
+ * - 单飞 (single-flight): 同一个 key 在本节点同一时刻只有一个线程回源，其他线程等它的结果；
+ * - 可选的 Redis 互斥锁: 跨节点只有拿到锁的节点回源，其他节点短暂轮询 L2 等结果，等不到再自己回源；
+ * - 提前刷新 (XFetch): 命中时以 "越接近过期概率越大" 的方式在后台提前重新加载，
+ *   热点 key 在过期前就被刷新，不会出现一起未命中的瞬间；
+ * - TTL 抖动见 CachePolicy。
+ *
+ * 防止旧值写回: 每个 key 有一个代数 (按 key 哈希分段)，清除时加一。
+ * 回源前记下代数，写回前后各检查一次，期间被清除过就不写 (已写入的删掉)，
+ * 否则 "加载读到旧数据 -> 数据库更新并清缓存 -> 加载写回" 会把旧值以完整 TTL 写进 Redis。
+ */
+public class TieredCache implements org.springframework.cache.Cache {
+
+    /**
+     * 批量抢锁。KEYS = 锁; ARGV = [token, 过期毫秒]; 返回抢到的锁的下标 (从 1 开始)
+     */
+    private static final DefaultRedisScript<List<Object>> LOCK_ALL_SCRIPT = listScript(
+            "local got = {} " +
+            "for i, k in ipairs(KEYS) do " +
+            "  if redis.call('set', k, ARGV[1], 'NX', 'PX', ARGV[2]) then got[#got + 1] = i end " +
+            "end " +
+            "return got");
+
+    /**
+     * 批量释放自己持有的锁。KEYS = 锁; ARGV = [token]
+     */
+    private static final DefaultRedisScript<Long> UNLOCK_ALL_SCRIPT = new DefaultRedisScript<>(
+            "local n = 0 " +
+            "for i, k in ipairs(KEYS) do " +
+            "  if redis.call('get', k) == ARGV[1] then n = n + redis.call('del', k) end " +
+            "end " +
+            "return n", Long.class);
+
+    /**
+     * 返回 Lua 数组的脚本 (List.class 只能以原始类型给出，在这里集中做一次转换)
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static DefaultRedisScript<List<Object>> listScript(String script) {
+        return new DefaultRedisScript<>(script, (Class<List<Object>>) (Class) List.class);
+    }
+
+    private static final long LOCK_POLL_MILLIS = 10;
+    private static final int GENERATION_STRIPES = 1024; // 2 的幂
+
+    /**
+     * L1 中的一项: 值 + 它在 L2 中的过期时间 (未知时为 Long.MAX_VALUE，不做提前刷新)
+     */
+    private record LocalEntry(Object value, long expiresAtMillis) {
+    }
+
+    private final String name;
+    private final Cache<String, LocalEntry> local;
+    private final RedisCache remote;
+    private final TieredCacheManager manager;
+    private final CachePolicy policy;
+    private final StringRedisTemplate redisTemplate;
+    private final Executor refreshExecutor;
+    private final long lockWaitMillis;
+
+    // 本节点正在进行的加载 (单飞)
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    // 每段 key 的清除代数 (分段是为了内存有界；不同 key 落在同一段时最多多跳过一次写回)
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    // 回源耗时的滑动平均 (XFetch 的 delta)
+    private volatile double avgLoadMillis = 10;
+
+    final AtomicLong l1Hits = new AtomicLong();
+    final AtomicLong l2Hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong loads = new AtomicLong();
+    final AtomicLong coalescedLoads = new AtomicLong();
+    final AtomicLong earlyRefreshes = new AtomicLong();
+    final AtomicLong staleWritesSkipped = new AtomicLong();
+
+    TieredCache(String name, long localMaxSize, Duration localTtl, RedisCache remote, TieredCacheManager manager,
+                CachePolicy policy, StringRedisTemplate redisTemplate, Executor refreshExecutor, long lockWaitMillis) {
+        this.name = name;
+        this.local = Caffeine.newBuilder()
+                .maximumSize(localMaxSize)
+                .expireAfterWrite(localTtl)
+                .build();
+        this.remote = remote;
+        this.manager = manager;
+        this.policy = policy;
+        this.redisTemplate = redisTemplate;
+        this.refreshExecutor = refreshExecutor;
+        this.lockWaitMillis = lockWaitMillis;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Object getNativeCache() {
+        return remote.getNativeCache();
+    }
+
+    @Override
+    public ValueWrapper get(Object key) {
+        LocalEntry entry = local.getIfPresent(key.toString());
+        if (entry != null) {
+            l1Hits.incrementAndGet();
+            return new SimpleValueWrapper(entry.value());
+        }
+        ValueWrapper wrapper = remote.get(key);
+        if (wrapper != null && wrapper.get() != null) {
+            l2Hits.incrementAndGet();
+            local.put(key.toString(), new LocalEntry(wrapper.get(), remoteExpiresAt(key)));
+        } else {
+            misses.incrementAndGet();
+        }
+        return wrapper;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Class<T> type) {
+        ValueWrapper wrapper = get(key);
+        Object value = wrapper != null ? wrapper.get() : null;
+        if (value != null && type != null && !type.isInstance(value)) {
+            throw new IllegalStateException("缓存值类型不匹配: " + type.getName());
+        }
+        return (T) value;
+    }
+
+    /**
+     * [核心功能]: 带防击穿的读取 (@Cacheable(sync = true) 调用)
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Callable<T> valueLoader) {
+        String localKey = key.toString();
+        LocalEntry entry = local.getIfPresent(localKey);
+        if (entry == null) {
+            ValueWrapper wrapper = remote.get(key);
+            if (wrapper != null && wrapper.get() != null) {
+                l2Hits.incrementAndGet();
+                entry = new LocalEntry(wrapper.get(), remoteExpiresAt(key));
+                local.put(localKey, entry);
+            }
+        } else {
+            l1Hits.incrementAndGet();
+        }
+        if (entry != null) {
+            if (shouldRefreshEarly(entry)) {
+                refreshAsync(key, valueLoader);
+            }
+            return (T) entry.value();
+        }
+        misses.incrementAndGet();
+        return (T) loadOnce(key, valueLoader);
+    }
+
+    /**
+     * [核心功能]: 带防击穿的批量读取 (搜索结果回填，下单清缓存后最热的路径)
+     * 与 get(key, loader) 的保护一致，只是每一步都按批处理:
+     *   1. 查 L1；
+     *   2. 一次 pipeline 读 L2 (GET + PTTL，L1 记录真实的 L2 过期时间)；
+     *   3. 未命中的 key 逐个登记单飞，本节点已有人在加载的 key 等它的结果；
+     *   4. 自己负责的 key 按策略用一条 Lua 批量抢 Redis 互斥锁，没抢到的轮询 L2；
+     *   5. 剩下的一次交给 loader 批量回源，一次 pipeline 写回 L2 (期间被清除过的 key 不写)；
+     *   6. 命中的 key 按 XFetch 规则逐个在后台提前刷新。
+     *
+     * @param loader 批量回源，返回 key -> 值 (不存在的 key 不放进结果)
+     * @return key -> 值，不存在的 key 不在结果里
+     */
+    @SuppressWarnings("unchecked")
+    public <K, V> Map<K, V> getAll(Collection<K> keys, Function<List<K>, Map<K, V>> loader) {
+        Map<K, V> result = new HashMap<>();
+        List<K> remoteKeys = new ArrayList<>();
+        // 去重: 同一个 key 在单飞表里登记两次会等自己
+        for (K key : new LinkedHashSet<>(keys)) {
+            LocalEntry entry = local.getIfPresent(key.toString());
+            if (entry != null) {
+                l1Hits.incrementAndGet();
+                result.put(key, (V) entry.value());
+                refreshEarlyIfDue(key, entry, loader);
+            } else {
+                remoteKeys.add(key);
+            }
+        }
+
+        List<K> missing = new ArrayList<>();
+        if (!remoteKeys.isEmpty()) {
+            List<LocalEntry> fetched = fetchRemote(remoteKeys);
+            for (int i = 0; i < remoteKeys.size(); i++) {
+                K key = remoteKeys.get(i);
+                LocalEntry entry = fetched.get(i);
+                if (entry != null) {
+                    l2Hits.incrementAndGet();
+                    local.put(key.toString(), entry);
+                    result.put(key, (V) entry.value());
+                    refreshEarlyIfDue(key, entry, loader);
+                } else {
+                    missing.add(key);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        misses.addAndGet(missing.size());
+
+        // 单飞登记
+        Map<K, CompletableFuture<Object>> mine = new LinkedHashMap<>();
+        Map<K, CompletableFuture<Object>> others = new LinkedHashMap<>();
+        for (K key : missing) {
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            CompletableFuture<Object> running = inFlight.putIfAbsent(key.toString(), future);
+            if (running != null) {
+                coalescedLoads.incrementAndGet();
+                others.put(key, running);
+            } else {
+                mine.put(key, future);
+            }
+        }
+
+        try {
+            if (!mine.isEmpty()) {
+                Map<K, Object> loaded = loadBatch(new ArrayList<>(mine.keySet()), loader);
+                mine.forEach((key, future) -> {
+                    Object value = loaded.get(key);
+                    future.complete(value);
+                    if (value != null) {
+                        result.put(key, (V) value);
+                    }
+                });
+            }
+        } catch (RuntimeException e) {
+            mine.values().forEach(future -> future.completeExceptionally(e));
+            throw e;
+        } finally {
+            mine.forEach((key, future) -> inFlight.remove(key.toString(), future));
+        }
+
+        for (Map.Entry<K, CompletableFuture<Object>> waiting : others.entrySet()) {
+            try {
+                Object value = waiting.getValue().join();
+                if (value != null) {
+                    result.put(waiting.getKey(), (V) value);
+                }
+            } catch (CompletionException e) {
+                throw new ValueRetrievalException(waiting.getKey(), null, e.getCause());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        if (value == null) {
+            return; // 不缓存 null (与 disableCachingNullValues 一致)
+        }
+        remote.put(key, value);
+        local.put(key.toString(), new LocalEntry(value, System.currentTimeMillis() + ttlFor(key, value).toMillis()));
+    }
+
+    @Override
+    public void evict(Object key) {
+        bumpGeneration(key);
+        remote.evict(key);
+        evictLocal(List.of(key));
+    }
+
+    /**
+     * 批量清除两级缓存 (L2 一条多 key DEL)，并广播给其他节点
+     */
+    public void evictAll(Collection<?> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<String> remoteKeys = new ArrayList<>(keys.size());
+        for (Object key : keys) {
+            bumpGeneration(key);
+            remoteKeys.add(remoteKey(key));
+        }
+        redisTemplate.delete(remoteKeys);
+        evictLocal(keys);
+    }
+
+    @Override
+    public void clear() {
+        bumpAllGenerations();
+        remote.clear();
+        local.invalidateAll();
+        manager.broadcastClear(name);
+    }
+
+    /**
+     * 清除本节点的 L1，并广播给其他节点
+     */
+    private void evictLocal(Collection<?> keys) {
+        for (Object key : keys) {
+            local.invalidate(key.toString());
+        }
+        manager.broadcastEvict(name, keys);
+    }
+
+    /**
+     * 收到其他节点的清除广播: 清 L1，并让本节点正在进行的加载不要写回
+     */
+    void evictLocalOnly(Collection<String> keys) {
+        keys.forEach(this::bumpGeneration);
+        local.invalidateAll(keys);
+    }
+
+    void clearLocalOnly() {
+        bumpAllGenerations();
+        local.invalidateAll();
+    }
+
+    long localSize() {
+        return local.estimatedSize();
+    }
+
+    /**
+     * 单飞加载: 同一个 key 只有第一个线程真正回源，其余线程等待同一个结果
+     */
+    private Object loadOnce(Object key, Callable<?> loader) {
+        String localKey = key.toString();
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(localKey, mine);
+        if (running != null) {
+            coalescedLoads.incrementAndGet();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw new ValueRetrievalException(key, loader, e.getCause());
+            }
+        }
+        try {
+            Object value = policy.distributedLock() ? loadWithMutex(key, loader) : loadAndStore(key, loader);
+            mine.complete(value);
+            return value;
+        } catch (Exception e) {
+            mine.completeExceptionally(e);
+            throw e instanceof ValueRetrievalException vre ? vre : new ValueRetrievalException(key, loader, e);
+        } finally {
+            inFlight.remove(localKey, mine);
+        }
+    }
+
+    /**
+     * 跨节点互斥: 拿到锁的节点回源；没拿到的轮询 L2，最多等 lockWaitMillis，等不到再自己回源
+     */
+    private Object loadWithMutex(Object key, Callable<?> loader) throws Exception {
+        String lockKey = lockKey(key);
+        String token = UUID.randomUUID().toString();
+        long deadline = System.currentTimeMillis() + lockWaitMillis;
+        boolean locked = false;
+        while (!(locked = Boolean.TRUE.equals(redisTemplate.opsForValue()
+                .setIfAbsent(lockKey, token, lockWaitMillis * 2, TimeUnit.MILLISECONDS)))) {
+            ValueWrapper wrapper = remote.get(key);
+            if (wrapper != null && wrapper.get() != null) {
+                coalescedLoads.incrementAndGet();
+                local.put(key.toString(), new LocalEntry(wrapper.get(), remoteExpiresAt(key)));
+                return wrapper.get();
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                break;
+            }
+            Thread.sleep(LOCK_POLL_MILLIS);
+        }
+        try {
+            if (locked) {
+                // 拿到锁之前可能已经有别的节点加载好了
+                ValueWrapper wrapper = remote.get(key);
+                if (wrapper != null && wrapper.get() != null) {
+                    local.put(key.toString(), new LocalEntry(wrapper.get(), remoteExpiresAt(key)));
+                    return wrapper.get();
+                }
+            }
+            return loadAndStore(key, loader);
+        } finally {
+            if (locked) {
+                redisTemplate.execute(UNLOCK_ALL_SCRIPT, List.of(lockKey), token);
+            }
+        }
+    }
+
+    private Object loadAndStore(Object key, Callable<?> loader) throws Exception {
+        long generation = generationOf(key);
+        long start = System.nanoTime();
+        Object value = loader.call();
+        recordLoad(start, 1);
+        if (value != null) {
+            if (generationOf(key) != generation) {
+                staleWritesSkipped.incrementAndGet();
+                return value;
+            }
+            put(key, value);
+            undoIfEvicted(key, generation);
+        }
+        return value;
+    }
+
+    /**
+     * 批量回源 (getAll 中本线程负责的 key)
+     */
+    private <K, V> Map<K, Object> loadBatch(List<K> keys, Function<List<K>, Map<K, V>> loader) {
+        Map<K, Object> found = new HashMap<>();
+        List<K> toLoad = keys;
+        List<String> lockKeys = List.of();
+        String token = UUID.randomUUID().toString();
+        try {
+            if (policy.distributedLock()) {
+                List<K> locked = new ArrayList<>();
+                List<K> waiting = new ArrayList<>();
+                lockKeys = tryLockAll(keys, token, locked, waiting);
+                // 没抢到锁的: 别的节点在加载，轮询 L2 等它的结果
+                long deadline = System.currentTimeMillis() + lockWaitMillis;
+                while (!waiting.isEmpty()) {
+                    collectRemoteHits(waiting, found, true);
+                    if (waiting.isEmpty() || System.currentTimeMillis() >= deadline || !sleepQuietly(LOCK_POLL_MILLIS)) {
+                        break;
+                    }
+                }
+                // 抢到锁的: 抢锁之前可能已经有别的节点加载好了
+                collectRemoteHits(locked, found, false);
+                toLoad = new ArrayList<>(locked);
+                toLoad.addAll(waiting); // 等超时的自己回源
+            }
+            if (toLoad.isEmpty()) {
+                return found;
+            }
+
+            long[] generationsBefore = new long[toLoad.size()];
+            for (int i = 0; i < generationsBefore.length; i++) {
+                generationsBefore[i] = generationOf(toLoad.get(i));
+            }
+            long start = System.nanoTime();
+            Map<K, V> loaded = loader.apply(toLoad);
+            recordLoad(start, toLoad.size());
+
+            Map<K, Long> storable = new LinkedHashMap<>();
+            for (int i = 0; i < toLoad.size(); i++) {
+                K key = toLoad.get(i);
+                V value = loaded.get(key);
+                if (value == null) {
+                    continue;
+                }
+                found.put(key, value);
+                if (generationOf(key) == generationsBefore[i]) {
+                    storable.put(key, generationsBefore[i]);
+                } else {
+                    staleWritesSkipped.incrementAndGet();
+                }
+            }
+            try {
+                storeAll(storable, loaded);
+            } catch (Exception e) {
+                // 写缓存失败不影响查询结果
+                System.err.println("批量写回缓存失败 (" + name + "): " + e.getMessage());
+            }
+            return found;
+        } finally {
+            if (!lockKeys.isEmpty()) {
+                redisTemplate.execute(UNLOCK_ALL_SCRIPT, lockKeys, token);
+            }
+        }
+    }
+
+    /**
+     * 一条 Lua 批量抢锁，把 keys 分成抢到的 (locked) 和没抢到的 (waiting)
+     * @return 抢到的锁 (释放时用)
+     */
+    private <K> List<String> tryLockAll(List<K> keys, String token, List<K> locked, List<K> waiting) {
+        List<String> allLockKeys = keys.stream().map(this::lockKey).toList();
+        List<?> got = redisTemplate.execute(LOCK_ALL_SCRIPT, allLockKeys, token, String.valueOf(lockWaitMillis * 2));
+        Set<Integer> acquired = new HashSet<>();
+        if (got != null) {
+            for (Object index : got) {
+                acquired.add(((Number) index).intValue() - 1);
+            }
+        }
+        List<String> lockKeys = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (acquired.contains(i)) {
+                locked.add(keys.get(i));
+                lockKeys.add(allLockKeys.get(i));
+            } else {
+                waiting.add(keys.get(i));
+            }
+        }
+        return lockKeys;
+    }
+
+    /**
+     * 读 L2，命中的放进 found 和 L1，并从 keys 里移除
+     */
+    private <K> void collectRemoteHits(List<K> keys, Map<K, Object> found, boolean coalesced) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<LocalEntry> fetched = fetchRemote(keys);
+        List<K> remaining = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            LocalEntry entry = fetched.get(i);
+            if (entry != null) {
+                local.put(keys.get(i).toString(), entry);
+                found.put(keys.get(i), entry.value());
+                if (coalesced) {
+                    coalescedLoads.incrementAndGet();
+                }
+            } else {
+                remaining.add(keys.get(i));
+            }
+        }
+        keys.clear();
+        keys.addAll(remaining);
+    }
+
+    /**
+     * 一次 pipeline 读 L2: 每个 key 一条 GET (开启提前刷新时再加一条 PTTL)
+     * @return 与 keys 对应的 L1 项，未命中为 null
+     */
+    private List<LocalEntry> fetchRemote(List<?> keys) {
+        boolean withTtl = policy.earlyRefreshBeta() > 0;
+        List<Object> replies = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Object key : keys) {
+                byte[] rawKey = remoteKey(key).getBytes(StandardCharsets.UTF_8);
+                connection.stringCommands().get(rawKey);
+                if (withTtl) {
+                    connection.keyCommands().pTtl(rawKey);
+                }
+            }
+            return null;
+        }, RedisSerializer.byteArray());
+
+        RedisSerializationContext.SerializationPair<Object> valuePair =
+                remote.getCacheConfiguration().getValueSerializationPair();
+        long now = System.currentTimeMillis();
+        int step = withTtl ? 2 : 1;
+        List<LocalEntry> entries = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Object raw = replies.get(i * step);
+            Object value = raw instanceof byte[] bytes ? valuePair.read(ByteBuffer.wrap(bytes)) : null;
+            if (value == null) {
+                entries.add(null);
+                continue;
+            }
+            long expiresAt = Long.MAX_VALUE;
+            if (withTtl && replies.get(i * step + 1) instanceof Long ttl && ttl >= 0) {
+                expiresAt = now + ttl;
+            }
+            entries.add(new LocalEntry(value, expiresAt));
+        }
+        return entries;
+    }
+
+    /**
+     * 一次 pipeline 写回 L2 (带抖动 TTL)，并写 L1 (记录写入的 TTL 作为过期时间)
+     * storable: key -> 回源前的代数，写完后代数变了的 (期间被清除) 再删掉
+     */
+    private <K, V> void storeAll(Map<K, Long> storable, Map<K, V> values) {
+        if (storable.isEmpty()) {
+            return;
+        }
+        RedisSerializationContext.SerializationPair<Object> valuePair =
+                remote.getCacheConfiguration().getValueSerializationPair();
+        long now = System.currentTimeMillis();
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (K key : storable.keySet()) {
+                Object value = values.get(key);
+                ByteBuffer buffer = valuePair.write(value);
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                Duration ttl = ttlFor(key, value);
+                Expiration expiration = ttl.isZero() || ttl.isNegative()
+                        ? Expiration.persistent() : Expiration.from(ttl);
+                connection.stringCommands().set(remoteKey(key).getBytes(StandardCharsets.UTF_8),
+                        bytes, expiration, RedisStringCommands.SetOption.upsert());
+            }
+            return null;
+        });
+        for (Map.Entry<K, Long> entry : storable.entrySet()) {
+            Object value = values.get(entry.getKey());
+            local.put(entry.getKey().toString(),
+                    new LocalEntry(value, now + ttlFor(entry.getKey(), value).toMillis()));
+            undoIfEvicted(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 写回之后再检查一次代数: 写回和清除交错时 (检查通过后、写入前被清除)，把刚写入的旧值删掉
+     */
+    private void undoIfEvicted(Object key, long generation) {
+        if (generationOf(key) != generation) {
+            staleWritesSkipped.incrementAndGet();
+            remote.evict(key);
+            local.invalidate(key.toString());
+        }
+    }
+
+    private void recordLoad(long startNanos, int count) {
+        long elapsed = (System.nanoTime() - startNanos) / 1_000_000;
+        avgLoadMillis = avgLoadMillis * 0.8 + elapsed * 0.2;
+        loads.addAndGet(count);
+    }
+
+    private Duration ttlFor(Object key, Object value) {
+        return remote.getCacheConfiguration().getTtlFunction().getTimeToLive(key, value);
+    }
+
+    private String remoteKey(Object key) {
+        return remote.getCacheConfiguration().getKeyPrefixFor(name) + key;
+    }
+
+    private String lockKey(Object key) {
+        return remote.getCacheConfiguration().getKeyPrefixFor(name) + "lock:" + key;
+    }
+
+    private int stripe(Object key) {
+        int h = key.toString().hashCode();
+        return (h ^ (h >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+
+    private long generationOf(Object key) {
+        return generations.get(stripe(key));
+    }
+
+    private void bumpGeneration(Object key) {
+        generations.incrementAndGet(stripe(key));
+    }
+
+    private void bumpAllGenerations() {
+        for (int i = 0; i < GENERATION_STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+    }
+
+    /**
+     * XFetch: now - delta * beta * ln(rand) >= expiry 时提前刷新
+     * (ln(rand) < 0，离过期越近、回源越慢，触发概率越大)
+     */
+    private boolean shouldRefreshEarly(LocalEntry entry) {
+        if (policy.earlyRefreshBeta() <= 0 || entry.expiresAtMillis() == Long.MAX_VALUE) {
+            return false;
+        }
+        double gap = -avgLoadMillis * policy.earlyRefreshBeta() * Math.log(ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= entry.expiresAtMillis();
+    }
+
+    private <K, V> void refreshEarlyIfDue(K key, LocalEntry entry, Function<List<K>, Map<K, V>> loader) {
+        if (shouldRefreshEarly(entry)) {
+            refreshAsync(key, () -> loader.apply(List.of(key)).get(key));
+        }
+    }
+
+    private void refreshAsync(Object key, Callable<?> loader) {
+        if (inFlight.containsKey(key.toString())) {
+            return; // 已经有人在加载
+        }
+        earlyRefreshes.incrementAndGet();
+        refreshExecutor.execute(() -> {
+            try {
+                loadOnce(key, loader);
+            } catch (Exception e) {
+                System.err.println("缓存提前刷新失败 (" + name + "::" + key + "): " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * 从 Redis 取这个 key 的剩余 TTL (只有开启提前刷新时才查，多一次往返)
+     */
+    private long remoteExpiresAt(Object key) {
+        if (policy.earlyRefreshBeta() <= 0) {
+            return Long.MAX_VALUE;
+        }
+        Long ttl = redisTemplate.getExpire(remoteKey(key), TimeUnit.MILLISECONDS);
+        return ttl == null || ttl < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + ttl;
+    }
+
+    /**
+     * @return false 表示被中断 (调用方不再等待)
+     */
+    private static boolean sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.qimo.shiwu.config;
+
+import com.qimo.shiwu.dto.CacheStats;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.data.redis.cache.RedisCache;
+import org.springframework.data.redis.cache.RedisCacheManager;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 两级缓存管理器 (L1 本地 Caffeine + L2 RedisCacheManager)
+ * [开发者注意]:
+ * 对 @Cacheable / @CacheEvict 透明，缓存名 (skuDetails / userDetails) 不变。
+ * 热点数据直接从本地内存返回 (不走网络、不反序列化)；L1 按条数和写入后 TTL 淘汰。
+ *
+ * 跨节点失效: 任何节点清除缓存时，通过 Redis 频道 `cache:invalidate` 广播
+ * "节点ID|缓存名|key1,key2,..." ("*" 表示整个缓存)，其他节点收到后清除自己的 L1。
+ * 广播是尽力而为的 (pub/sub 不保证送达)，L1 的 TTL 给旧数据兜了一个上限。
+ *
+ * 每个缓存名的 TTL 抖动 / 提前刷新 / 跨节点互斥由 CachePolicy 配置 (见 CacheConfig)。
+ *
+ * 注意: L1 命中时返回的是同一个对象实例 (缓存快照本身是不可变的)。
+ *
+ * 命中统计通过 Micrometer 导出 (/actuator/metrics，标签 cache = 缓存名):
+ *   cache.tiered.gets{result=l1_hit|l2_hit|miss}、cache.tiered.hit.ratio{level=l1|l2}、cache.tiered.l1.size、
+ *   cache.tiered.loads / loads.coalesced / refreshes.early / writes.stale.skipped。
+ * 后创建的缓存在创建时注册。
+ */
+public class TieredCacheManager implements CacheManager, MessageListener, MeterBinder {
+
+    public static final String INVALIDATION_CHANNEL = "cache:invalidate";
+
+    private final RedisCacheManager redisCacheManager;
+    private final StringRedisTemplate redisTemplate;
+    private final long localMaxSize;
+    private final Duration localTtl;
+    private final Function<String, CachePolicy> policies;
+    private final long lockWaitMillis;
+    private final ExecutorService refreshExecutor;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Map<String, TieredCache> caches = new ConcurrentHashMap<>();
+    private volatile MeterRegistry meterRegistry;
+
+    public TieredCacheManager(RedisCacheManager redisCacheManager, StringRedisTemplate redisTemplate,
+                              long localMaxSize, Duration localTtl,
+                              Function<String, CachePolicy> policies, long lockWaitMillis, int refreshThreads) {
+        this.redisCacheManager = redisCacheManager;
+        this.redisTemplate = redisTemplate;
+        this.localMaxSize = localMaxSize;
+        this.localTtl = localTtl;
+        this.policies = policies;
+        this.lockWaitMillis = lockWaitMillis;
+        AtomicInteger seq = new AtomicInteger();
+        this.refreshExecutor = Executors.newFixedThreadPool(refreshThreads, r -> {
+            Thread t = new Thread(r, "cache-refresh-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public Cache getCache(String name) {
+        TieredCache cache = caches.get(name);
+        if (cache != null) {
+            return cache;
+        }
+        boolean[] created = new boolean[1];
+        cache = caches.computeIfAbsent(name, n -> {
+            created[0] = true;
+            return new TieredCache(n, localMaxSize, localTtl,
+                    (RedisCache) redisCacheManager.getCache(n), this,
+                    policies.apply(n), redisTemplate, refreshExecutor, lockWaitMillis);
+        });
+        MeterRegistry registry = meterRegistry;
+        if (created[0] && registry != null) {
+            registerMeters(registry, cache);
+        }
+        return cache;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        meterRegistry = registry;
+        for (TieredCache cache : caches.values()) {
+            registerMeters(registry, cache);
+        }
+    }
+
+    private static void registerMeters(MeterRegistry registry, TieredCache cache) {
+        Tags tags = Tags.of("cache", cache.getName());
+        FunctionCounter.builder("cache.tiered.gets", cache, c -> c.l1Hits.get())
+                .tags(tags).tag("result", "l1_hit").description("本地 (Caffeine) 命中").register(registry);
+        FunctionCounter.builder("cache.tiered.gets", cache, c -> c.l2Hits.get())
+                .tags(tags).tag("result", "l2_hit").description("Redis 命中").register(registry);
+        FunctionCounter.builder("cache.tiered.gets", cache, c -> c.misses.get())
+                .tags(tags).tag("result", "miss").description("两级都未命中").register(registry);
+        Gauge.builder("cache.tiered.hit.ratio", cache, c -> hitRatio(c.l1Hits.get(), c))
+                .tags(tags).tag("level", "l1").register(registry);
+        Gauge.builder("cache.tiered.hit.ratio", cache, c -> hitRatio(c.l2Hits.get(), c))
+                .tags(tags).tag("level", "l2").register(registry);
+        Gauge.builder("cache.tiered.l1.size", cache, TieredCache::localSize).tags(tags).register(registry);
+        FunctionCounter.builder("cache.tiered.loads", cache, c -> c.loads.get()).tags(tags).register(registry);
+        FunctionCounter.builder("cache.tiered.loads.coalesced", cache, c -> c.coalescedLoads.get()).tags(tags).register(registry);
+        FunctionCounter.builder("cache.tiered.refreshes.early", cache, c -> c.earlyRefreshes.get()).tags(tags).register(registry);
+        FunctionCounter.builder("cache.tiered.writes.stale.skipped", cache, c -> c.staleWritesSkipped.get()).tags(tags).register(registry);
+    }
+
+    private static double hitRatio(long hits, TieredCache cache) {
+        long total = cache.l1Hits.get() + cache.l2Hits.get() + cache.misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public void shutdown() {
+        refreshExecutor.shutdownNow();
+    }
+
+    @Override
+    public Collection<String> getCacheNames() {
+        return caches.keySet();
+    }
+
+    /**
+     * 各缓存的分级命中统计
+     */
+    public List<CacheStats> getStats() {
+        List<CacheStats> stats = new ArrayList<>();
+        for (TieredCache cache : caches.values()) {
+            long l1 = cache.l1Hits.get();
+            long l2 = cache.l2Hits.get();
+            long miss = cache.misses.get();
+            long total = l1 + l2 + miss;
+            stats.add(new CacheStats(cache.getName(), l1, l2, miss,
+                    total == 0 ? 0 : (double) l1 / total,
+                    total == 0 ? 0 : (double) l2 / total,
+                    cache.localSize(),
+                    cache.loads.get(), cache.coalescedLoads.get(), cache.earlyRefreshes.get(),
+                    cache.staleWritesSkipped.get()));
+        }
+        return stats;
+    }
+
+    void broadcastEvict(String cacheName, Collection<?> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        String joined = keys.stream().map(Object::toString).collect(Collectors.joining(","));
+        publish(cacheName, joined);
+    }
+
+    void broadcastClear(String cacheName) {
+        publish(cacheName, "*");
+    }
+
+    private void publish(String cacheName, String keys) {
+        try {
+            redisTemplate.convertAndSend(INVALIDATION_CHANNEL, nodeId + "|" + cacheName + "|" + keys);
+        } catch (Exception e) {
+            // 广播失败时其他节点的 L1 最多旧一个 TTL
+            System.err.println("缓存失效广播失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 收到其他节点的失效广播: 清除本节点的 L1
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split("\\|", 3);
+        if (parts.length < 3 || parts[0].equals(nodeId)) {
+            return; // 自己发的，本地已经清过了
+        }
+        TieredCache cache = caches.get(parts[1]);
+        if (cache == null) {
+            return;
+        }
+        if (parts[2].equals("*")) {
+            cache.clearLocalOnly();
+        } else {
+            cache.evictLocalOnly(Arrays.asList(parts[2].split(",")));
+        }
+    }
+}
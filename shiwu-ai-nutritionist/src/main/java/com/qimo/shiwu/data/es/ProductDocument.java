@@ -23,7 +23,8 @@ import java.util.List;
  * 专门用于搜索。
  */
 @Data
-@Document(indexName = "products_shiwu")
+// indexName 是别名 (见 ProductReindexService)，索引由 ElasticsearchIndexInitializer 创建，不让仓库自动建同名实体索引
+@Document(indexName = "products_shiwu", createIndex = false)
 public class ProductDocument {
 
     @Id
@@ -10,7 +10,7 @@ import java.math.BigDecimal;
 import java.util.List;
 
 @Repository
-public interface ProductSearchRepository extends ElasticsearchRepository<ProductDocument, String> {
+public interface ProductSearchRepository extends ElasticsearchRepository<ProductDocument, String>, ProductSearchRepositoryCustom {
 
     /**
      * [核心功能]: 复杂的多条件布尔查询 (Bool Query)
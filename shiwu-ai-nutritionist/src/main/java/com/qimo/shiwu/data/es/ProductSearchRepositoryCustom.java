@@ -0,0 +1,62 @@
+package com.qimo.shiwu.data.es;
+
+import com.qimo.shiwu.dto.IngredientQuery;
+import org.springframework.data.elasticsearch.core.SearchHits;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ProductSearchRepository 的自定义片段 (Spring Data 会自动把 ProductSearchRepositoryImpl 织入 ProductSearchRepository)。
+ * 放 @Query 字符串模板表达不了的查询 (source 过滤、search_after 等)。
+ */
+public interface ProductSearchRepositoryCustom {
+
+    /**
+     * [核心功能]: 只召回 skuId 的游标分页查询
+     * 查询条件与 searchProducts 相同，但:
+     * - 只取回 _source 中的 skuId，不传输整篇文档；
+     * - 按 (_score 降序, skuId 升序) 排序，skuId 作为稳定的决胜字段；
+     * - 用 search_after 翻页，深翻页的开销与第一页相同 (from/size 要在每个分片上排序 from+size 条)。
+     *
+     * @param searchAfter 上一页最后一条的排序值 (首页传 null)
+     * @param size 每页条数
+     * @return 命中 (每条的 sortValues 可作为下一页的 searchAfter)
+     */
+    SearchHits<ProductDocument> recallSkuIds(String query, List<String> tags,
+                                             BigDecimal minPrice, BigDecimal maxPrice,
+                                             List<Object> searchAfter, int size);
+
+    /**
+     * [核心功能]: 多个召回查询合并成一次 _msearch 请求 (一个食谱的全部食材)
+     * 每个查询的条件、排序和 source 过滤与 recallSkuIds 首页相同。
+     *
+     * @param queries 各食材的条件 (tags / minPrice / maxPrice 不能为 null)
+     * @param size 每个查询召回的条数
+     * @return 与 queries 顺序一致的命中
+     */
+    List<SearchHits<ProductDocument>> multiRecallSkuIds(List<IngredientQuery> queries, int size);
+
+    /**
+     * [核心功能]: 只更新价格和库存两个字段 (一次 _bulk 局部更新)
+     * 使用 partial doc 更新，ES 默认开启 detect_noop: 值没有变化的文档不会重新索引，也不会产生新版本。
+     *
+     * @param partials 只需要填 id / skuPrice / inventoryQuantity
+     * @return 更新失败的 skuId (通常是 ES 中还没有这篇文档)，调用方应对它们做完整同步
+     */
+    Set<Long> updateStockAndPrice(List<ProductDocument> partials);
+
+    /**
+     * 按 skuId 顺序扫描 [fromId, toId) 内的文档 (一致性校验用)
+     * 只取回参与校验的字段，用 search_after 翻页。
+     *
+     * @param afterSkuId 上一页最后一个 skuId (首页传 null)
+     */
+    List<ProductDocument> scanRange(long fromId, long toId, Long afterSkuId, int size);
+
+    /**
+     * 索引中最小 (max = false) 或最大 (max = true) 的 skuId，索引为空时返回 null
+     */
+    Long boundarySkuId(boolean max);
+}
@@ -0,0 +1,136 @@
+package com.qimo.shiwu.data.es;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.SortOrder;
+import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
+import co.elastic.clients.json.JsonData;
+import com.qimo.shiwu.dto.IngredientQuery;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.elasticsearch.BulkFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.elasticsearch.client.elc.NativeQuery;
+import org.springframework.data.elasticsearch.client.elc.NativeQueryBuilder;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.SearchHits;
+import org.springframework.data.elasticsearch.core.document.Document;
+import org.springframework.data.elasticsearch.core.query.FetchSourceFilter;
+import org.springframework.data.elasticsearch.core.query.UpdateQuery;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * ProductSearchRepositoryCustom 的实现 (使用 NativeQuery 直接构造 ES 查询)。
+ */
+public class ProductSearchRepositoryImpl implements ProductSearchRepositoryCustom {
+
+    private static final String[] SKU_ID_ONLY = {"skuId"};
+    private static final String[] DIGEST_FIELDS =
+            {"skuId", "skuPrice", "inventoryQuantity", "skuSize", "productName", "productDesc"};
+
+    @Autowired
+    private ElasticsearchOperations elasticsearchOperations;
+
+    @Override
+    public SearchHits<ProductDocument> recallSkuIds(String query, List<String> tags,
+                                                    BigDecimal minPrice, BigDecimal maxPrice,
+                                                    List<Object> searchAfter, int size) {
+        NativeQueryBuilder builder = recallQuery(query, tags, minPrice, maxPrice, size);
+        if (searchAfter != null && !searchAfter.isEmpty()) {
+            builder.withSearchAfter(searchAfter);
+        }
+        return elasticsearchOperations.search(builder.build(), ProductDocument.class);
+    }
+
+    @Override
+    public List<SearchHits<ProductDocument>> multiRecallSkuIds(List<IngredientQuery> queries, int size) {
+        List<NativeQuery> searches = new ArrayList<>(queries.size());
+        for (IngredientQuery q : queries) {
+            searches.add(recallQuery(q.getQuery(), q.getTags(), q.getMinPrice(), q.getMaxPrice(), size).build());
+        }
+        return elasticsearchOperations.multiSearch(searches, ProductDocument.class);
+    }
+
+    @Override
+    public Set<Long> updateStockAndPrice(List<ProductDocument> partials) {
+        if (partials.isEmpty()) {
+            return Set.of();
+        }
+        List<UpdateQuery> updates = new ArrayList<>(partials.size());
+        for (ProductDocument partial : partials) {
+            Document fields = Document.create();
+            fields.put("skuPrice", partial.getSkuPrice() == null ? null : partial.getSkuPrice().doubleValue());
+            fields.put("inventoryQuantity", partial.getInventoryQuantity());
+            updates.add(UpdateQuery.builder(partial.getId())
+                    .withDocument(fields)
+                    .withRetryOnConflict(3) // 与并发的整篇重建冲突时在 ES 端重试
+                    .build());
+        }
+        try {
+            elasticsearchOperations.bulkUpdate(updates, ProductDocument.class);
+            return Set.of();
+        } catch (BulkFailureException e) {
+            return e.getFailedDocuments().keySet().stream()
+                    .map(Long::valueOf)
+                    .collect(Collectors.toSet());
+        }
+    }
+
+    @Override
+    public List<ProductDocument> scanRange(long fromId, long toId, Long afterSkuId, int size) {
+        NativeQueryBuilder builder = NativeQuery.builder()
+                .withQuery(q -> q.range(r -> r.field("skuId")
+                        .gte(JsonData.of(fromId))
+                        .lt(JsonData.of(toId))))
+                .withSort(s -> s.field(f -> f.field("skuId").order(SortOrder.Asc)))
+                .withSourceFilter(new FetchSourceFilter(DIGEST_FIELDS, null))
+                .withPageable(PageRequest.of(0, size));
+        if (afterSkuId != null) {
+            builder.withSearchAfter(List.of(afterSkuId));
+        }
+        return elasticsearchOperations.search(builder.build(), ProductDocument.class)
+                .stream()
+                .map(SearchHit::getContent)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Long boundarySkuId(boolean max) {
+        NativeQuery query = NativeQuery.builder()
+                .withQuery(q -> q.matchAll(m -> m))
+                .withSort(s -> s.field(f -> f.field("skuId").order(max ? SortOrder.Desc : SortOrder.Asc)))
+                .withSourceFilter(new FetchSourceFilter(SKU_ID_ONLY, null))
+                .withPageable(PageRequest.of(0, 1))
+                .build();
+        SearchHits<ProductDocument> hits = elasticsearchOperations.search(query, ProductDocument.class);
+        return hits.hasSearchHits() ? hits.getSearchHit(0).getContent().getSkuId() : null;
+    }
+
+    /**
+     * 构造只取 skuId 的召回查询: 全文匹配 + 标签全部命中 + 价格区间，按 (_score 降序, skuId 升序) 排序
+     */
+    private NativeQueryBuilder recallQuery(String query, List<String> tags,
+                                           BigDecimal minPrice, BigDecimal maxPrice, int size) {
+        BoolQuery.Builder bool = new BoolQuery.Builder()
+                .must(m -> m.multiMatch(mm -> mm.query(query).fields("productName", "productDesc")));
+        // 每个标签都必须命中 (与 searchProducts 的 minimum_should_match = 标签数 等价)
+        for (String tag : tags) {
+            bool.filter(f -> f.term(t -> t.field("tags").value(FieldValue.of(tag))));
+        }
+        bool.filter(f -> f.range(r -> r.field("skuPrice")
+                .gte(JsonData.of(minPrice))
+                .lte(JsonData.of(maxPrice))));
+
+        return NativeQuery.builder()
+                .withQuery(q -> q.bool(bool.build()))
+                .withSort(s -> s.score(sc -> sc.order(SortOrder.Desc)))
+                .withSort(s -> s.field(f -> f.field("skuId").order(SortOrder.Asc)))
+                .withSourceFilter(new FetchSourceFilter(SKU_ID_ONLY, null))
+                .withPageable(PageRequest.of(0, size)) // search_after 要求 from = 0
+                .withTrackTotalHits(true);
+    }
+}
@@ -8,7 +8,7 @@ import java.util.List;
 
 @Data
 @Entity
-@Table(name = "inventory")
+@Table(name = "inventory", indexes = @Index(name = "idx_inventory_modify_time", columnList = "inventory_modify_time"))
 public class Inventory {
     @Id
     @Column(name = "inventory_id")
@@ -19,4 +19,28 @@ public class Inventory {
 
     @Column(name = "inventory_update_time", nullable = false)
     private LocalDateTime inventoryUpdateTime;
+
+    /**
+     * 最后修改时间，由数据库维护 (ON UPDATE)，同 SKU.skuUpdateTime。
+     * inventory_update_time 由应用按 JVM 时钟写入，直接改库不会刷新它，所以增量同步按这一列而不是它。
+     */
+    @Column(name = "inventory_modify_time", insertable = false, updatable = false,
+            columnDefinition = "datetime(3) not null default current_timestamp(3) on update current_timestamp(3)")
+    private LocalDateTime inventoryModifyTime;
+
+    /**
+     * @Version: 乐观锁版本号。
+     * 通过实体 save() 更新时由 JPA 自动检查并递增；
+     * InventoryRepository 中的 UPDATE 语句也会手动递增，保证两条路径互相可见。
+     */
+    @Version
+    @Column(name = "inventory_version", nullable = false, columnDefinition = "bigint default 0")
+    private Long version;
+
+    /**
+     * 栅栏令牌: 最近一次由 RedisLeaseLock 持锁写入时使用的令牌。
+     * 带令牌的扣减只接受比它更大的令牌，锁过期后的旧持有者写不进来。
+     */
+    @Column(name = "inventory_fence_token", nullable = false, columnDefinition = "bigint default 0")
+    private Long fenceToken = 0L;
 }
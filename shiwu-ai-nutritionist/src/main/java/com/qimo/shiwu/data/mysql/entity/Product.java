@@ -8,7 +8,7 @@ import java.util.List;
 
 @Data
 @Entity
-@Table(name = "Product")
+@Table(name = "Product", indexes = @Index(name = "idx_product_update_time", columnList = "product_update_time"))
 public class Product {
 
     @Id
@@ -27,6 +27,13 @@ public class Product {
     @Column(name = "product_create_time", nullable = false)
     private LocalDateTime productCreateTime;
 
+    /**
+     * 最后修改时间，由数据库维护 (ON UPDATE)，同 SKU.skuUpdateTime
+     */
+    @Column(name = "product_update_time", insertable = false, updatable = false,
+            columnDefinition = "datetime(3) not null default current_timestamp(3) on update current_timestamp(3)")
+    private LocalDateTime productUpdateTime;
+
     /**
      * @OneToMany: 一个 Product (产品，如 "牛肉") 对应多个 SKU (规格，如 "500g", "1kg")。
      * `mappedBy = "product"`: 由 `SKU` 类的 `product` 字段维护。
@@ -3,10 +3,11 @@ package com.qimo.shiwu.data.mysql.entity;
 import jakarta.persistence.*;
 import lombok.Data;
 import java.math.BigDecimal;
+import java.time.LocalDateTime;
 
 @Data
 @Entity
-@Table(name = "SKU")
+@Table(name = "SKU", indexes = @Index(name = "idx_sku_update_time", columnList = "sku_update_time"))
 public class SKU {
 
     @Id
@@ -28,6 +29,14 @@ public class SKU {
     @Column(name = "sku_heat", nullable = false, precision = 10, scale = 2)
     private BigDecimal skuHeat;
 
+    /**
+     * 最后修改时间，由数据库维护 (ON UPDATE)，任何途径 (包括后台直接改库) 的修改都会刷新它。
+     * DeltaSyncService 按它增量同步 ES；应用不写这一列。
+     */
+    @Column(name = "sku_update_time", insertable = false, updatable = false,
+            columnDefinition = "datetime(3) not null default current_timestamp(3) on update current_timestamp(3)")
+    private LocalDateTime skuUpdateTime;
+
     /**
      * @ManyToOne: 多个 SKU 对应一个 Product。
      * @JoinColumn: `SKU` 表是关系的“拥有方”，它有 `product_id` 外键。
@@ -0,0 +1,39 @@
+package com.qimo.shiwu.data.mysql.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Redis 库存回写记录 (RedisStockService.flushPendingDeductions)
+ * 每次回写一个 SKU 的 pending 时生成一个 flushId，与库存扣减在同一个事务里插入。
+ * 回写后来不及扣回 Redis pending 就崩溃时，凭这条记录判断 "MySQL 已经扣过了"，只补扣 pending，不会重复扣库存。
+ */
+@Data
+@NoArgsConstructor
+@Entity
+@Table(name = "stock_flush_log", indexes = @Index(name = "idx_stock_flush_time", columnList = "flush_time"))
+public class StockFlushLog {
+
+    @Id
+    @Column(name = "flush_id", length = 36)
+    private String flushId;
+
+    @Column(name = "sku_id", nullable = false)
+    private Long skuId;
+
+    @Column(name = "delta", nullable = false)
+    private Integer delta;
+
+    @Column(name = "flush_time", nullable = false, columnDefinition = "datetime(3)")
+    private LocalDateTime flushTime;
+
+    public StockFlushLog(String flushId, Long skuId, Integer delta, LocalDateTime flushTime) {
+        this.flushId = flushId;
+        this.skuId = skuId;
+        this.delta = delta;
+        this.flushTime = flushTime;
+    }
+}
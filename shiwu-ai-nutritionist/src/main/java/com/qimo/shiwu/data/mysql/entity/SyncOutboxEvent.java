@@ -0,0 +1,42 @@
+package com.qimo.shiwu.data.mysql.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * 事务发件箱 (Transactional Outbox)
+ * 下单等业务事务在同一个事务里写入一条事件，提交后由 SyncOutboxService 的中继任务
+ * 异步完成 "清理 SKU 缓存 + 同步 ES"。事务回滚时事件也一起回滚，不会误触 ES。
+ */
+@Data
+@Entity
+@Table(name = "sync_outbox", indexes = @Index(name = "idx_outbox_next_attempt", columnList = "next_attempt_time"))
+public class SyncOutboxEvent {
+
+    /** SKU 的商品信息或库存发生变化，需要清理缓存并同步 ES */
+    public static final String SKU_CHANGED = "SKU_CHANGED";
+
+    /** 只有 SKU 的库存或价格发生变化，只需清理缓存并局部更新 ES 的这两个字段 */
+    public static final String STOCK_CHANGED = "STOCK_CHANGED";
+
+    @Id
+    @Column(name = "event_id")
+    private Long eventId; // 雪花算法
+
+    @Column(name = "sku_id", nullable = false)
+    private Long skuId;
+
+    @Column(name = "event_type", nullable = false, length = 32)
+    private String eventType;
+
+    @Column(name = "create_time", nullable = false)
+    private LocalDateTime createTime;
+
+    @Column(name = "attempts", nullable = false)
+    private Integer attempts;
+
+    @Column(name = "next_attempt_time", nullable = false)
+    private LocalDateTime nextAttemptTime;
+}
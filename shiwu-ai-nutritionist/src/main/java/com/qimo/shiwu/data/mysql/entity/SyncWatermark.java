@@ -0,0 +1,24 @@
+package com.qimo.shiwu.data.mysql.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * 增量同步的高水位 (High-Water Mark)
+ * 每个同步任务一行，记录 "这个时间点之前的修改都已经同步过了"。
+ * 存在 MySQL 里，重启或换节点后从上次的位置继续。
+ */
+@Data
+@Entity
+@Table(name = "sync_watermark")
+public class SyncWatermark {
+
+    @Id
+    @Column(name = "sync_name", length = 64)
+    private String syncName;
+
+    @Column(name = "watermark", nullable = false, columnDefinition = "datetime(3)")
+    private LocalDateTime watermark;
+}
@@ -5,5 +5,13 @@ import com.qimo.shiwu.data.mysql.entity.HealthGoal;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Optional;
+
 @Repository
-public interface HealthGoalRepository extends JpaRepository<HealthGoal, Long> {}
+public interface HealthGoalRepository extends JpaRepository<HealthGoal, Long> {
+
+    /**
+     * 按用户查询健康目标 (精排的健康目标契合度使用)
+     */
+    Optional<HealthGoal> findByUserUserId(Long userId);
+}
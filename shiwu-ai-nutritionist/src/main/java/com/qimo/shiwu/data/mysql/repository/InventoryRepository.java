@@ -2,8 +2,70 @@ package com.qimo.shiwu.data.mysql.repository;
 
 import com.qimo.shiwu.data.mysql.entity.*;
 import com.qimo.shiwu.data.mysql.entity.Inventory;
+import jakarta.persistence.LockModeType;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Optional;
 
 @Repository
-public interface InventoryRepository extends JpaRepository<Inventory, Long> {}
+public interface InventoryRepository extends JpaRepository<Inventory, Long>, InventoryRepositoryCustom {
+
+    /**
+     * 回写 Redis 预扣的库存增量 (不做库存校验)。
+     * 只供 RedisStockService 的异步回写任务使用：扣减是否合法已经由 Redis Lua 脚本原子判定过了，
+     * MySQL 这里只负责把已成交的数量落盘。
+     * @return 受影响的行数 (0 表示库存记录不存在)
+     */
+    @Transactional
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE Inventory i SET i.inventoryQuantity = i.inventoryQuantity - :delta, " +
+            "i.inventoryUpdateTime = :updateTime, i.version = i.version + 1 " +
+            "WHERE i.inventoryId = :inventoryId")
+    int applyReservedDeduction(Long inventoryId, int delta, LocalDateTime updateTime);
+
+    /**
+     * [核心功能]: 无锁的条件扣减 (单条 UPDATE 原子完成 "检查 + 扣减")
+     * 等价 SQL: UPDATE inventory SET inventory_quantity = inventory_quantity - ?
+     *          WHERE inventory_id = ? AND inventory_quantity >= ?
+     * 依赖 InnoDB 行锁保证原子性，不需要任何分布式锁。
+     * @return 1 扣减成功；0 库存不足或记录不存在
+     */
+    @Transactional
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE Inventory i SET i.inventoryQuantity = i.inventoryQuantity - :quantity, " +
+            "i.inventoryUpdateTime = :updateTime, i.version = i.version + 1 " +
+            "WHERE i.inventoryId = :inventoryId AND i.inventoryQuantity >= :quantity")
+    int deductIfSufficient(Long inventoryId, int quantity, LocalDateTime updateTime);
+
+    /**
+     * [核心功能]: 带栅栏令牌的条件扣减 (LOCK 模式持锁后使用)
+     * 只有令牌比上次写入的更新时才生效，并记录本次令牌；
+     * 锁租约过期、被别人重新拿到后，旧持有者迟到的写入会因为令牌过小而影响 0 行。
+     * @return 1 扣减成功；0 库存不足 / 记录不存在 / 令牌已过期
+     */
+    @Transactional
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE Inventory i SET i.inventoryQuantity = i.inventoryQuantity - :quantity, " +
+            "i.fenceToken = :fenceToken, i.inventoryUpdateTime = :updateTime, i.version = i.version + 1 " +
+            "WHERE i.inventoryId = :inventoryId AND i.inventoryQuantity >= :quantity AND i.fenceToken < :fenceToken")
+    int deductWithFence(Long inventoryId, int quantity, long fenceToken, LocalDateTime updateTime);
+
+    /**
+     * 库存行上记录的最后一次栅栏令牌 (Redis 中的栅栏计数器丢失后用它补种子)
+     */
+    @Query("SELECT i.fenceToken FROM Inventory i WHERE i.inventoryId = :inventoryId")
+    Optional<Long> findFenceToken(Long inventoryId);
+
+    /**
+     * SELECT ... FOR UPDATE: 在事务内锁住库存行 (合并提交器一批只加一次行锁)
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT i FROM Inventory i WHERE i.inventoryId = :inventoryId")
+    Optional<Inventory> findByIdForUpdate(Long inventoryId);
+}
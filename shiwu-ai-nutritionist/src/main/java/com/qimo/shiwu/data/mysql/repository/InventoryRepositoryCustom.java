@@ -0,0 +1,27 @@
+package com.qimo.shiwu.data.mysql.repository;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * InventoryRepository 的自定义片段 (Spring Data 会自动把 InventoryRepositoryImpl 织入 InventoryRepository)。
+ * 放 JdbcTemplate 才能做的批量操作。
+ */
+public interface InventoryRepositoryCustom {
+
+    /**
+     * [核心功能]: 一次 JDBC 批量执行多条条件扣减
+     * 按 inventoryId 升序执行，所有事务都以相同顺序获取行锁，不会互相死锁。
+     * 必须在事务内调用，任何一条失败时由调用方抛异常回滚整批。
+     * @param deductions inventoryId -> 扣减数量 (SortedMap，保证顺序)
+     * @return 与 deductions 迭代顺序一致的影响行数，0 表示该条库存不足或不存在
+     */
+    int[] batchDeductIfSufficient(SortedMap<Long, Integer> deductions);
+
+    /**
+     * 带栅栏令牌的批量条件扣减 (LOCK 模式的整篮结算，持有全部 SKU 的锁后调用)
+     * @param fences inventoryId -> 该 SKU 的锁的栅栏令牌
+     * @return 同 batchDeductIfSufficient，0 还可能表示令牌已过期
+     */
+    int[] batchDeductWithFence(SortedMap<Long, Integer> deductions, Map<Long, Long> fences);
+}
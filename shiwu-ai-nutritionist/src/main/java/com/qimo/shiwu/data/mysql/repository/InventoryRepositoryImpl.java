@@ -0,0 +1,52 @@
+package com.qimo.shiwu.data.mysql.repository;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * InventoryRepositoryCustom 的实现。
+ * 配合连接串上的 rewriteBatchedStatements=true，整批 UPDATE 只需一次网络往返。
+ */
+public class InventoryRepositoryImpl implements InventoryRepositoryCustom {
+
+    private static final String DEDUCT_SQL =
+            "UPDATE inventory SET inventory_quantity = inventory_quantity - ?, " +
+            "inventory_update_time = ?, inventory_version = inventory_version + 1 " +
+            "WHERE inventory_id = ? AND inventory_quantity >= ?";
+
+    private static final String FENCED_DEDUCT_SQL =
+            "UPDATE inventory SET inventory_quantity = inventory_quantity - ?, inventory_fence_token = ?, " +
+            "inventory_update_time = ?, inventory_version = inventory_version + 1 " +
+            "WHERE inventory_id = ? AND inventory_quantity >= ? AND inventory_fence_token < ?";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Override
+    public int[] batchDeductIfSufficient(SortedMap<Long, Integer> deductions) {
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        List<Object[]> args = new ArrayList<>(deductions.size());
+        for (Map.Entry<Long, Integer> entry : deductions.entrySet()) {
+            args.add(new Object[]{entry.getValue(), now, entry.getKey(), entry.getValue()});
+        }
+        return jdbcTemplate.batchUpdate(DEDUCT_SQL, args);
+    }
+
+    @Override
+    public int[] batchDeductWithFence(SortedMap<Long, Integer> deductions, Map<Long, Long> fences) {
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        List<Object[]> args = new ArrayList<>(deductions.size());
+        for (Map.Entry<Long, Integer> entry : deductions.entrySet()) {
+            Long fence = fences.get(entry.getKey());
+            args.add(new Object[]{entry.getValue(), fence, now, entry.getKey(), entry.getValue(), fence});
+        }
+        return jdbcTemplate.batchUpdate(FENCED_DEDUCT_SQL, args);
+    }
+}
@@ -3,9 +3,18 @@ package com.qimo.shiwu.data.mysql.repository;
 import com.qimo.shiwu.data.mysql.entity.*;
 import com.qimo.shiwu.data.mysql.entity.Product;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
+
 @Repository
 public interface ProductRepository extends JpaRepository<Product, Long> {
     // 自动实现 findAll(), findById(), save() 等...
+
+    /**
+     * 查询所有有在售 SKU 的商品，skus 只包含在售的 SKU (一次查询，用于构建商品名联想索引)
+     */
+    @Query("SELECT DISTINCT p FROM Product p JOIN FETCH p.skus s WHERE s.skuStatus = true")
+    List<Product> findAllWithActiveSkus();
 }
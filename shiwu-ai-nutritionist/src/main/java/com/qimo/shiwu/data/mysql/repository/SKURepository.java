@@ -2,10 +2,13 @@ package com.qimo.shiwu.data.mysql.repository;
 
 import com.qimo.shiwu.data.mysql.entity.*;
 import com.qimo.shiwu.data.mysql.entity.SKU;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -23,4 +26,98 @@ public interface SKURepository extends JpaRepository<SKU, Long> {
             "JOIN FETCH s.inventory i " +
             "WHERE s.skuId = :skuId AND s.skuStatus = true")
     Optional<SKU> findActiveSkuByIdForSync(Long skuId);
+
+    /**
+     * 批量版的 findActiveSkuByIdForSync，一次 IN 查询取回多个 SKU (用于整篮同步 ES)。
+     * 已下架或不存在的 skuId 不会出现在结果中。
+     */
+    @Query("SELECT s FROM SKU s " +
+            "JOIN FETCH s.product p " +
+            "JOIN FETCH s.inventory i " +
+            "WHERE s.skuId IN :skuIds AND s.skuStatus = true")
+    List<SKU> findActiveSkusByIdsForSync(Collection<Long> skuIds);
+
+    /**
+     * 全量重建的分块加载 (keyset 分页): skuId 大于 afterSkuId 的下一块上架 SKU
+     * 用 WHERE skuId > 上一块最后一个 skuId 代替 OFFSET，每一块都是一次主键范围扫描，
+     * 翻到第几块开销都一样；skuId 稀疏 (如雪花 ID) 也不影响。
+     * product / inventory 都是单值关联，JOIN FETCH 不会放大行数，LIMIT 可以直接下推到 SQL。
+     */
+    @Query("SELECT s FROM SKU s " +
+            "JOIN FETCH s.product p " +
+            "JOIN FETCH s.inventory i " +
+            "WHERE s.skuId > :afterSkuId AND s.skuStatus = true " +
+            "ORDER BY s.skuId")
+    List<SKU> findActiveSKUsForSyncAfter(Long afterSkuId, Pageable pageable);
+
+    /**
+     * 增量同步: (since, until] 之间 SKU 本身被修改过的 skuId (包括下架的)
+     * 三个 findSkuIdsChanged* 各自只走一个时间索引，代价与修改量成正比，与商品总数无关。
+     */
+    @Query("SELECT s.skuId FROM SKU s WHERE s.skuUpdateTime > :since AND s.skuUpdateTime <= :until")
+    List<Long> findSkuIdsChangedBetween(LocalDateTime since, LocalDateTime until);
+
+    /**
+     * 增量同步: (since, until] 之间所属 Product 被修改过的 skuId
+     */
+    @Query("SELECT s.skuId FROM SKU s JOIN s.product p " +
+            "WHERE p.productUpdateTime > :since AND p.productUpdateTime <= :until")
+    List<Long> findSkuIdsWithProductChangedBetween(LocalDateTime since, LocalDateTime until);
+
+    /**
+     * 增量同步: (since, until] 之间库存被修改过的 skuId
+     */
+    @Query("SELECT s.skuId FROM SKU s JOIN s.inventory i " +
+            "WHERE i.inventoryModifyTime > :since AND i.inventoryModifyTime <= :until")
+    List<Long> findSkuIdsWithInventoryChangedBetween(LocalDateTime since, LocalDateTime until);
+
+    /**
+     * 一致性校验: [fromId, toId) 内上架 SKU 的摘要 -> 单行 [行数, 各行 CRC32 的异或]
+     * 每行的 CRC32 覆盖同步到 ES 的原始字段，拼接格式必须与 ConsistencyCheckService.rowDigest 一致。
+     * 只在 MySQL 里做聚合，不传输行数据。
+     */
+    @Query(value = "SELECT COUNT(*), COALESCE(BIT_XOR(CRC32(CONCAT_WS('|', s.sku_id, s.sku_price, " +
+            "i.inventory_quantity, s.sku_size, p.product_name, COALESCE(p.product_desc, '')))), 0) " +
+            "FROM `SKU` s JOIN `Product` p ON p.product_id = s.product_id " +
+            "JOIN `inventory` i ON i.inventory_id = s.inventory_id " +
+            "WHERE s.sku_status = true AND s.sku_id >= :fromId AND s.sku_id < :toId",
+            nativeQuery = true)
+    List<Object[]> digestActiveSkusInRange(long fromId, long toId);
+
+    /**
+     * 一致性校验: [fromId, toId) 内每个上架 SKU 的 [skuId, CRC32] (摘要不一致的小区间逐行比对用)
+     */
+    @Query(value = "SELECT s.sku_id, CRC32(CONCAT_WS('|', s.sku_id, s.sku_price, " +
+            "i.inventory_quantity, s.sku_size, p.product_name, COALESCE(p.product_desc, ''))) " +
+            "FROM `SKU` s JOIN `Product` p ON p.product_id = s.product_id " +
+            "JOIN `inventory` i ON i.inventory_id = s.inventory_id " +
+            "WHERE s.sku_status = true AND s.sku_id >= :fromId AND s.sku_id < :toId",
+            nativeQuery = true)
+    List<Object[]> rowDigestsOfActiveSkusInRange(long fromId, long toId);
+
+    @Query("SELECT MIN(s.skuId) FROM SKU s")
+    Long findMinSkuId();
+
+    @Query("SELECT MAX(s.skuId) FROM SKU s")
+    Long findMaxSkuId();
+
+    /**
+     * 只取 ES 局部更新需要的字段: [skuId, skuPrice, inventoryQuantity]
+     * 不 JOIN product，也不实例化实体 (订单高峰期每次同步只读这三列)。
+     * 已下架或不存在的 skuId 不会出现在结果中。
+     */
+    @Query("SELECT s.skuId, s.skuPrice, i.inventoryQuantity FROM SKU s " +
+            "JOIN s.inventory i " +
+            "WHERE s.skuId IN :skuIds AND s.skuStatus = true")
+    List<Object[]> findActiveStockAndPriceByIds(Collection<Long> skuIds);
+
+    /**
+     * 批量版的 findById (不过滤上下架，与 ProductCacheService.getSkuById 语义一致)，
+     * 一次 IN 查询同时取回 product 和 inventory，避免逐个 SKU 懒加载 (用于搜索结果批量回填)。
+     */
+    @Query("SELECT s FROM SKU s " +
+            "LEFT JOIN FETCH s.product p " +
+            "LEFT JOIN FETCH s.inventory i " +
+            "WHERE s.skuId IN :skuIds")
+    List<SKU> findSkusWithDetailsByIds(Collection<Long> skuIds);
 }
@@ -0,0 +1,22 @@
+package com.qimo.shiwu.data.mysql.repository;
+
+import com.qimo.shiwu.data.mysql.entity.StockFlushLog;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+
+@Repository
+public interface StockFlushLogRepository extends JpaRepository<StockFlushLog, String> {
+
+    /**
+     * 清理旧的回写记录 (只有未完成的回写才需要查它，保留一段时间即可)
+     */
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM StockFlushLog l WHERE l.flushTime < :before")
+    int deleteOlderThan(LocalDateTime before);
+}
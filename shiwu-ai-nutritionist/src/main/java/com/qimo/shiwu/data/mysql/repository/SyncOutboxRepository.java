@@ -0,0 +1,42 @@
+package com.qimo.shiwu.data.mysql.repository;
+
+import com.qimo.shiwu.data.mysql.entity.*;
+import com.qimo.shiwu.data.mysql.entity.SyncOutboxEvent;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface SyncOutboxRepository extends JpaRepository<SyncOutboxEvent, Long> {
+
+    /**
+     * [事务内] 锁住一批到期 (可以投递) 的事件，按写入顺序。
+     * SKIP LOCKED: 其他节点正在认领的行直接跳过，多个节点的中继不会互相等待，也不会取到同一批。
+     */
+    @Query(value = "SELECT * FROM sync_outbox WHERE next_attempt_time <= :now ORDER BY event_id LIMIT :limit " +
+            "FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    List<SyncOutboxEvent> lockDueEvents(LocalDateTime now, int limit);
+
+    /**
+     * [事务内] 认领事件: 把下次投递时间推到租约到期时间，认领期间其他节点查不到它们；
+     * 认领的节点挂了，租约到期后会被重新投递。
+     */
+    @Modifying
+    @Query("UPDATE SyncOutboxEvent e SET e.nextAttemptTime = :leaseUntil WHERE e.eventId IN :eventIds")
+    int claim(Collection<Long> eventIds, LocalDateTime leaseUntil);
+
+    /**
+     * 投递失败: 累加重试次数并推迟下次投递时间
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE SyncOutboxEvent e SET e.attempts = e.attempts + 1, e.nextAttemptTime = :nextAttemptTime " +
+            "WHERE e.eventId IN :eventIds")
+    int markFailed(Collection<Long> eventIds, LocalDateTime nextAttemptTime);
+}
@@ -0,0 +1,9 @@
+package com.qimo.shiwu.data.mysql.repository;
+
+import com.qimo.shiwu.data.mysql.entity.SyncWatermark;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface SyncWatermarkRepository extends JpaRepository<SyncWatermark, String> {
+}
@@ -0,0 +1,22 @@
+package com.qimo.shiwu.dto;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 两级缓存的命中统计 (由 `TieredCacheManager.getStats` 返回)
+ */
+@Data
+@AllArgsConstructor
+public class CacheStats {
+    private String cacheName;
+    private long l1Hits;        // 本地 (Caffeine) 命中
+    private long l2Hits;        // Redis 命中
+    private long misses;        // 两级都未命中
+    private double l1HitRatio;
+    private double l2HitRatio;
+    private long l1Size;        // 本地缓存当前条数 (估算)
+    private long loads;         // 实际回源次数
+    private long coalescedLoads; // 等待别人回源结果 (单飞 / 跨节点互斥) 而省掉的回源次数
+    private long earlyRefreshes; // 过期前提前刷新的次数
+    private long staleWritesSkipped; // 回源期间被清除而放弃 (或撤销) 的写回次数
+}
@@ -0,0 +1,16 @@
+package com.qimo.shiwu.dto;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 缓存的一页 ES 召回结果 (由 `SearchResultCache` 读写)
+ * 只缓存 skuId 列表和命中总数，商品详情仍然实时回填，价格和库存不会因缓存而过期。
+ */
+@Data
+@AllArgsConstructor
+public class CachedSearchPage {
+    private List<Long> skuIds;  // ES 召回顺序
+    private long totalElements; // 命中总数 (分页用)
+}
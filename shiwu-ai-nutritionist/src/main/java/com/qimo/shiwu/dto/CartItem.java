@@ -0,0 +1,18 @@
+package com.qimo.shiwu.dto;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * DTO - 购物篮中的一项
+ *
+ * [开发者注意]:
+ * 一个 SKU + 购买数量。同一个 SKU 出现多次时，`OrderService.checkout` 会自动合并。
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CartItem {
+    private Long skuId;
+    private int quantity;
+}
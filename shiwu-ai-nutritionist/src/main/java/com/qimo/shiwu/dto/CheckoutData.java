@@ -0,0 +1,27 @@
+package com.qimo.shiwu.dto;
+import lombok.Data;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * DTO - 整篮结算 (一个食谱的全部食材一次下单)
+ *
+ * [开发者注意]:
+ * `OrderService` 的 `checkout` 方法会接收这个对象，
+ * 生成一个 Order + 一个 RecipeRecord，并把篮子里的所有 SKU 关联到该食谱 (RecipeRecord_SKU)。
+ */
+@Data
+public class CheckoutData {
+
+    // --- Order ---
+    private String address;
+    private List<CartItem> items;
+
+    // --- RecipeRecord (AI 食谱的营养信息，未提供时按 0 记录) ---
+    private String recipeCoverImageUrl;
+    private BigDecimal recipeProtein;
+    private BigDecimal recipeCarbohydrate;
+    private BigDecimal recipeFat;
+    private BigDecimal recipeFiber;
+}
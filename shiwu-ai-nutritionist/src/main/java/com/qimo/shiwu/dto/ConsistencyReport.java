@@ -0,0 +1,16 @@
+package com.qimo.shiwu.dto;
+
+import lombok.Data;
+
+/**
+ * 一次 MySQL / ES 一致性校验的结果 (由 `ConsistencyCheckService.checkAndRepair` 返回)
+ */
+@Data
+public class ConsistencyReport {
+    private long rangesChecked;     // 比较过的区间数 (含细分出的子区间)
+    private long rangesMismatched;  // 摘要不一致的区间数
+    private long mysqlCount;        // MySQL 中上架的 SKU 数
+    private long esCount;           // ES 中的文档数
+    private long repairedCount;     // 重新同步或删除的 SKU 数
+    private long elapsedMillis;
+}
@@ -0,0 +1,15 @@
+package com.qimo.shiwu.dto;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * DTO - 一个食材的候选商品 (`ProductSearchService.searchIngredients` 的输出，顺序与输入一致)
+ */
+@Data
+@AllArgsConstructor
+public class IngredientCandidates {
+    private String query;
+    private List<SkuSnapshot> candidates; // 精排后的候选，第一个是首选
+}
@@ -0,0 +1,25 @@
+package com.qimo.shiwu.dto;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * DTO - 食谱中的一个食材检索条件 (`ProductSearchService.searchIngredients` 的输入)
+ *
+ * [开发者注意]:
+ * 每个食材可以有自己的标签和价格过滤；tags / minPrice / maxPrice 为 null 时不过滤，
+ * limit <= 0 时使用 `shiwu.search.ingredient.default-limit`。
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class IngredientQuery {
+    private String query;            // 食材名，例如 "鸡胸"
+    private List<String> tags;       // 例如 ["高蛋白"]
+    private BigDecimal minPrice;
+    private BigDecimal maxPrice;
+    private int limit;               // 返回几个候选
+}
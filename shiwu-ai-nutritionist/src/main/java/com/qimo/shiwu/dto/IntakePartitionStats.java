@@ -0,0 +1,16 @@
+package com.qimo.shiwu.dto;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 排队下单分区的运行指标 (由 `OrderIntakeService.getPartitionStats` 返回)
+ */
+@Data
+@AllArgsConstructor
+public class IntakePartitionStats {
+    private int partition;
+    private int queueDepth;       // 当前排队数
+    private long processed;       // 已处理订单数
+    private double avgLatencyMs;  // 提交 -> 完成 的平均耗时
+    private double maxLatencyMs;  // 提交 -> 完成 的最大耗时
+}
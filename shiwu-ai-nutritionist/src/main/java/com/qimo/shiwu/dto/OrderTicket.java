@@ -0,0 +1,60 @@
+package com.qimo.shiwu.dto;
+import lombok.Getter;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 排队下单的"取号凭证"
+ *
+ * [开发者注意]:
+ * `OrderIntakeService.submitOrder` 立即返回这个对象，订单由后台写线程异步处理。
+ * 调用方可以轮询 `OrderIntakeService.getTicket(ticketId)` 查看 status，
+ * 也可以在 `getCompletion()` 上注册回调。
+ */
+@Getter
+public class OrderTicket {
+
+    public enum Status { QUEUED, SUCCESS, FAILED }
+
+    private final Long ticketId;
+    private final Long userId;
+    private final Long skuId;
+    private final int quantity;
+    private final String address;
+    private final long submitTimeMillis;
+
+    // 以下字段由写线程在完成时设置
+    private volatile Status status = Status.QUEUED;
+    private volatile Long orderId;
+    private volatile String failReason;
+    private volatile long finishTimeMillis;
+
+    private final CompletableFuture<OrderTicket> completion = new CompletableFuture<>();
+
+    public OrderTicket(Long ticketId, Long userId, Long skuId, int quantity, String address) {
+        this.ticketId = ticketId;
+        this.userId = userId;
+        this.skuId = skuId;
+        this.quantity = quantity;
+        this.address = address;
+        this.submitTimeMillis = System.currentTimeMillis();
+    }
+
+    public void succeed(Long orderId) {
+        this.orderId = orderId;
+        this.finishTimeMillis = System.currentTimeMillis();
+        this.status = Status.SUCCESS;
+        completion.complete(this);
+    }
+
+    public void fail(String reason) {
+        this.failReason = reason;
+        this.finishTimeMillis = System.currentTimeMillis();
+        this.status = Status.FAILED;
+        completion.complete(this);
+    }
+
+    public boolean isDone() {
+        return status != Status.QUEUED;
+    }
+}
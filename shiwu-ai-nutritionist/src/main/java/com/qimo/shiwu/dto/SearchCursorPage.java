@@ -0,0 +1,20 @@
+package com.qimo.shiwu.dto;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * DTO - 游标分页的搜索结果 (由 `ProductSearchService.searchProductsAfter` 返回)
+ *
+ * [开发者注意]:
+ * 取下一页时把 nextCursor 原样传回即可；nextCursor 为 null 表示已经没有更多结果。
+ * 游标是不透明字符串，前端不要解析它。
+ */
+@Data
+@AllArgsConstructor
+public class SearchCursorPage {
+    private List<SkuSnapshot> items;
+    private String nextCursor;
+    private long totalElements;
+}
@@ -0,0 +1,47 @@
+package com.qimo.shiwu.dto;
+import com.qimo.shiwu.data.mysql.entity.Inventory;
+import com.qimo.shiwu.data.mysql.entity.Product;
+import com.qimo.shiwu.data.mysql.entity.SKU;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+
+/**
+ * DTO - SKU 缓存快照 (SKU + 所属 Product + 库存，"skuDetails" 缓存和搜索结果回填使用)
+ *
+ * [开发者注意]:
+ * 缓存里不再放 JPA 实体: 实体带着 Product.skus 懒加载集合和双向关联，序列化时要么拖出整张关系图，
+ * 要么碰到 Hibernate 代理直接失败；而且实体是可变的，放进本地 L1 后被多个线程共享并不安全。
+ * 快照是不可变的扁平记录，只含展示和精排需要的字段，由 SnapshotCodec 编码成紧凑的二进制写入 Redis。
+ * 增删字段时必须同步修改 SnapshotCodec 并提升 SKU_SCHEMA_VERSION。
+ */
+public record SkuSnapshot(
+        Long skuId,
+        String skuCode,
+        String skuSize,
+        BigDecimal skuPrice,
+        Boolean skuStatus,
+        BigDecimal skuHeat,
+        Long productId,
+        String productName,
+        String productPicpath,
+        String productDesc,
+        Integer inventoryQuantity) implements Serializable {
+
+    public static SkuSnapshot from(SKU sku) {
+        Product product = sku.getProduct();
+        Inventory inventory = sku.getInventory();
+        return new SkuSnapshot(
+                sku.getSkuId(),
+                sku.getSkuCode(),
+                sku.getSkuSize(),
+                sku.getSkuPrice(),
+                sku.getSkuStatus(),
+                sku.getSkuHeat(),
+                product != null ? product.getProductId() : null,
+                product != null ? product.getProductName() : null,
+                product != null ? product.getProductPicpath() : null,
+                product != null ? product.getProductDesc() : null,
+                inventory != null ? inventory.getInventoryQuantity() : null);
+    }
+}
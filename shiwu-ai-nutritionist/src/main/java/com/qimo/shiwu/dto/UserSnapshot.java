@@ -0,0 +1,77 @@
+package com.qimo.shiwu.dto;
+import com.qimo.shiwu.data.mysql.entity.DietPreference;
+import com.qimo.shiwu.data.mysql.entity.HealthGoal;
+import com.qimo.shiwu.data.mysql.entity.User;
+import com.qimo.shiwu.data.mysql.entity.UserProfile;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * DTO - 用户缓存快照 (User + 身体档案 + 饮食偏好 + 健康目标，"userDetails" 缓存使用)
+ *
+ * [开发者注意]:
+ * 与 SkuSnapshot 相同，缓存里不再放 User 实体 (它带着 recipeRecords 等双向关联)。
+ * 快照不包含 userPassword: 密码哈希不应该出现在缓存里。
+ * profile / preference / goal 在用户尚未填写时为 null。
+ * 增删字段时必须同步修改 SnapshotCodec 并提升 USER_SCHEMA_VERSION。
+ */
+public record UserSnapshot(
+        Long userId,
+        String userName,
+        Profile profile,
+        Preference preference,
+        Goal goal) implements Serializable {
+
+    public record Profile(
+            BigDecimal height,
+            BigDecimal weight,
+            String activityLevel,
+            BigDecimal bmr,
+            BigDecimal tdee,
+            LocalDateTime recipeUpdateTime) implements Serializable {
+    }
+
+    public record Preference(
+            String allergens,
+            String taboos,
+            String tastePreference,
+            String eatingHabit,
+            String equipmentLimit) implements Serializable {
+    }
+
+    public record Goal(
+            String goalType,
+            BigDecimal targetWeight,
+            LocalDateTime targetDate,
+            BigDecimal heatTarget) implements Serializable {
+    }
+
+    public static UserSnapshot from(User user) {
+        UserProfile profile = user.getUserProfile();
+        DietPreference preference = user.getDietPreference();
+        HealthGoal goal = user.getHealthGoal();
+        return new UserSnapshot(
+                user.getUserId(),
+                user.getUserName(),
+                profile == null ? null : new Profile(
+                        profile.getHeight(),
+                        profile.getWeight(),
+                        profile.getActivityLevel(),
+                        profile.getBmr(),
+                        profile.getTdee(),
+                        profile.getRecipeUpdateTime()),
+                preference == null ? null : new Preference(
+                        preference.getAllergens(),
+                        preference.getTaboos(),
+                        preference.getTaste_preference(),
+                        preference.getEating_habit(),
+                        preference.getEquipment_limit()),
+                goal == null ? null : new Goal(
+                        goal.getGoal_type(),
+                        goal.getTarget_weight(),
+                        goal.getTarget_date(),
+                        goal.getHeat_target()));
+    }
+}
@@ -1,5 +1,6 @@
 package com.qimo.shiwu.runner;
 import com.qimo.shiwu.dto.UserRegistrationData;
+import com.qimo.shiwu.dto.UserSnapshot;
 import com.qimo.shiwu.data.mysql.entity.User;
 import com.qimo.shiwu.data.mysql.repository.UserRepository;
 import com.qimo.shiwu.service.UserService;
@@ -68,18 +69,18 @@ public class DataLayerTestRunner implements CommandLineRunner {
 
             System.out.println("[测试] 正在验证用户数据 (ID: " + registeredUser.getUserId() + ")...");
             // 第一次获取 (应该走 MySQL, 打印 "正在从 MySQL 查询...")
-            Optional<User> userOpt1 = userService.getUserDetails(registeredUser.getUserId());
+            Optional<UserSnapshot> userOpt1 = userService.getUserDetails(registeredUser.getUserId());
 
             if (userOpt1.isPresent()) {
-                User user = userOpt1.get();
-                System.out.println("[成功] 验证成功 (来自 MySQL)! 成功获取到用户: " + user.getUserName());
-                System.out.println("       - 健康目标: " + user.getHealthGoal().getGoal_type());
-                System.out.println("       - 过敏源: " + user.getDietPreference().getAllergens());
+                UserSnapshot user = userOpt1.get();
+                System.out.println("[成功] 验证成功 (来自 MySQL)! 成功获取到用户: " + user.userName());
+                System.out.println("       - 健康目标: " + (user.goal() != null ? user.goal().goalType() : null));
+                System.out.println("       - 过敏源: " + (user.preference() != null ? user.preference().allergens() : null));
 
                 // 4. 验证缓存
                 System.out.println("[测试] 正在验证 Redis 缓存...");
                 // 第二次获取 (不应打印 "正在从 MySQL 查询...")
-                Optional<User> userOpt2 = userService.getUserDetails(registeredUser.getUserId());
+                Optional<UserSnapshot> userOpt2 = userService.getUserDetails(registeredUser.getUserId());
 
                 if (userOpt2.isPresent()) {
                     System.out.println("[成功] 缓存验证成功! (如果上一行没有打印 '...查询...'，则代表 Redis 缓存命中)");
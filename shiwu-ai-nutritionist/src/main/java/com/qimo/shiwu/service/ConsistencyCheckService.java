@@ -0,0 +1,259 @@
+package com.qimo.shiwu.service;
+
+import com.qimo.shiwu.data.es.ProductDocument;
+import com.qimo.shiwu.data.es.ProductSearchRepository;
+import com.qimo.shiwu.data.mysql.repository.SKURepository;
+import com.qimo.shiwu.dto.ConsistencyReport;
+import com.qimo.shiwu.util.RedisLeaseLock;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * ===================================================================
+ * 服务 19: MySQL / ES 一致性校验与定向修复
+ * ===================================================================
+ * [开发者注意]:
+ * 不做全量重建也能知道 products_shiwu 有没有和 MySQL 跑偏，并且只修复跑偏的文档。
+ * 1. 把 skuId 空间 (两边 min ~ max) 均分成 `ranges` 段，多线程并行校验；
+ * 2. 每段分别算两边的摘要 = (行数, 每行 CRC32 的异或):
+ *    - MySQL: 一条 COUNT + BIT_XOR(CRC32(...)) 聚合，只返回一行；
+ *    - ES: 按 skuId 顺序 search_after 扫描，只取参与校验的字段，在本地算 CRC32；
+ *    每行的 CRC32 覆盖 skuId、价格、库存、规格、商品名、描述 (见 rowDigest)；
+ * 3. 摘要一致就跳过整段；不一致时像 Merkle 树一样把这段再切成 `fanout` 个子段递归比较，
+ *    直到段内行数不超过 `leaf-size`，再逐行比对；
+ * 4. 逐行比对出的 SKU (内容不同 / ES 缺失 / ES 多余) 交给 syncSkus: 重新同步，或删除已下架/不存在的。
+ * 绝大多数段一次聚合就能确认一致，MySQL 不加载实体、ES 不写入，耗时只是全量重建的一小部分。
+ *
+ * - 标签由规则引擎计算，不是 MySQL 的原始字段，不参与校验 (规则变更靠全量重建生效)；
+ * - 校验期间正在同步的 SKU 可能被误判为不一致，对它们多同步一次是无害的。
+ */
+@Service
+public class ConsistencyCheckService {
+
+    private static final String LOCK_KEY = "lock:sync:consistency-check";
+    private static final int SCAN_PAGE_SIZE = 1000;
+
+    @Autowired private SKURepository skuRepository;
+    @Autowired private ProductSearchRepository productSearchRepository;
+    @Autowired private DataSyncService dataSyncService;
+    @Autowired private RedisLeaseLock leaseLock;
+
+    @Value("${shiwu.verify.ranges:64}")
+    private int ranges;
+
+    @Value("${shiwu.verify.fanout:8}")
+    private int fanout;
+
+    @Value("${shiwu.verify.leaf-size:500}")
+    private int leafSize;
+
+    @Value("${shiwu.verify.threads:4}")
+    private int threads;
+
+    /**
+     * 一段 skuId 区间的摘要
+     */
+    private record Digest(long count, long xor) {
+    }
+
+    /**
+     * 定时校验 (默认在凌晨全量重建之后的低峰期)
+     */
+    @Scheduled(cron = "${shiwu.verify.cron:0 30 4 * * ?}")
+    public void scheduledCheck() {
+        RedisLeaseLock.Lease lease = leaseLock.tryLock(LOCK_KEY, 0);
+        if (lease == null) {
+            return; // 其他节点正在校验
+        }
+        try {
+            System.out.println("一致性校验完成: " + checkAndRepair());
+        } catch (Exception e) {
+            System.err.println("一致性校验失败: " + e.getMessage());
+        } finally {
+            leaseLock.unlock(lease);
+        }
+    }
+
+    /**
+     * [核心功能]: 校验全部 SKU，修复不一致的文档
+     */
+    public ConsistencyReport checkAndRepair() throws Exception {
+        long start = System.currentTimeMillis();
+        ConsistencyReport report = new ConsistencyReport();
+
+        Long mysqlMin = skuRepository.findMinSkuId();
+        Long mysqlMax = skuRepository.findMaxSkuId();
+        Long esMin = productSearchRepository.boundarySkuId(false);
+        Long esMax = productSearchRepository.boundarySkuId(true);
+        if (mysqlMin == null && esMin == null) {
+            report.setElapsedMillis(System.currentTimeMillis() - start);
+            return report;
+        }
+        long from = Math.min(mysqlMin != null ? mysqlMin : Long.MAX_VALUE, esMin != null ? esMin : Long.MAX_VALUE);
+        long to = Math.max(mysqlMax != null ? mysqlMax : Long.MIN_VALUE, esMax != null ? esMax : Long.MIN_VALUE) + 1;
+
+        AtomicLong rangesChecked = new AtomicLong();
+        AtomicLong rangesMismatched = new AtomicLong();
+        AtomicLong mysqlCount = new AtomicLong();
+        AtomicLong esCount = new AtomicLong();
+        Set<Long> divergent = ConcurrentHashMap.newKeySet();
+
+        AtomicInteger seq = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "consistency-check-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (long[] range : split(from, to, ranges)) {
+                futures.add(workers.submit(() -> {
+                    Digest mysql = mysqlDigest(range[0], range[1]);
+                    Digest es = esDigest(range[0], range[1]);
+                    mysqlCount.addAndGet(mysql.count());
+                    esCount.addAndGet(es.count());
+                    checkRange(range[0], range[1], mysql, es, rangesChecked, rangesMismatched, divergent);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+
+        // 重新同步: 还在上架的更新文档，已下架/不存在的删除文档
+        List<Long> repair = new ArrayList<>(divergent);
+        for (int i = 0; i < repair.size(); i += SCAN_PAGE_SIZE) {
+            dataSyncService.syncSkus(repair.subList(i, Math.min(repair.size(), i + SCAN_PAGE_SIZE)));
+        }
+
+        report.setRangesChecked(rangesChecked.get());
+        report.setRangesMismatched(rangesMismatched.get());
+        report.setMysqlCount(mysqlCount.get());
+        report.setEsCount(esCount.get());
+        report.setRepairedCount(repair.size());
+        report.setElapsedMillis(System.currentTimeMillis() - start);
+        return report;
+    }
+
+    /**
+     * 比较一段区间，不一致时向下细分 (Merkle 式)，到叶子时逐行比对
+     */
+    private void checkRange(long from, long to, Digest mysql, Digest es,
+                            AtomicLong rangesChecked, AtomicLong rangesMismatched, Set<Long> divergent) {
+        rangesChecked.incrementAndGet();
+        if (mysql.equals(es)) {
+            return;
+        }
+        rangesMismatched.incrementAndGet();
+
+        if (Math.max(mysql.count(), es.count()) <= leafSize || to - from <= fanout) {
+            divergent.addAll(diffRows(from, to));
+            return;
+        }
+        for (long[] sub : split(from, to, fanout)) {
+            checkRange(sub[0], sub[1], mysqlDigest(sub[0], sub[1]), esDigest(sub[0], sub[1]),
+                    rangesChecked, rangesMismatched, divergent);
+        }
+    }
+
+    /**
+     * 叶子区间逐行比对，返回两边不一致的 skuId
+     */
+    private Set<Long> diffRows(long from, long to) {
+        Map<Long, Long> mysqlRows = new HashMap<>();
+        for (Object[] row : skuRepository.rowDigestsOfActiveSkusInRange(from, to)) {
+            mysqlRows.put(((Number) row[0]).longValue(), ((Number) row[1]).longValue());
+        }
+        Set<Long> divergent = new HashSet<>();
+        scanEs(from, to, doc -> {
+            Long expected = mysqlRows.remove(doc.getSkuId());
+            if (expected == null || expected != rowDigest(doc)) {
+                divergent.add(doc.getSkuId()); // ES 多余 (已下架/已删除) 或内容不同
+            }
+        });
+        divergent.addAll(mysqlRows.keySet()); // ES 缺失
+        return divergent;
+    }
+
+    private Digest mysqlDigest(long from, long to) {
+        Object[] row = skuRepository.digestActiveSkusInRange(from, to).get(0);
+        return new Digest(((Number) row[0]).longValue(), ((Number) row[1]).longValue());
+    }
+
+    private Digest esDigest(long from, long to) {
+        long[] acc = new long[2];
+        scanEs(from, to, doc -> {
+            acc[0]++;
+            acc[1] ^= rowDigest(doc);
+        });
+        return new Digest(acc[0], acc[1]);
+    }
+
+    private void scanEs(long from, long to, Consumer<ProductDocument> consumer) {
+        Long after = null;
+        while (true) {
+            List<ProductDocument> page = productSearchRepository.scanRange(from, to, after, SCAN_PAGE_SIZE);
+            page.forEach(consumer);
+            if (page.size() < SCAN_PAGE_SIZE) {
+                return;
+            }
+            after = page.get(page.size() - 1).getSkuId();
+        }
+    }
+
+    /**
+     * 一篇 ES 文档的 CRC32，拼接格式与 SKURepository.digestActiveSkusInRange 中的
+     * CONCAT_WS('|', sku_id, sku_price, inventory_quantity, sku_size, product_name, COALESCE(product_desc, '')) 相同
+     * (sku_price 是 DECIMAL(10,2)，MySQL 转字符串时固定两位小数)
+     */
+    static long rowDigest(ProductDocument doc) {
+        String price = doc.getSkuPrice() == null ? "" : doc.getSkuPrice().setScale(2, RoundingMode.HALF_UP).toPlainString();
+        String row = String.join("|",
+                String.valueOf(doc.getSkuId()),
+                price,
+                String.valueOf(doc.getInventoryQuantity()),
+                String.valueOf(doc.getSkuSize()),
+                String.valueOf(doc.getProductName()),
+                doc.getProductDesc() == null ? "" : doc.getProductDesc());
+        CRC32 crc = new CRC32();
+        crc.update(row.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    /**
+     * 把 [from, to) 均分成最多 parts 段
+     */
+    private static List<long[]> split(long from, long to, int parts) {
+        List<long[]> result = new ArrayList<>(parts);
+        long width = Math.max(1, (to - from + parts - 1) / parts);
+        for (long start = from; start < to; start += width) {
+            result.add(new long[]{start, Math.min(to, start + width)});
+            if (to - start <= width) {
+                break;
+            }
+        }
+        return result;
+    }
+}
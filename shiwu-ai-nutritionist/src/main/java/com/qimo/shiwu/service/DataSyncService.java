@@ -5,18 +5,23 @@ import com.qimo.shiwu.data.es.ProductSearchRepository;
 import com.qimo.shiwu.data.mysql.entity.SKU;
 import com.qimo.shiwu.data.mysql.repository.SKURepository;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
+import java.math.BigDecimal;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
  * ===================================================================
- * 服务 5: 数据同步服务 (T+1 批量 + 近实时单条)
+ * 服务 5: 数据同步服务 (近实时增量同步，T+1 全量重建见 ProductReindexService)
  * ===================================================================
  * [开发者注意]:
  * 负责保持 MySQL 和 Elasticsearch 的数据一致性。
@@ -29,26 +34,96 @@ public class DataSyncService {
     private SKURepository skuRepository; // MySQL 仓库
     @Autowired
     private ProductSearchRepository productSearchRepository; // ES 仓库
+    @Autowired
+    private SearchResultCache searchResultCache; // ES 数据变了，对应的搜索结果缓存随之作废
+    @Autowired
+    private ProductSuggestService productSuggestService; // 商品名联想索引增量更新
+    @Autowired
+    private TagRuleEngine tagRuleEngine; // 商品标签生成
 
     /**
-     * T+1 批量同步任务
-     * cron = "0 0 3 * * ?" 表示每天凌晨3点整执行
+     * 全量重建期间被增量同步过的 SKU 记在 Redis 里 (而不是重建节点的内存里)，
+     * 这样所有节点上的发件箱中继 / 合并同步 / 水位线增量同步写进旧索引的变化都能在切换别名后补上。
+     * - reindex:tracking  存在表示正在重建 (带过期时间，重建节点崩溃后自动停止记录)
+     * - reindex:changed   重建期间同步过的 skuId 集合
      */
-    @Scheduled(cron = "0 0 3 * * ?")
-    @Transactional(readOnly = true) // 同步任务是只读的，声明为只读事务可以优化性能
-    public void syncAllProductsToES() {
-        System.out.println("开始执行 [MySQL -> ES] T+1 批量同步任务...");
-        List<SKU> skuList = skuRepository.findAllActiveSKUsForSync();
-        if (skuList.isEmpty()) {
-            System.out.println("同步任务结束：没有需要同步的数据。");
-            return;
+    private static final String TRACKING_KEY = "reindex:tracking";
+    private static final String CHANGED_KEY = "reindex:changed";
+    private static final Duration TRACKING_TTL = Duration.ofHours(6);
+
+    /**
+     * 正在重建时记下 skuId。KEYS = [标记, 集合]; ARGV = skuId...
+     */
+    private static final DefaultRedisScript<Long> TRACK_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('exists', KEYS[1]) == 0 then return 0 end " +
+            "for i = 1, #ARGV, 1000 do " +
+            "  redis.call('sadd', KEYS[2], unpack(ARGV, i, math.min(i + 999, #ARGV))) " +
+            "end " +
+            // 集合与标记同时过期
+            "redis.call('pexpire', KEYS[2], redis.call('pttl', KEYS[1])) " +
+            "return 1", Long.class);
+
+    /**
+     * 取走记录的 skuId 并删除 KEYS[1] (KEYS = [标记, 集合] 时同时停止记录；[集合, 集合] 时继续记录)
+     */
+    private static final DefaultRedisScript<List<Object>> DRAIN_SCRIPT = listScript(
+            "local changed = redis.call('smembers', KEYS[2]) " +
+            "redis.call('del', KEYS[1], KEYS[2]) " +
+            "return changed");
+
+    /**
+     * 返回 Lua 数组的脚本 (List.class 只能以原始类型给出，在这里集中做一次转换)
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static DefaultRedisScript<List<Object>> listScript(String script) {
+        return new DefaultRedisScript<>(script, (Class<List<Object>>) (Class) List.class);
+    }
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    /**
+     * 开始记录增量同步过的 SKU (全量重建开始时调用，对所有节点生效)
+     * T+1 全量同步已移到 ProductReindexService (别名蓝绿切换)。
+     */
+    public void startTrackingChanges() {
+        redisTemplate.delete(CHANGED_KEY);
+        redisTemplate.opsForValue().set(TRACKING_KEY, "1", TRACKING_TTL);
+    }
+
+    /**
+     * 取走目前记录的 SKU，但继续记录 (切换别名前先把这些变化补进新索引)
+     */
+    public Set<Long> drainTrackedChanges() {
+        return toSkuIds(redisTemplate.execute(DRAIN_SCRIPT, List.of(CHANGED_KEY, CHANGED_KEY)));
+    }
+
+    /**
+     * 停止记录，返回记录期间 (任何节点) 增量同步过的 SKU
+     */
+    public Set<Long> stopTrackingChanges() {
+        return toSkuIds(redisTemplate.execute(DRAIN_SCRIPT, List.of(TRACKING_KEY, CHANGED_KEY)));
+    }
+
+    private static Set<Long> toSkuIds(List<?> members) {
+        Set<Long> skuIds = new LinkedHashSet<>();
+        if (members != null) {
+            for (Object skuId : members) {
+                skuIds.add(Long.valueOf(skuId.toString()));
+            }
         }
-        List<ProductDocument> documents = skuList.stream()
-                .map(this::convertSkuToDocument)
-                .collect(Collectors.toList());
+        return skuIds;
+    }
 
-        productSearchRepository.saveAll(documents);
-        System.out.println("同步任务完成：成功同步 " + documents.size() + " 条商品数据到 ES。");
+    /**
+     * 必须在读 MySQL 之前调用: 这样没被记下的同步读到的数据一定不比重建读到的新
+     */
+    private void trackChanges(Collection<Long> skuIds) {
+        if (skuIds.isEmpty()) {
+            return;
+        }
+        String[] args = skuIds.stream().map(String::valueOf).toArray(String[]::new);
+        redisTemplate.execute(TRACK_SCRIPT, List.of(TRACKING_KEY, CHANGED_KEY), (Object[]) args);
     }
 
     /**
@@ -58,24 +133,104 @@ public class DataSyncService {
      */
     public void syncSingleSku(Long skuId) {
         System.out.println("执行 [MySQL -> ES] 单条近实时同步: " + skuId);
+        trackChanges(List.of(skuId));
         // 使用新查询来获取单个SKU的完整信息
         Optional<SKU> skuOpt = skuRepository.findActiveSkuByIdForSync(skuId);
 
         if (skuOpt.isPresent()) {
             ProductDocument doc = convertSkuToDocument(skuOpt.get());
             productSearchRepository.save(doc); // 更新或插入
+            productSuggestService.onSkusSynced(List.of(skuOpt.get()), List.of());
             System.out.println("单条同步成功: " + skuId);
         } else {
             // SKU 可能被删除了或状态变为 false
             productSearchRepository.deleteById(skuId.toString());
+            productSuggestService.onSkusSynced(List.of(), List.of(skuId));
             System.out.println("单条同步删除: " + skuId);
         }
+        searchResultCache.invalidateSkus(List.of(skuId));
+    }
+
+    /**
+     * 批量近实时同步 (整篮下单后调用)
+     * 一次 IN 查询 + 一次 ES bulk 写入 + 一次 bulk 删除，代替逐个 syncSingleSku。
+     * @param skuIds 需要同步的 SKU
+     */
+    public void syncSkus(Collection<Long> skuIds) {
+        if (skuIds.isEmpty()) {
+            return;
+        }
+        System.out.println("执行 [MySQL -> ES] 批量近实时同步: " + skuIds);
+        trackChanges(skuIds);
+        List<SKU> skus = skuRepository.findActiveSkusByIdsForSync(skuIds);
+        List<ProductDocument> documents = skus.stream()
+                .map(this::convertSkuToDocument)
+                .collect(Collectors.toList());
+        if (!documents.isEmpty()) {
+            productSearchRepository.saveAll(documents);
+        }
+
+        // 查不到的 SKU 已被删除或下架
+        Set<Long> found = skus.stream().map(SKU::getSkuId).collect(Collectors.toSet());
+        List<Long> removedIds = skuIds.stream()
+                .filter(id -> !found.contains(id))
+                .collect(Collectors.toList());
+        List<String> removed = removedIds.stream()
+                .map(String::valueOf)
+                .collect(Collectors.toList());
+        if (!removed.isEmpty()) {
+            productSearchRepository.deleteAllById(removed);
+        }
+        productSuggestService.onSkusSynced(skus, removedIds);
+        searchResultCache.invalidateSkus(skuIds);
+        System.out.println("批量同步完成: 更新 " + documents.size() + " 条, 删除 " + removed.size() + " 条");
+    }
+
+    /**
+     * [核心功能]: 只同步价格和库存 (下单、库存回写等只改这两个字段的场景)
+     * 一次三列的投影查询 + 一次 _bulk 局部更新，代替 syncSkus 的两次 JOIN FETCH + 整篇重建;
+     * 值没变的文档由 ES 的 detect_noop 跳过。
+     * 以下情况退回 syncSkus 做完整同步:
+     * - SKU 已下架或不存在 (需要删除文档)；
+     * - ES 中没有这篇文档 (局部更新失败)；
+     * - 标签规则里有价格/库存阈值 (标签可能随之变化)。
+     * 商品名、描述等目录信息的修改仍然走 syncSkus。
+     */
+    public void syncStockAndPrice(Collection<Long> skuIds) {
+        if (skuIds.isEmpty()) {
+            return;
+        }
+        trackChanges(skuIds);
+        if (tagRuleEngine.dependsOnStockOrPrice()) {
+            syncSkus(skuIds);
+            return;
+        }
+        List<Object[]> rows = skuRepository.findActiveStockAndPriceByIds(skuIds);
+        List<ProductDocument> partials = new ArrayList<>(rows.size());
+        Set<Long> fullSync = new LinkedHashSet<>(skuIds);
+        for (Object[] row : rows) {
+            ProductDocument partial = new ProductDocument();
+            partial.setId(row[0].toString());
+            partial.setSkuPrice((BigDecimal) row[1]);
+            partial.setInventoryQuantity((Integer) row[2]);
+            partials.add(partial);
+            fullSync.remove((Long) row[0]);
+        }
+        // 局部更新失败的 (ES 中还没有文档) 改为完整同步
+        fullSync.addAll(productSearchRepository.updateStockAndPrice(partials));
+
+        if (!fullSync.isEmpty()) {
+            syncSkus(fullSync);
+        }
+        searchResultCache.invalidateSkus(skuIds);
+        System.out.println("价格/库存局部同步完成: " + partials.size() + " 条局部更新, " + fullSync.size() + " 条完整同步");
     }
 
     /**
      * 辅助方法：将 SKU 实体转换为 ES 文档
+     * (EmbeddedProductSearchEngine 也用它构建本地索引，保证两边的文档和标签完全一致)
      */
-    private ProductDocument convertSkuToDocument(SKU sku) {
+    public ProductDocument convertSkuToDocument(SKU sku) {
         ProductDocument doc = new ProductDocument();
         doc.setId(sku.getSkuId().toString()); // ES ID
         doc.setSkuId(sku.getSkuId());
@@ -86,19 +241,8 @@ public class DataSyncService {
         doc.setSkuPrice(sku.getSkuPrice());
         doc.setInventoryQuantity(sku.getInventory().getInventoryQuantity());
 
-        // [核心逻辑] TODO: 实现一个更健壮的标签生成器
-        // 这里的示例逻辑非常简单
-        List<String> tags = new ArrayList<>();
-        if (sku.getProduct().getProductName().contains("鸡胸")) {
-            tags.add("高蛋白");
-            tags.add("低脂肪");
-        }
-        if (sku.getProduct().getProductName().contains("糙米")) {
-            tags.add("高纤维");
-        }
-        if (sku.getSkuHeat().doubleValue() < 200) {
-            tags.add("低卡");
-        }
+        // [核心逻辑] 标签由规则引擎生成 (关键词 + 数值阈值规则，见 tag-rules.txt)
+        List<String> tags = tagRuleEngine.tagsFor(sku);
         doc.setTags(tags);
 
         return doc;
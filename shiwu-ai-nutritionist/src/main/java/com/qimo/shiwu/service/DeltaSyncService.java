@@ -0,0 +1,142 @@
+package com.qimo.shiwu.service;
+
+import com.qimo.shiwu.data.mysql.entity.SyncWatermark;
+import com.qimo.shiwu.data.mysql.repository.SKURepository;
+import com.qimo.shiwu.data.mysql.repository.SyncWatermarkRepository;
+import com.qimo.shiwu.util.RedisLeaseLock;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ===================================================================
+ * 服务 17: 基于高水位的增量同步 (MySQL -> ES)
+ * ===================================================================
+ * [开发者注意]:
+ * 发件箱只覆盖应用内的写路径 (下单、库存回写)；后台直接改库、批量导入等修改以前要等 T+1 全量重建。
+ * 这个任务每隔几秒按修改时间扫一次增量:
+ *   1. 取数据库当前时间 now，本轮处理 (高水位, now - commit-lag] 之间修改过的行；
+ *   2. 三条各走一个时间索引的查询找出受影响的 skuId:
+ *      SKU 本身 / 所属 Product / 库存 被修改过的；
+ *   3. SKU 或 Product 有修改的做完整同步 (syncSkus，已下架的变成删除)，
+ *      只有库存变化的做价格/库存局部同步 (syncStockAndPrice)；同时清理商品缓存；
+ *   4. 成功后把高水位推进到本轮的上界 (存在 sync_watermark 表)。
+ * 每轮的开销只和这段时间的修改量有关，与商品总数无关。
+ *
+ * - commit-lag: 修改时间是语句执行时的时间，事务可能晚一点才提交；上界比 now 往前留一段，
+ *   等这段时间内的事务都提交了再处理，避免漏掉 "时间早、提交晚" 的行。
+ * - 第一次运行 (没有高水位) 只记录当前时间，不回溯历史数据 (历史数据由全量重建负责)。
+ * - 物理删除 (DELETE) 无法通过修改时间发现，商品下架请用 skuStatus = false。
+ * - 与发件箱重复同步同一个 SKU 是无害的 (幂等)。
+ */
+@Service
+public class DeltaSyncService {
+
+    private static final String SYNC_NAME = "es_product_delta";
+    private static final String LOCK_KEY = "lock:sync:es-delta";
+
+    @Autowired private SKURepository skuRepository;
+    @Autowired private SyncWatermarkRepository syncWatermarkRepository;
+    @Autowired private DataSyncService dataSyncService;
+    @Autowired private ProductCacheService productCacheService;
+    @Autowired private RedisLeaseLock leaseLock;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Value("${shiwu.delta.commit-lag-ms:2000}")
+    private long commitLagMillis;
+
+    @Value("${shiwu.delta.batch-size:1000}")
+    private int batchSize;
+
+    /**
+     * 增量同步任务
+     */
+    @Scheduled(fixedDelayString = "${shiwu.delta.interval-ms:5000}")
+    public void syncChanges() {
+        RedisLeaseLock.Lease lease = leaseLock.tryLock(LOCK_KEY, 0);
+        if (lease == null) {
+            return; // 其他节点正在同步
+        }
+        try {
+            doSync();
+        } catch (Exception e) {
+            // 高水位没有推进，下一轮会重新处理这段时间
+            System.err.println("增量同步失败，下一轮重试: " + e.getMessage());
+        } finally {
+            leaseLock.unlock(lease);
+        }
+    }
+
+    private void doSync() {
+        // 用数据库时间做上界，和 ON UPDATE 写入的时间来自同一个时钟
+        LocalDateTime until = databaseNow().minusNanos(commitLagMillis * 1_000_000);
+        SyncWatermark watermark = syncWatermarkRepository.findById(SYNC_NAME).orElse(null);
+        if (watermark == null) {
+            watermark = new SyncWatermark();
+            watermark.setSyncName(SYNC_NAME);
+            watermark.setWatermark(until);
+            syncWatermarkRepository.save(watermark);
+            System.out.println("增量同步初始化高水位: " + until);
+            return;
+        }
+        LocalDateTime since = watermark.getWatermark();
+        if (!until.isAfter(since)) {
+            return;
+        }
+
+        Set<Long> fullSyncIds = new LinkedHashSet<>(skuRepository.findSkuIdsChangedBetween(since, until));
+        fullSyncIds.addAll(skuRepository.findSkuIdsWithProductChangedBetween(since, until));
+        Set<Long> stockSyncIds = new LinkedHashSet<>(skuRepository.findSkuIdsWithInventoryChangedBetween(since, until));
+        stockSyncIds.removeAll(fullSyncIds);
+
+        if (!fullSyncIds.isEmpty() || !stockSyncIds.isEmpty()) {
+            // 一次后台批量修改可能很大，分批同步，每批一次 IN 查询 + 一次 bulk
+            for (List<Long> batch : partition(fullSyncIds)) {
+                productCacheService.evictSkuCaches(batch);
+                dataSyncService.syncSkus(batch);
+            }
+            for (List<Long> batch : partition(stockSyncIds)) {
+                productCacheService.evictSkuCaches(batch);
+                dataSyncService.syncStockAndPrice(batch);
+            }
+            System.out.println("增量同步完成 (" + since + ", " + until + "]: 完整同步 "
+                    + fullSyncIds.size() + " 个 SKU, 库存同步 " + stockSyncIds.size() + " 个 SKU");
+        }
+
+        watermark.setWatermark(until);
+        syncWatermarkRepository.save(watermark);
+    }
+
+    private LocalDateTime databaseNow() {
+        Object now = entityManager.createNativeQuery("SELECT NOW(3)").getSingleResult();
+        return now instanceof Timestamp timestamp ? timestamp.toLocalDateTime() : (LocalDateTime) now;
+    }
+
+    private List<List<Long>> partition(Set<Long> ids) {
+        List<List<Long>> batches = new ArrayList<>();
+        List<Long> batch = new ArrayList<>(Math.min(ids.size(), batchSize));
+        for (Long id : ids) {
+            batch.add(id);
+            if (batch.size() == batchSize) {
+                batches.add(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+}
@@ -0,0 +1,289 @@
+package com.qimo.shiwu.service;
+
+import com.qimo.shiwu.data.mysql.entity.Inventory;
+import com.qimo.shiwu.data.mysql.entity.Order;
+import com.qimo.shiwu.data.mysql.repository.InventoryRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ===================================================================
+ * 服务 7: 库存合并提交器 (Group Commit)
+ * ===================================================================
+ * [开发者注意]:
+ * OrderService 的 COMBINING 模式使用。热点 SKU 上的并发扣减请求先在本机内存里排队，
+ * 每个 SKU 在 `window-ms` 时间窗内 (或攒够 `batch-size` 个) 合并成一批:
+ *   一次 SELECT ... FOR UPDATE + 一次 UPDATE + 一批订单 INSERT (JDBC batch) + 一次 COMMIT，
+ * 然后按到达顺序逐个判定成功/库存不足，并完成每个调用方的 Future。
+ * 订单和库存在同一个事务里提交，扣减成功的请求不会出现 "库存扣了、订单没写" 的情况。
+ *
+ * 同一个 SKU 同一时刻只有一批在提交；提交期间新到的请求自动组成下一批 (提交结束后立刻刷出)。
+ * 队列刷空的 SKU 会从 slots 中移除，不会随着访问过的 SKU 越来越多而一直占着内存。
+ * 多节点部署时各节点各自合并，节点之间靠行锁串行，仍然不会超卖。
+ */
+@Service
+public class InventoryCombiner {
+
+    @Autowired private InventoryRepository inventoryRepository;
+    @Autowired private TransactionTemplate transactionTemplate;
+    @Autowired private SyncOutboxService syncOutboxService;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Value("${shiwu.order.combiner.window-ms:2}")
+    private long windowMs;
+
+    @Value("${shiwu.order.combiner.batch-size:100}")
+    private int batchSize;
+
+    @Value("${shiwu.order.combiner.threads:4}")
+    private int threads;
+
+    private ScheduledExecutorService executor;
+    private final Map<Long, SkuSlot> slots = new ConcurrentHashMap<>();
+
+    // 统计: 请求数 / 提交次数，二者之比就是合并倍数
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong commitCount = new AtomicLong();
+
+    /**
+     * 一个待合并的扣减请求
+     */
+    private static final class PendingDeduction {
+        final int quantity;
+        final Order order;
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        PendingDeduction(int quantity, Order order) {
+            this.quantity = quantity;
+            this.order = order;
+        }
+    }
+
+    /**
+     * 单个 SKU 的排队状态 (所有字段由 this 保护)
+     */
+    private static final class SkuSlot {
+        final Queue<PendingDeduction> queue = new ArrayDeque<>();
+        boolean timerArmed;
+        boolean flushing;
+        /** 已从 slots 移除，submit 拿到它时要重新取一个 */
+        boolean retired;
+    }
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger seq = new AtomicInteger();
+        executor = Executors.newScheduledThreadPool(threads, r -> {
+            Thread t = new Thread(r, "inventory-combiner-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdown();
+    }
+
+    /**
+     * [核心功能]: 提交一次扣减请求
+     * @param order 扣减成功时随库存一起写入的订单 (主键已分配，尚未持久化)；null 表示只扣库存
+     * @return Future，完成值 true 表示库存已扣减 (订单已写入，已提交)，false 表示库存不足；
+     *         数量不为正、商品不存在或数据库异常时异常完成
+     */
+    public CompletableFuture<Boolean> submit(Long skuId, int quantity, Order order) {
+        if (quantity <= 0) {
+            // 不能进批次: applyBatch 的 "quantity <= remaining" 对负数恒成立，会给同批后面的请求凭空加库存
+            return CompletableFuture.failedFuture(new RuntimeException("购买数量必须大于 0"));
+        }
+        PendingDeduction pending = new PendingDeduction(quantity, order);
+        requestCount.incrementAndGet();
+        boolean flushNow = false;
+        boolean armTimer = false;
+        SkuSlot slot;
+        while (true) {
+            slot = slots.computeIfAbsent(skuId, id -> new SkuSlot());
+            synchronized (slot) {
+                if (slot.retired) {
+                    continue; // 刚被移除，重新取
+                }
+                slot.queue.add(pending);
+                if (!slot.flushing) {
+                    if (slot.queue.size() >= batchSize) {
+                        flushNow = true;
+                    } else if (!slot.timerArmed) {
+                        slot.timerArmed = true;
+                        armTimer = true;
+                    }
+                }
+                // flushing 时不用做任何事: 当前批提交完会接着刷出这些请求
+                break;
+            }
+        }
+        SkuSlot armed = slot;
+        if (flushNow) {
+            executor.execute(() -> flush(skuId, armed));
+        } else if (armTimer) {
+            executor.schedule(() -> flush(skuId, armed), windowMs, TimeUnit.MILLISECONDS);
+        }
+        return pending.future;
+    }
+
+    /**
+     * 撤回一个还在排队的请求 (调用方等待超时时使用)。
+     * @return true 已撤回，库存和订单都不会被写入；false 请求已进入正在提交的批次 (或已完成)，结果以 Future 为准
+     */
+    public boolean withdraw(Long skuId, CompletableFuture<Boolean> future) {
+        SkuSlot slot = slots.get(skuId);
+        if (slot == null) {
+            return false;
+        }
+        synchronized (slot) {
+            Iterator<PendingDeduction> it = slot.queue.iterator();
+            while (it.hasNext()) {
+                PendingDeduction pending = it.next();
+                if (pending.future == future) {
+                    it.remove();
+                    pending.future.cancel(false);
+                    retireIfIdle(skuId, slot);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private void flush(Long skuId, SkuSlot slot) {
+        List<PendingDeduction> batch;
+        synchronized (slot) {
+            if (slot.flushing || slot.queue.isEmpty()) {
+                slot.timerArmed = false;
+                retireIfIdle(skuId, slot);
+                return;
+            }
+            slot.flushing = true;
+            slot.timerArmed = false;
+            batch = new ArrayList<>(Math.min(slot.queue.size(), batchSize));
+            while (!slot.queue.isEmpty() && batch.size() < batchSize) {
+                batch.add(slot.queue.poll());
+            }
+        }
+
+        try {
+            boolean[] granted = transactionTemplate.execute(status -> applyBatch(skuId, batch));
+            commitCount.incrementAndGet();
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).future.complete(granted[i]);
+            }
+        } catch (Exception e) {
+            for (PendingDeduction pending : batch) {
+                pending.future.completeExceptionally(e);
+            }
+        } finally {
+            boolean more;
+            synchronized (slot) {
+                slot.flushing = false;
+                more = !slot.queue.isEmpty();
+                if (more) {
+                    slot.timerArmed = false;
+                } else {
+                    retireIfIdle(skuId, slot);
+                }
+            }
+            if (more) {
+                // 提交期间到达的请求已经等了一个提交周期，直接刷出
+                executor.execute(() -> flush(skuId, slot));
+            }
+        }
+    }
+
+    /**
+     * [持有 slot 锁时调用] 没有排队、没有在提交、也没有待触发的定时器时，把 slot 从 slots 移除
+     */
+    private void retireIfIdle(Long skuId, SkuSlot slot) {
+        if (!slot.retired && !slot.flushing && !slot.timerArmed && slot.queue.isEmpty()) {
+            slot.retired = true;
+            slots.remove(skuId, slot);
+        }
+    }
+
+    /**
+     * [事务内] 锁住库存行，按到达顺序判定每个请求，最后一次性写回库存，并把成功请求的订单攒成一批 INSERT。
+     * 订单主键由调用方预先分配，所以用 persist (save 对已有主键的实体会走 merge，先 SELECT 再 INSERT)。
+     */
+    private boolean[] applyBatch(Long skuId, List<PendingDeduction> batch) {
+        // 假设 inventory_id == skuId
+        Inventory inventory = inventoryRepository.findByIdForUpdate(skuId)
+                .orElseThrow(() -> new RuntimeException("商品不存在"));
+
+        int remaining = inventory.getInventoryQuantity();
+        boolean[] granted = new boolean[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            int quantity = batch.get(i).quantity;
+            if (quantity <= remaining) {
+                remaining -= quantity;
+                granted[i] = true;
+            }
+        }
+
+        if (remaining != inventory.getInventoryQuantity()) {
+            inventory.setInventoryQuantity(remaining);
+            inventory.setInventoryUpdateTime(LocalDateTime.now());
+            inventoryRepository.save(inventory);
+            // 一批只写一条发件箱事件，缓存清理和 ES 同步也随之合并
+            syncOutboxService.recordStockChanges(List.of(skuId));
+        }
+
+        boolean hasOrders = false;
+        for (int i = 0; i < batch.size(); i++) {
+            Order order = batch.get(i).order;
+            if (granted[i] && order != null) {
+                entityManager.persist(order);
+                hasOrders = true;
+            }
+        }
+        if (hasOrders) {
+            entityManager.flush();
+        }
+        return granted;
+    }
+
+    /**
+     * 合并倍数 = 请求数 / 提交次数 (越大说明合并效果越好)
+     */
+    public double getCombiningRatio() {
+        long commits = commitCount.get();
+        return commits == 0 ? 0 : (double) requestCount.get() / commits;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getCommitCount() {
+        return commitCount.get();
+    }
+}
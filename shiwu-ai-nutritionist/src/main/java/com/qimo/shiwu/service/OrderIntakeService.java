@@ -0,0 +1,195 @@
+package com.qimo.shiwu.service;
+
+import com.qimo.shiwu.data.mysql.entity.Order;
+import com.qimo.shiwu.dto.IntakePartitionStats;
+import com.qimo.shiwu.dto.OrderTicket;
+import com.qimo.shiwu.util.SnowflakeIdGenerator;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * ===================================================================
+ * 服务 8: 排队下单服务 (按 SKU 分区的单写线程流水线)
+ * ===================================================================
+ * [开发者注意]:
+ * 抢购时不再"拿不到锁就失败"，而是把请求放进有界的内存队列，立即返回一个 OrderTicket。
+ * 队列按 skuId 哈希分成若干分区，每个分区只有一个写线程，串行处理本分区的订单:
+ *   - 同一个 SKU 永远落在同一个分区，所以本机内不存在对同一库存行的并发写，不需要任何锁；
+ *   - 写线程不加分布式锁，但按 inventory-mode 扣减库存: REDIS_LUA / SHARDED 走 Redis 预扣 (与普通下单共用计数器)，
+ *     其余模式用无锁条件扣减落库，多节点部署时仍由 InnoDB 行锁兜底防超卖。
+ * (思路类似 Disruptor 的 RingBuffer + 单消费者，这里用 ArrayBlockingQueue 实现)
+ *
+ * 注意: 队列在内存中，进程崩溃时尚未处理的请求会丢失 (调用方会一直看到 QUEUED，直到凭证过期)。
+ */
+@Service
+public class OrderIntakeService {
+
+    @Autowired private OrderService orderService;
+    @Autowired private SnowflakeIdGenerator idGenerator;
+
+    @Value("${shiwu.order.intake.partitions:8}")
+    private int partitionCount;
+
+    @Value("${shiwu.order.intake.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${shiwu.order.intake.drain-batch-size:64}")
+    private int drainBatchSize;
+
+    @Value("${shiwu.order.intake.ticket-retention-ms:600000}")
+    private long ticketRetentionMs;
+
+    private Partition[] partitions;
+    private final Map<Long, OrderTicket> tickets = new ConcurrentHashMap<>();
+
+    /**
+     * 一个分区: 有界队列 + 唯一的写线程 + 延迟统计
+     */
+    private final class Partition implements Runnable {
+        final int index;
+        final BlockingQueue<OrderTicket> queue = new ArrayBlockingQueue<>(queueCapacity);
+        final Thread writer;
+        final AtomicLong processed = new AtomicLong();
+        final AtomicLong totalLatencyMillis = new AtomicLong();
+        final AtomicLong maxLatencyMillis = new AtomicLong();
+        volatile boolean running = true;
+
+        Partition(int index) {
+            this.index = index;
+            this.writer = new Thread(this, "order-intake-" + index);
+            this.writer.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<OrderTicket> batch = new ArrayList<>(drainBatchSize);
+            while (running) {
+                try {
+                    // 阻塞等第一个，再把已经排队的一次性取走，减少队列上的竞争
+                    batch.add(queue.take());
+                    queue.drainTo(batch, drainBatchSize - 1);
+                    for (OrderTicket ticket : batch) {
+                        process(ticket);
+                    }
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        private void process(OrderTicket ticket) {
+            try {
+                Order order = orderService.createOrderSingleWriter(
+                        ticket.getUserId(), ticket.getSkuId(), ticket.getQuantity(), ticket.getAddress());
+                ticket.succeed(order.getOrderId());
+            } catch (Exception e) {
+                ticket.fail(e.getMessage());
+            }
+            long latency = ticket.getFinishTimeMillis() - ticket.getSubmitTimeMillis();
+            processed.incrementAndGet();
+            totalLatencyMillis.addAndGet(latency);
+            maxLatencyMillis.accumulateAndGet(latency, Math::max);
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        partitions = new Partition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition(i);
+            partitions[i].writer.start();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        for (Partition partition : partitions) {
+            partition.running = false;
+            partition.writer.interrupt();
+        }
+    }
+
+    /**
+     * [核心功能]: 排队下单，立即返回凭证
+     * 队列满时直接拒绝 (有界队列就是背压)。
+     */
+    public OrderTicket submitOrder(Long userId, Long skuId, int quantityToBuy, String address) {
+        OrderTicket ticket = new OrderTicket(idGenerator.nextId(), userId, skuId, quantityToBuy, address);
+        Partition partition = partitions[partitionOf(skuId)];
+        tickets.put(ticket.getTicketId(), ticket);
+        if (!partition.queue.offer(ticket)) {
+            tickets.remove(ticket.getTicketId());
+            throw new RuntimeException("排队人数过多，请稍后再试");
+        }
+        return ticket;
+    }
+
+    /**
+     * 排队下单，完成 (成功或失败) 时回调 callback (在写线程上执行，回调里不要做耗时操作)
+     */
+    public OrderTicket submitOrder(Long userId, Long skuId, int quantityToBuy, String address,
+                                   Consumer<OrderTicket> callback) {
+        OrderTicket ticket = submitOrder(userId, skuId, quantityToBuy, address);
+        ticket.getCompletion().thenAccept(callback);
+        return ticket;
+    }
+
+    /**
+     * 轮询凭证状态 (过期或不存在时返回 null)
+     */
+    public OrderTicket getTicket(Long ticketId) {
+        return tickets.get(ticketId);
+    }
+
+    /**
+     * 各分区的排队深度
+     */
+    public int[] getQueueDepths() {
+        int[] depths = new int[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            depths[i] = partitions[i].queue.size();
+        }
+        return depths;
+    }
+
+    /**
+     * 各分区的排队深度 + 处理量 + 延迟
+     */
+    public List<IntakePartitionStats> getPartitionStats() {
+        List<IntakePartitionStats> stats = new ArrayList<>(partitions.length);
+        for (Partition p : partitions) {
+            long processed = p.processed.get();
+            double avg = processed == 0 ? 0 : (double) p.totalLatencyMillis.get() / processed;
+            stats.add(new IntakePartitionStats(p.index, p.queue.size(), processed, avg, p.maxLatencyMillis.get()));
+        }
+        return stats;
+    }
+
+    /**
+     * 定期清理已完成且过期的凭证
+     */
+    @Scheduled(fixedDelayString = "${shiwu.order.intake.ticket-retention-ms:600000}")
+    public void purgeExpiredTickets() {
+        long deadline = System.currentTimeMillis() - ticketRetentionMs;
+        tickets.values().removeIf(t -> t.isDone() && t.getFinishTimeMillis() < deadline);
+    }
+
+    private int partitionOf(Long skuId) {
+        return Math.floorMod(Long.hashCode(skuId), partitions.length);
+    }
+}
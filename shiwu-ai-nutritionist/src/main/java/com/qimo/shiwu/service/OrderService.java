@@ -2,20 +2,38 @@ package com.qimo.shiwu.service;
 
 import com.qimo.shiwu.data.mysql.entity.Inventory;
 import com.qimo.shiwu.data.mysql.entity.Order;
+import com.qimo.shiwu.data.mysql.entity.RecipeRecord;
+import com.qimo.shiwu.data.mysql.entity.SKU;
 import com.qimo.shiwu.data.mysql.entity.User;
 import com.qimo.shiwu.data.mysql.repository.InventoryRepository;
 import com.qimo.shiwu.data.mysql.repository.OrderRepository;
+import com.qimo.shiwu.data.mysql.repository.SKURepository;
 import com.qimo.shiwu.data.mysql.repository.UserRepository;
+import com.qimo.shiwu.dto.CartItem;
+import com.qimo.shiwu.dto.CheckoutData;
+import com.qimo.shiwu.util.RedisLeaseLock;
 import com.qimo.shiwu.util.SnowflakeIdGenerator;
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * ===================================================================
@@ -23,94 +41,542 @@ import java.util.concurrent.TimeUnit;
  * ===================================================================
  * [开发者注意]:
  * 封装高并发下的订单创建(防超卖)逻辑。
+ * 库存扣减方式由 `shiwu.order.inventory-mode` 决定，见 {@link InventoryMode}。
+ *
+ * 缓存清理和 ES 同步不在下单链路上执行: 事务内只写一条发件箱事件，由 SyncOutboxService 异步批量完成。
+ *
+ * 事务使用 TransactionTemplate 编程式控制，保证 "加锁 -> 事务提交 -> 释放锁" 的顺序
+ * (如果用 @Transactional，事务会在 finally 释放锁之后才提交，别的线程可能读到未提交前的库存)。
  */
 @Service
 public class OrderService {
 
-    @Autowired private StringRedisTemplate redisTemplate; // 用于分布式锁
+    /**
+     * 库存扣减模式
+     */
+    public enum InventoryMode {
+        /** 默认: Redis 租约锁 (公平等待 + 续期) + 带栅栏令牌的 MySQL 扣减，见 RedisLeaseLock */
+        LOCK,
+        /** 大促: Redis Lua 原子预扣，MySQL 异步回写 (需要先用 RedisStockService 预热，未预热时懒加载) */
+        REDIS_LUA,
+        /** 无锁: 单条条件 UPDATE (inventory_quantity >= ?) 原子扣减 */
+        CONDITIONAL_UPDATE,
+        /** 无锁: 基于 @Version 的乐观锁，冲突时重试 */
+        OPTIMISTIC,
+        /** 热点: 本机内合并同一 SKU 的并发扣减，一批只提交一次 (Group Commit)，见 InventoryCombiner */
+        COMBINING,
+        /** 超热点: 库存拆成多个 Redis 子桶分散竞争，MySQL 异步回写，见 ShardedStockService */
+        SHARDED
+    }
+
+    @Autowired private RedisLeaseLock leaseLock; // 用于分布式锁
     @Autowired private InventoryRepository inventoryRepository;
     @Autowired private OrderRepository orderRepository;
     @Autowired private SnowflakeIdGenerator idGenerator;
-    @Autowired private ProductCacheService productCacheService;
-    @Autowired private DataSyncService dataSyncService;
     @Autowired private UserRepository userRepository; // 假设需要关联用户
+    @Autowired private RedisStockService redisStockService;
+    @Autowired private TransactionTemplate transactionTemplate;
+    @Autowired private SKURepository skuRepository;
+    @Autowired private InventoryCombiner inventoryCombiner;
+    @Autowired private SyncOutboxService syncOutboxService;
+    @Autowired private ShardedStockService shardedStockService;
+    @Autowired private SkuSalesService skuSalesService; // 成交后累加销量 (精排用)
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Value("${shiwu.order.inventory-mode:LOCK}")
+    private InventoryMode inventoryMode;
+
+    @Value("${shiwu.lock.max-wait-ms:2000}")
+    private long lockMaxWaitMs;
+
+    @Value("${shiwu.order.optimistic-max-retries:3}")
+    private int optimisticMaxRetries;
+
+    @Value("${shiwu.order.combiner.wait-timeout-ms:3000}")
+    private long combinerWaitTimeoutMs;
 
     private static final String LOCK_KEY_PREFIX = "lock:inventory:";
 
+    /**
+     * 库存锁的栅栏计数器丢失时，从库存行上记录的令牌继续计数
+     */
+    @PostConstruct
+    public void registerFenceFloor() {
+        leaseLock.registerFenceFloor(LOCK_KEY_PREFIX, name -> inventoryRepository
+                .findFenceToken(Long.valueOf(name.substring(LOCK_KEY_PREFIX.length())))
+                .orElse(0L));
+    }
+
     /**
      * [核心功能]: 创建订单 (防超卖)
-     * 封装了 Redis 分布式锁 和 MySQL 事务。
+     * 按配置的库存模式分派。
      */
-    @Transactional
     public Order createOrder(Long userId, Long skuId, int quantityToBuy, String address) {
+        checkQuantity(quantityToBuy);
+        Order order = switch (inventoryMode) {
+            case REDIS_LUA -> createOrderWithRedisStock(userId, skuId, quantityToBuy, address);
+            case CONDITIONAL_UPDATE -> createOrderWithConditionalUpdate(userId, skuId, quantityToBuy, address);
+            case OPTIMISTIC -> createOrderWithOptimisticLock(userId, skuId, quantityToBuy, address);
+            case COMBINING -> createOrderWithCombiner(userId, skuId, quantityToBuy, address);
+            case SHARDED -> createOrderWithShardedStock(userId, skuId, quantityToBuy, address);
+            default -> createOrderWithLock(userId, skuId, quantityToBuy, address);
+        };
+        skuSalesService.recordSales(Map.of(skuId, quantityToBuy));
+        return order;
+    }
+
+    /**
+     * 数量必须为正: 各模式的 "库存 >= 数量" 判断对 0 和负数恒成立，负数会变成加库存
+     */
+    private static void checkQuantity(int quantityToBuy) {
+        if (quantityToBuy <= 0) {
+            throw new RuntimeException("创建订单失败: 购买数量必须大于 0");
+        }
+    }
+
+    /**
+     * LOCK 模式: Redis 租约锁 (公平排队等待 + 看门狗续期) + 带栅栏令牌的 MySQL 扣减。
+     * 抢不到锁时最多排队等待 shiwu.lock.max-wait-ms，而不是立即失败。
+     */
+    private Order createOrderWithLock(Long userId, Long skuId, int quantityToBuy, String address) {
         // 根据 qimo.sql, inventory_id 和 sku_id 是一对一关系
         // 假设 inventory_id == skuId (如果不是, 你需要先查询 SKU 找到 inventory_id)
         Long inventoryId = skuId;
-        String lockKey = LOCK_KEY_PREFIX + inventoryId;
-        boolean hasLock = false;
+
+        // 1. 获取租约锁 (排队等待，由锁释放通知唤醒)
+        RedisLeaseLock.Lease lease = leaseLock.tryLock(LOCK_KEY_PREFIX + inventoryId, lockMaxWaitMs);
+        if (lease == null) {
+            throw new RuntimeException("创建订单失败: 系统繁忙，请稍后再试");
+        }
 
         try {
-            // 1. 获取 Redis 分布式锁 (简单实现)
-            // 尝试获取锁，锁自动过期30秒
-            hasLock = Boolean.TRUE.equals(redisTemplate.opsForValue().setIfAbsent(lockKey, "locked", 30, TimeUnit.SECONDS));
+            return transactionTemplate.execute(status -> {
+                // 2. [事务内] 带栅栏令牌扣减库存 (锁过期后迟到的写入会被拒绝)
+                if (lease.isLost()) {
+                    throw new RuntimeException("锁已失效，请重试");
+                }
+                int updated = inventoryRepository.deductWithFence(
+                        inventoryId, quantityToBuy, lease.getFence(), LocalDateTime.now());
+                if (updated == 0) {
+                    throw new RuntimeException(explainFencedFailure(inventoryId, lease.getFence()));
+                }
 
-            if (!hasLock) {
-                // 未获取到锁，系统繁忙
-                throw new RuntimeException("系统繁忙，请稍后再试");
-            }
+                // 3. [事务内] 创建订单，并写入发件箱事件 (提交后异步清理缓存 和 同步ES)
+                syncOutboxService.recordStockChanges(List.of(skuId));
+                return saveOrder(userId, address);
+            });
+        } catch (Exception e) {
+            // 事务已由 TransactionTemplate 回滚
+            throw new RuntimeException("创建订单失败: " + e.getMessage(), e);
+        } finally {
+            // 4. 事务提交后释放锁 (只释放自己的 token)，并通知排队的请求
+            leaseLock.unlock(lease);
+        }
+    }
 
-            // 2. [事务内] 检查并扣减库存
-            Inventory inventory = inventoryRepository.findById(inventoryId)
-                    .orElseThrow(() -> new RuntimeException("商品不存在"));
+    /**
+     * 辅助方法：带令牌的扣减影响 0 行时，区分 "商品不存在" / "锁已失效" / "库存不足"
+     */
+    private String explainFencedFailure(Long inventoryId, long fence) {
+        Inventory inventory = inventoryRepository.findById(inventoryId).orElse(null);
+        if (inventory == null) {
+            return "商品不存在";
+        }
+        if (inventory.getFenceToken() != null && inventory.getFenceToken() >= fence) {
+            // 也可能是 Redis 中的计数器落后于数据库 (切到了落后的从库)，抬高计数器，重试即可成功
+            leaseLock.raiseFence(LOCK_KEY_PREFIX + inventoryId, inventory.getFenceToken());
+            return "锁已失效，请重试";
+        }
+        return "库存不足";
+    }
 
-            if (inventory.getInventoryQuantity() < quantityToBuy) {
-                throw new RuntimeException("库存不足");
+    /**
+     * REDIS_LUA 模式: 库存在 Redis 中原子预扣，下单链路上只有一次 Lua 调用 + 一次订单 INSERT。
+     * MySQL 库存由 RedisStockService 的回写任务异步更新，缓存和 ES 随回写走发件箱。
+     */
+    private Order createOrderWithRedisStock(Long userId, Long skuId, int quantityToBuy, String address) {
+        // 1. Lua 原子预扣 (未预热时先用 MySQL 库存懒加载一次)
+        long left = redisStockService.tryReserve(skuId, quantityToBuy);
+        if (left == RedisStockService.NOT_LOADED) {
+            try {
+                redisStockService.loadIfAbsent(skuId);
+            } catch (Exception e) {
+                throw new RuntimeException("创建订单失败: " + e.getMessage(), e);
             }
+            left = redisStockService.tryReserve(skuId, quantityToBuy);
+        }
+        if (left == RedisStockService.INSUFFICIENT) {
+            throw new RuntimeException("创建订单失败: 库存不足");
+        }
+        if (left < 0) {
+            throw new RuntimeException("创建订单失败: 商品库存未预热");
+        }
+
+        // 2. [事务内] 创建订单，失败则归还预扣的库存
+        try {
+            return transactionTemplate.execute(status -> saveOrder(userId, address));
+        } catch (Exception e) {
+            redisStockService.release(skuId, quantityToBuy);
+            throw new RuntimeException("创建订单失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * SHARDED 模式: 从库存分桶中扣减，下单链路上只有 Redis 调用 + 一次订单 INSERT。
+     * MySQL 库存由 ShardedStockService 的回写任务异步更新。
+     */
+    private Order createOrderWithShardedStock(Long userId, Long skuId, int quantityToBuy, String address) {
+        if (!shardedStockService.tryReserve(skuId, quantityToBuy)) {
+            throw new RuntimeException("创建订单失败: 库存不足");
+        }
+        try {
+            return transactionTemplate.execute(status -> saveOrder(userId, address));
+        } catch (Exception e) {
+            shardedStockService.release(skuId, quantityToBuy);
+            throw new RuntimeException("创建订单失败: " + e.getMessage(), e);
+        }
+    }
 
-            inventory.setInventoryQuantity(inventory.getInventoryQuantity() - quantityToBuy);
-            inventory.setInventoryUpdateTime(LocalDateTime.now());
-            inventoryRepository.save(inventory);
+    /**
+     * 供 OrderIntakeService 的分区写线程调用: 同一 SKU 在本机只有一个写线程，因此不需要分布式锁。
+     * 库存仍按配置的 inventory-mode 扣减在它的权威副本上:
+     * REDIS_LUA / SHARDED 的可售量以 Redis 计数器为准，必须走同样的 Redis 预扣，否则回写任务会把同一份库存再卖一次；
+     * 其余模式以 MySQL 为准，统一用无锁的条件扣减。
+     */
+    Order createOrderSingleWriter(Long userId, Long skuId, int quantityToBuy, String address) {
+        checkQuantity(quantityToBuy);
+        Order order = switch (inventoryMode) {
+            case REDIS_LUA -> createOrderWithRedisStock(userId, skuId, quantityToBuy, address);
+            case SHARDED -> createOrderWithShardedStock(userId, skuId, quantityToBuy, address);
+            default -> createOrderWithConditionalUpdate(userId, skuId, quantityToBuy, address);
+        };
+        skuSalesService.recordSales(Map.of(skuId, quantityToBuy));
+        return order;
+    }
+
+    /**
+     * CONDITIONAL_UPDATE 模式: 不加任何分布式锁。
+     * 库存 "检查 + 扣减" 由一条带条件的 UPDATE 完成，并发安全由 InnoDB 行锁保证，
+     * 省掉了加锁/解锁两次 Redis 往返，也不会因为锁过期 (30s) 卡住。
+     */
+    private Order createOrderWithConditionalUpdate(Long userId, Long skuId, int quantityToBuy, String address) {
+        Long inventoryId = skuId; // 假设 inventory_id == skuId
+        try {
+            Order order = transactionTemplate.execute(status -> {
+                int updated = inventoryRepository.deductIfSufficient(inventoryId, quantityToBuy, LocalDateTime.now());
+                if (updated == 0) {
+                    // 只在失败时多查一次，区分 "商品不存在" 和 "库存不足"
+                    throw new RuntimeException(inventoryRepository.existsById(inventoryId) ? "库存不足" : "商品不存在");
+                }
+                syncOutboxService.recordStockChanges(List.of(skuId));
+                return saveOrder(userId, address);
+            });
+            return order;
+        } catch (Exception e) {
+            throw new RuntimeException("创建订单失败: " + e.getMessage(), e);
+        }
+    }
 
-            // 3. [事务内] 创建订单
-            User user = userRepository.findById(userId)
-                    .orElseThrow(() -> new RuntimeException("用户不存在"));
+    /**
+     * OPTIMISTIC 模式: 读-改-写 + @Version 校验，不加任何分布式锁。
+     * 版本冲突时整个事务回滚并重试 (最多 shiwu.order.optimistic-max-retries 次)，
+     * 适合冲突不频繁的普通商品；热点商品请用 CONDITIONAL_UPDATE 或 REDIS_LUA。
+     */
+    private Order createOrderWithOptimisticLock(Long userId, Long skuId, int quantityToBuy, String address) {
+        Long inventoryId = skuId; // 假设 inventory_id == skuId
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Order order = transactionTemplate.execute(status -> {
+                    Inventory inventory = inventoryRepository.findById(inventoryId)
+                            .orElseThrow(() -> new RuntimeException("商品不存在"));
 
-            Order order = new Order();
-            order.setOrderId(idGenerator.nextId());
-            order.setOrderTime(LocalDateTime.now());
-            order.setOrderAdress(address);
+                    if (inventory.getInventoryQuantity() < quantityToBuy) {
+                        throw new RuntimeException("库存不足");
+                    }
 
-            // TODO: 在 Order 实体中添加 user 字段的 @ManyToOne 关联
-            // order.setUser(user);
+                    inventory.setInventoryQuantity(inventory.getInventoryQuantity() - quantityToBuy);
+                    inventory.setInventoryUpdateTime(LocalDateTime.now());
+                    // saveAndFlush 立即执行 UPDATE ... WHERE version = ?，冲突时抛出 OptimisticLockingFailureException
+                    inventoryRepository.saveAndFlush(inventory);
 
-            // TODO: 处理订单与食谱的关联 (RecipeRecord)
-            // order.setRecipeRecords(...);
+                    syncOutboxService.recordStockChanges(List.of(skuId));
+                    return saveOrder(userId, address);
+                });
+                return order;
+            } catch (OptimisticLockingFailureException e) {
+                if (attempt >= optimisticMaxRetries) {
+                    throw new RuntimeException("创建订单失败: 系统繁忙，请稍后再试", e);
+                }
+                // 版本冲突，重新读取最新库存再试
+            } catch (Exception e) {
+                throw new RuntimeException("创建订单失败: " + e.getMessage(), e);
+            }
+        }
+    }
 
-            orderRepository.save(order);
+    /**
+     * COMBINING 模式: 扣减和订单一起交给 InventoryCombiner，一批请求的库存 UPDATE 和订单 INSERT 在同一个事务里提交。
+     * 用户在入队前校验，订单主键入队前分配。
+     */
+    private Order createOrderWithCombiner(Long userId, Long skuId, int quantityToBuy, String address) {
+        if (!userRepository.existsById(userId)) {
+            throw new RuntimeException("创建订单失败: 用户不存在");
+        }
+        Order order = newOrder(address);
+        CompletableFuture<Boolean> future = inventoryCombiner.submit(skuId, quantityToBuy, order);
+        boolean granted;
+        try {
+            try {
+                granted = future.get(combinerWaitTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (inventoryCombiner.withdraw(skuId, future)) {
+                    throw new RuntimeException("创建订单失败: 系统繁忙，请稍后再试", e);
+                }
+                // 已经在提交中，等这一批的事务结束
+                granted = future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException("创建订单失败: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("创建订单失败: 请求被中断", e);
+        }
+        if (!granted) {
+            throw new RuntimeException("创建订单失败: 库存不足");
+        }
+        // 库存变更事件已由 InventoryCombiner 在合并提交的事务里写入发件箱 (每批一条)
+        return order;
+    }
 
-            // 4. [事务提交后] 清理缓存 和 同步ES
-            // Spring 的 @Transactional 会在方法成功返回后提交事务
-            // (更优的实现是使用 TransactionalEventListener)
+    /**
+     * [核心功能]: 整篮结算 (一个食谱的全部食材一次下单)
+     * - 同一 SKU 合并，按 skuId 升序处理，所有锁/行锁都按同一顺序获取，不会死锁；
+     * - 库存扣减只发一批 JDBC (REDIS_LUA 模式下是一次 Lua 调用)；
+     * - Order + RecipeRecord + RecipeRecord_SKU 借助 Hibernate JDBC batch 一次 flush 写入；
+     * - 整篮的缓存清理和 ES 同步由发件箱中继一次批量完成。
+     * 其余无锁模式 (CONDITIONAL_UPDATE / OPTIMISTIC / COMBINING) 都使用批量条件 UPDATE。
+     */
+    public Order checkout(Long userId, CheckoutData data) {
+        SortedMap<Long, Integer> basket = normalizeBasket(data.getItems());
+        Order order = switch (inventoryMode) {
+            case REDIS_LUA -> checkoutWithRedisStock(userId, basket, data);
+            case SHARDED -> checkoutWithShardedStock(userId, basket, data);
+            case LOCK -> checkoutWithLocks(userId, basket, data);
+            default -> checkoutWithBatchUpdate(userId, basket, data);
+        };
+        skuSalesService.recordSales(basket);
+        return order;
+    }
 
-            productCacheService.evictSkuCache(skuId);
-            dataSyncService.syncSingleSku(skuId); // 触发ES近实时同步
+    /**
+     * LOCK 模式的整篮结算: 按 skuId 升序逐个加租约锁 (任何一个等待超时则全部释放)，
+     * 持有全部锁后执行带栅栏令牌的批量扣减。
+     */
+    private Order checkoutWithLocks(Long userId, SortedMap<Long, Integer> basket, CheckoutData data) {
+        List<RedisLeaseLock.Lease> acquired = new ArrayList<>(basket.size());
+        Map<Long, Long> fences = new HashMap<>();
+        try {
+            for (Long skuId : basket.keySet()) {
+                RedisLeaseLock.Lease lease = leaseLock.tryLock(LOCK_KEY_PREFIX + skuId, lockMaxWaitMs);
+                if (lease == null) {
+                    throw new RuntimeException("创建订单失败: 系统繁忙，请稍后再试");
+                }
+                acquired.add(lease);
+                fences.put(skuId, lease.getFence());
+            }
+            try {
+                return transactionTemplate.execute(status -> {
+                    for (RedisLeaseLock.Lease lease : acquired) {
+                        if (lease.isLost()) {
+                            throw new RuntimeException("锁已失效，请重试: " + lease.getName());
+                        }
+                    }
+                    int[] updated = inventoryRepository.batchDeductWithFence(basket, fences);
+                    int i = 0;
+                    for (Long skuId : basket.keySet()) {
+                        if (updated[i++] == 0) {
+                            throw new RuntimeException(explainFencedFailure(skuId, fences.get(skuId)) + ": " + skuId);
+                        }
+                    }
+                    syncOutboxService.recordStockChanges(basket.keySet());
+                    return saveOrderWithRecipe(userId, basket, data);
+                });
+            } catch (Exception e) {
+                throw new RuntimeException("创建订单失败: " + e.getMessage(), e);
+            }
+        } finally {
+            // 逆序释放
+            for (int i = acquired.size() - 1; i >= 0; i--) {
+                leaseLock.unlock(acquired.get(i));
+            }
+        }
+    }
 
+    /**
+     * 无锁整篮结算: 一个事务内批量条件扣减 + 批量写订单/食谱。
+     * 任何一个 SKU 扣减失败，整个事务回滚。
+     */
+    private Order checkoutWithBatchUpdate(Long userId, SortedMap<Long, Integer> basket, CheckoutData data) {
+        try {
+            Order order = transactionTemplate.execute(status -> {
+                int[] updated = inventoryRepository.batchDeductIfSufficient(basket);
+                int i = 0;
+                for (Long skuId : basket.keySet()) {
+                    if (updated[i++] == 0) {
+                        throw new RuntimeException("库存不足或商品不存在: " + skuId);
+                    }
+                }
+                syncOutboxService.recordStockChanges(basket.keySet());
+                return saveOrderWithRecipe(userId, basket, data);
+            });
             return order;
+        } catch (Exception e) {
+            throw new RuntimeException("创建订单失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * REDIS_LUA 模式的整篮结算: 一次 Lua 调用原子预扣整篮，MySQL/缓存/ES 由回写任务异步处理。
+     */
+    private Order checkoutWithRedisStock(Long userId, SortedMap<Long, Integer> basket, CheckoutData data) {
+        long result = redisStockService.tryReserveAll(basket);
+        if (result < 0) {
+            // 有 SKU 未预热: 懒加载整篮后重试一次
+            try {
+                for (Long skuId : basket.keySet()) {
+                    redisStockService.loadIfAbsent(skuId);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException("创建订单失败: " + e.getMessage(), e);
+            }
+            result = redisStockService.tryReserveAll(basket);
+        }
+        if (result > 0) {
+            Long skuId = new ArrayList<>(basket.keySet()).get((int) result - 1);
+            throw new RuntimeException("创建订单失败: 库存不足: " + skuId);
+        }
+        if (result < 0) {
+            throw new RuntimeException("创建订单失败: 商品库存未预热");
+        }
 
+        try {
+            return transactionTemplate.execute(status -> saveOrderWithRecipe(userId, basket, data));
         } catch (Exception e) {
-            // 确保事务回滚
+            redisStockService.releaseAll(basket);
             throw new RuntimeException("创建订单失败: " + e.getMessage(), e);
-        } finally {
-            // 5. 释放锁
-            if (hasLock) {
-                // 释放锁 (Lua 脚本保证原子性，防止释放他人锁)
-                String script = "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end";
-                redisTemplate.execute(
-                        new DefaultRedisScript<>(script, Long.class),
-                        List.of(lockKey),
-                        "locked"
-                );
+        }
+    }
+
+    /**
+     * SHARDED 模式的整篮结算: 按 skuId 升序逐个从分桶扣减，任何一个失败则归还已扣的部分。
+     */
+    private Order checkoutWithShardedStock(Long userId, SortedMap<Long, Integer> basket, CheckoutData data) {
+        List<Long> reserved = new ArrayList<>(basket.size());
+        try {
+            for (Map.Entry<Long, Integer> item : basket.entrySet()) {
+                if (!shardedStockService.tryReserve(item.getKey(), item.getValue())) {
+                    throw new RuntimeException("库存不足: " + item.getKey());
+                }
+                reserved.add(item.getKey());
+            }
+            return transactionTemplate.execute(status -> saveOrderWithRecipe(userId, basket, data));
+        } catch (Exception e) {
+            for (Long skuId : reserved) {
+                shardedStockService.release(skuId, basket.get(skuId));
+            }
+            throw new RuntimeException("创建订单失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 辅助方法：合并重复 SKU 并按 skuId 升序排列 (规范顺序，防死锁)
+     */
+    private SortedMap<Long, Integer> normalizeBasket(List<CartItem> items) {
+        if (items == null || items.isEmpty()) {
+            throw new RuntimeException("创建订单失败: 购物篮为空");
+        }
+        SortedMap<Long, Integer> basket = new TreeMap<>();
+        for (CartItem item : items) {
+            if (item.getSkuId() == null || item.getQuantity() <= 0) {
+                throw new RuntimeException("创建订单失败: 非法的购买项 " + item);
             }
+            basket.merge(item.getSkuId(), item.getQuantity(), Integer::sum);
+        }
+        return basket;
+    }
+
+    /**
+     * 辅助方法：[事务内] 创建订单 + 食谱记录 + 食谱与 SKU 的关联。
+     * 主键由雪花算法预先分配，所以用 persist 而不是 save
+     * (save 对已有主键的实体会走 merge，先 SELECT 再 INSERT，也无法攒成批)。
+     */
+    private Order saveOrderWithRecipe(Long userId, SortedMap<Long, Integer> basket, CheckoutData data) {
+        User user = userRepository.findById(userId)
+                .orElseThrow(() -> new RuntimeException("用户不存在"));
+
+        LocalDateTime now = LocalDateTime.now();
+        Order order = new Order();
+        order.setOrderId(idGenerator.nextId());
+        order.setOrderTime(now);
+        order.setOrderAdress(data.getAddress());
+        entityManager.persist(order);
+
+        RecipeRecord recipe = new RecipeRecord();
+        recipe.setRecipeId(idGenerator.nextId());
+        recipe.setRecipeCoverImageUrl(data.getRecipeCoverImageUrl() != null ? data.getRecipeCoverImageUrl() : "");
+        recipe.setRecipeProtein(orZero(data.getRecipeProtein()));
+        recipe.setRecipeCarbohydrate(orZero(data.getRecipeCarbohydrate()));
+        recipe.setRecipeFat(orZero(data.getRecipeFat()));
+        recipe.setRecipeFiber(orZero(data.getRecipeFiber()));
+        recipe.setRecipeUpdateTime(now);
+        recipe.setUser(user);
+        recipe.setOrder(order);
+        // getReferenceById 只创建代理，不会查询 SKU 表
+        List<SKU> skus = new ArrayList<>(basket.size());
+        for (Long skuId : basket.keySet()) {
+            skus.add(skuRepository.getReferenceById(skuId));
         }
+        recipe.setSkus(skus);
+        entityManager.persist(recipe);
+
+        // 一次 flush: 三张表的 INSERT 各自攒成一个 JDBC batch
+        entityManager.flush();
+        return order;
+    }
+
+    private static BigDecimal orZero(BigDecimal value) {
+        return value != null ? value : BigDecimal.ZERO;
+    }
+
+    /**
+     * 辅助方法：[事务内] 创建并保存订单
+     */
+    private Order saveOrder(Long userId, String address) {
+        User user = userRepository.findById(userId)
+                .orElseThrow(() -> new RuntimeException("用户不存在"));
+
+        Order order = newOrder(address);
+
+        // TODO: 在 Order 实体中添加 user 字段的 @ManyToOne 关联
+        // order.setUser(user);
+
+        // TODO: 处理订单与食谱的关联 (RecipeRecord)
+        // order.setRecipeRecords(...);
+
+        orderRepository.save(order);
+        return order;
+    }
+
+    /**
+     * 辅助方法：创建订单对象 (分配主键，尚未持久化)
+     */
+    private Order newOrder(String address) {
+        Order order = new Order();
+        order.setOrderId(idGenerator.nextId());
+        order.setOrderTime(LocalDateTime.now());
+        order.setOrderAdress(address);
+        return order;
     }
 }
@@ -1,11 +1,19 @@
 package com.qimo.shiwu.service;
 import com.qimo.shiwu.data.mysql.entity.SKU;
 import com.qimo.shiwu.data.mysql.repository.SKURepository;
+import com.qimo.shiwu.dto.SkuSnapshot;
 import org.springframework.beans.factory.annotation.Autowired;
+import com.qimo.shiwu.config.TieredCache;
+import com.qimo.shiwu.config.TieredCacheManager;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -13,21 +21,65 @@ import java.util.Optional;
  * 服务 2: 商品缓存服务
  * ===================================================================
  * [开发者注意]:
- * 封装 SKU 实体的 Cache-Aside (旁路缓存) 逻辑。
+ * 封装 SKU 的 Cache-Aside (旁路缓存) 逻辑。
+ * 缓存里存的是不可变的 SkuSnapshot (SKU + Product + 库存)，不是 JPA 实体，由 SnapshotCodec 编码。
  */
 @Service
 public class ProductCacheService {
 
+    static final String SKU_CACHE_NAME = "skuDetails";
+
     @Autowired
     private SKURepository skuRepository; // MySQL 仓库
+    @Autowired
+    private TieredCacheManager cacheManager;
 
     /**
-     * @Cacheable: 自动使用 Redis 缓存 (key = "skuDetails::[skuId]")
+     * @Cacheable: 自动使用两级缓存 (本地 L1 + Redis L2，Redis key = "skuDetails::[skuId]")
+     * sync = true: 缓存未命中时同一个 SKU 只有一个线程回源 (大促下单清缓存后不会有几百个请求同时查库)
      */
-    @Cacheable(value = "skuDetails", key = "#skuId")
-    public Optional<SKU> getSkuById(Long skuId) {
+    @Cacheable(value = "skuDetails", key = "#skuId", sync = true)
+    public Optional<SkuSnapshot> getSkuById(Long skuId) {
         System.out.println("正在从 MySQL 查询 SKU: " + skuId);
-        return skuRepository.findById(skuId);
+        return skuRepository.findSkusWithDetailsByIds(List.of(skuId)).stream().findFirst().map(SkuSnapshot::from);
+    }
+
+    /**
+     * [核心功能]: 批量版的 getSkuById (搜索结果回填使用)
+     * 与逐个调用相比，无论多少个 SKU 都只需要:
+     *   0. 先查本地 L1 (热点 SKU 通常到这里就全部命中了)；
+     *   1. 一次 pipeline 读 Redis 缓存；
+     *   2. 一次 IN 查询 (JOIN FETCH product/inventory) 查未命中的；
+     *   3. 一次 pipeline 把未命中的写回缓存。
+     * 这是下单清缓存后最热的读路径，所以未命中的 SKU 与 getSkuById 一样受防击穿保护
+     * (本节点单飞 + 跨节点 Redis 互斥 + 提前刷新，见 TieredCache.getAll)：
+     * 大促时一次清缓存，同一个 SKU 在整个集群里只回源一次。
+     * 读写都使用 "skuDetails" 缓存自身的 key 规则和值序列化器，与 @Cacheable 写入的数据互通。
+     *
+     * @return 按 skuIds 原顺序排列的 SKU (不存在的被跳过)，保证 ES 的召回顺序不被打乱
+     */
+    public List<SkuSnapshot> getSkusByIds(List<Long> skuIds) {
+        if (skuIds.isEmpty()) {
+            return List.of();
+        }
+        TieredCache skuCache = (TieredCache) cacheManager.getCache(SKU_CACHE_NAME);
+        Map<Long, SkuSnapshot> found = skuCache.getAll(skuIds, misses -> {
+            System.out.println("正在从 MySQL 批量查询 SKU: " + misses);
+            Map<Long, SkuSnapshot> loaded = new HashMap<>();
+            for (SKU sku : skuRepository.findSkusWithDetailsByIds(misses)) {
+                loaded.put(sku.getSkuId(), SkuSnapshot.from(sku));
+            }
+            return loaded;
+        });
+
+        List<SkuSnapshot> result = new ArrayList<>(skuIds.size());
+        for (Long skuId : skuIds) {
+            SkuSnapshot sku = found.get(skuId);
+            if (sku != null) {
+                result.add(sku);
+            }
+        }
+        return result;
     }
 
     /**
@@ -38,4 +90,17 @@ public class ProductCacheService {
         // 这个方法体可以是空的，注解会自动工作
         System.out.println("正在清除 SKU 缓存: " + skuId);
     }
+
+    /**
+     * 批量清除缓存 (整篮下单后调用)
+     * Redis 中一条多 key DEL 完成；本地 L1 随后清除，并用一条广播通知其他节点。
+     * 正在进行的回源 (可能读到了旧数据) 不会再把旧值写回缓存。
+     */
+    public void evictSkuCaches(Collection<Long> skuIds) {
+        if (skuIds.isEmpty()) {
+            return;
+        }
+        ((TieredCache) cacheManager.getCache(SKU_CACHE_NAME)).evictAll(skuIds);
+        System.out.println("正在批量清除 SKU 缓存: " + skuIds);
+    }
 }
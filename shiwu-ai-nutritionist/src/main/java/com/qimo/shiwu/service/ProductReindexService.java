@@ -0,0 +1,322 @@
+package com.qimo.shiwu.service;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import com.qimo.shiwu.data.es.ProductDocument;
+import com.qimo.shiwu.data.mysql.entity.SKU;
+import com.qimo.shiwu.data.mysql.repository.SKURepository;
+import com.qimo.shiwu.util.RedisLeaseLock;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.IndexOperations;
+import org.springframework.data.elasticsearch.core.index.AliasAction;
+import org.springframework.data.elasticsearch.core.index.AliasActionParameters;
+import org.springframework.data.elasticsearch.core.index.AliasActions;
+import org.springframework.data.elasticsearch.core.index.AliasData;
+import org.springframework.data.elasticsearch.core.index.Settings;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ===================================================================
+ * 服务 16: ES 全量重建 (别名蓝绿切换)
+ * ===================================================================
+ * [开发者注意]:
+ * 代替原来直接往线上索引 saveAll 的 T+1 同步。`products_shiwu` 现在是一个别名，
+ * 真正的索引叫 `products_shiwu_v<时间戳>`，全量重建的步骤:
+ *   1. 新建一个版本索引，副本数 0、关闭自动 refresh (批量写入最快)；
+ *   2. 流式加载: 一个读线程按 skuId keyset 分块查 MySQL、转文档，经有界队列交给多个写线程并行 bulk 写入
+ *      (每块处理完就清空持久化上下文，内存占用与商品总数无关，见 streamToIndex)；
+ *   3. 恢复副本数和 refresh 间隔，手动 refresh 一次；
+ *   4. 一次 _aliases 请求原子地把别名从旧索引切到新索引 (搜索不会看到半成品)；
+ *   5. 删除旧索引。
+ * 任何一步失败都会删掉新索引，别名仍然指向旧索引，线上不受影响。
+ * Mapping 变更 (改 ProductDocument 的 @Field) 也只需要跑一次全量重建，不需要停机。
+ *
+ * 重建期间所有节点上的发件箱中继 / 合并同步 / 水位线增量同步仍然写别名 (旧索引)，
+ * DataSyncService 把这些 SKU 记在 Redis 里 (不是本节点内存)。切换别名前先把记下的变化直接写进新索引，
+ * 切换后停止记录，再对最后一小段时间里记下的 SKU 做一次增量同步，重建过程中的变化不会丢。
+ * 多节点部署时用租约锁保证同一时刻只有一个节点在重建。
+ */
+@Service
+public class ProductReindexService {
+
+    /** 搜索和增量同步使用的别名 (= ProductDocument 的 indexName) */
+    public static final String ALIAS = "products_shiwu";
+
+    private static final DateTimeFormatter VERSION_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+    private static final String LOCK_KEY = "lock:reindex:products";
+    private static final List<ProductDocument> END_OF_STREAM = new ArrayList<>(); // 写线程的结束标记 (按引用比较)
+
+    @Autowired private ElasticsearchOperations elasticsearchOperations;
+    @Autowired private ElasticsearchClient elasticsearchClient;
+    @Autowired private SKURepository skuRepository;
+    @Autowired private DataSyncService dataSyncService;
+    @Autowired private SearchResultCache searchResultCache;
+    @Autowired private RedisLeaseLock leaseLock;
+    @Autowired private PlatformTransactionManager transactionManager;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Value("${shiwu.reindex.loader-threads:4}")
+    private int loaderThreads;
+
+    @Value("${shiwu.reindex.chunk-size:1000}")
+    private int chunkSize;
+
+    @Value("${shiwu.reindex.queue-capacity:4}")
+    private int queueCapacity;
+
+    @Value("${shiwu.reindex.replicas:1}")
+    private int replicas;
+
+    @Value("${shiwu.reindex.refresh-interval:1s}")
+    private String refreshInterval;
+
+    /**
+     * T+1 全量重建
+     * cron = "0 0 3 * * ?" 表示每天凌晨3点整执行
+     */
+    @Scheduled(cron = "0 0 3 * * ?")
+    public void reindexAll() {
+        RedisLeaseLock.Lease lease = leaseLock.tryLock(LOCK_KEY, 0);
+        if (lease == null) {
+            System.out.println("其他节点正在全量重建 ES 索引，跳过");
+            return;
+        }
+        try {
+            doReindex();
+        } finally {
+            leaseLock.unlock(lease);
+        }
+    }
+
+    private void doReindex() {
+        System.out.println("开始执行 [MySQL -> ES] 全量重建...");
+        long start = System.currentTimeMillis();
+        Set<String> oldIndices = currentIndices();
+        String newIndex = createVersionedIndex(true);
+        dataSyncService.startTrackingChanges();
+        boolean swapped = false;
+        try {
+            long loaded = streamToIndex(newIndex);
+
+            // 恢复线上配置后再切换，别名指向的索引永远是完整且有副本的
+            elasticsearchClient.indices().putSettings(r -> r
+                    .index(newIndex)
+                    .settings(s -> s
+                            .numberOfReplicas(String.valueOf(replicas))
+                            .refreshInterval(t -> t.time(refreshInterval))));
+            // 切换前先把已记录的变化直接补进新索引，切换后搜索不会短暂看到重建开始时的旧数据
+            catchUp(newIndex, dataSyncService.drainTrackedChanges());
+            elasticsearchOperations.indexOps(IndexCoordinates.of(newIndex)).refresh();
+
+            swapAlias(newIndex, oldIndices);
+            swapped = true;
+            System.out.println("全量重建完成: " + loaded + " 条文档写入 " + newIndex
+                    + ", 耗时 " + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            System.err.println("全量重建失败，别名保持不变: " + e.getMessage());
+            elasticsearchOperations.indexOps(IndexCoordinates.of(newIndex)).delete();
+        } finally {
+            Set<Long> changed = dataSyncService.stopTrackingChanges();
+            if (swapped && !changed.isEmpty()) {
+                // 补上补齐之后、切换之前只写进旧索引的增量变化 (现在别名已指向新索引)
+                dataSyncService.syncSkus(changed);
+                System.out.println("重建期间的增量变化已补同步: " + changed.size() + " 个 SKU");
+            }
+        }
+
+        if (swapped) {
+            for (String oldIndex : oldIndices) {
+                if (!oldIndex.equals(ALIAS)) { // 旧的同名实体索引已在切换时删除
+                    elasticsearchOperations.indexOps(IndexCoordinates.of(oldIndex)).delete();
+                }
+            }
+            searchResultCache.invalidateAll();
+        }
+    }
+
+    /**
+     * 把重建期间变化过的 SKU 直接写进新索引 (已下架或删除的从新索引删掉)
+     */
+    private void catchUp(String newIndex, Set<Long> skuIds) {
+        if (skuIds.isEmpty()) {
+            return;
+        }
+        IndexCoordinates target = IndexCoordinates.of(newIndex);
+        List<SKU> skus = skuRepository.findActiveSkusByIdsForSync(skuIds);
+        List<ProductDocument> documents = new ArrayList<>(skus.size());
+        Set<Long> found = new HashSet<>();
+        for (SKU sku : skus) {
+            documents.add(dataSyncService.convertSkuToDocument(sku));
+            found.add(sku.getSkuId());
+        }
+        if (!documents.isEmpty()) {
+            elasticsearchOperations.save(documents, target);
+        }
+        for (Long skuId : skuIds) {
+            if (!found.contains(skuId)) {
+                elasticsearchOperations.delete(skuId.toString(), target);
+            }
+        }
+        System.out.println("重建期间的增量变化已补进新索引: " + skuIds.size() + " 个 SKU");
+    }
+
+    /**
+     * 流式加载到新索引 (内存占用与商品总数无关)
+     * - 读线程 (当前线程): 在一个只读事务里按 skuId keyset 分块查询 -> 转文档 -> 清空持久化上下文，
+     *   把每块文档放进有界队列；
+     * - 写线程 (loader-threads 个): 从队列取块，一块一次 bulk 写入新索引。
+     * 写入跟不上时读线程阻塞在队列上 (背压)，同一时刻最多有 (队列容量 + 写线程数 + 1) 块在内存中。
+     * @return 写入的文档数
+     */
+    private long streamToIndex(String newIndex) throws Exception {
+        IndexCoordinates target = IndexCoordinates.of(newIndex);
+        BlockingQueue<List<ProductDocument>> queue = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        AtomicLong loaded = new AtomicLong();
+
+        AtomicInteger seq = new AtomicInteger();
+        ExecutorService writers = Executors.newFixedThreadPool(loaderThreads, r -> {
+            Thread t = new Thread(r, "es-reindex-writer-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < loaderThreads; i++) {
+            writers.execute(() -> {
+                try {
+                    List<ProductDocument> chunk;
+                    while ((chunk = queue.take()) != END_OF_STREAM) {
+                        if (failure.get() != null) {
+                            continue; // 已经失败: 只把队列取空，让读线程不会永远阻塞
+                        }
+                        try {
+                            elasticsearchOperations.save(chunk, target);
+                            loaded.addAndGet(chunk.size());
+                        } catch (Exception e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        try {
+            TransactionTemplate readOnly = new TransactionTemplate(transactionManager);
+            readOnly.setReadOnly(true); // Hibernate 不为只读会话里的实体保存脏检查快照
+            readOnly.executeWithoutResult(status -> {
+                long lastSkuId = Long.MIN_VALUE;
+                Pageable chunkPage = PageRequest.of(0, chunkSize);
+                while (failure.get() == null) {
+                    List<SKU> skus = skuRepository.findActiveSKUsForSyncAfter(lastSkuId, chunkPage);
+                    if (skus.isEmpty()) {
+                        break;
+                    }
+                    List<ProductDocument> chunk = new ArrayList<>(skus.size());
+                    for (SKU sku : skus) {
+                        chunk.add(dataSyncService.convertSkuToDocument(sku));
+                    }
+                    lastSkuId = skus.get(skus.size() - 1).getSkuId();
+                    // 这一块的实体已经用完，从持久化上下文中移除，否则整个目录都会留在一级缓存里
+                    entityManager.clear();
+                    try {
+                        queue.put(chunk);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("全量重建被中断", e);
+                    }
+                }
+            });
+        } finally {
+            for (int i = 0; i < loaderThreads; i++) {
+                queue.put(END_OF_STREAM);
+            }
+            writers.shutdown();
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return loaded.get();
+    }
+
+    /**
+     * 新建一个带 ProductDocument 映射的版本索引
+     * @param bulkLoad true 时按批量写入优化 (0 副本、关闭 refresh)，false 时直接使用线上配置
+     * @return 新索引名
+     */
+    public String createVersionedIndex(boolean bulkLoad) {
+        String name = ALIAS + "_v" + LocalDateTime.now().format(VERSION_FORMAT);
+        IndexOperations indexOps = elasticsearchOperations.indexOps(IndexCoordinates.of(name));
+        Settings settings = indexOps.createSettings(ProductDocument.class);
+        settings.put("index.number_of_replicas", bulkLoad ? 0 : replicas);
+        settings.put("index.refresh_interval", bulkLoad ? "-1" : refreshInterval);
+        indexOps.create(settings, indexOps.createMapping(ProductDocument.class));
+        return name;
+    }
+
+    /**
+     * 别名当前指向的索引 (旧版本没有别名、直接叫 products_shiwu 的实体索引返回 {ALIAS})
+     */
+    public Set<String> currentIndices() {
+        IndexOperations aliasOps = elasticsearchOperations.indexOps(IndexCoordinates.of(ALIAS));
+        if (!aliasOps.exists()) {
+            return Set.of();
+        }
+        try {
+            Map<String, Set<AliasData>> aliases = aliasOps.getAliases(ALIAS);
+            return aliases.isEmpty() ? Set.of(ALIAS) : aliases.keySet();
+        } catch (Exception e) {
+            // 名字存在却查不到别名 (ES 返回 404): 是旧的实体索引
+            return Set.of(ALIAS);
+        }
+    }
+
+    /**
+     * 一次 _aliases 请求原子地把别名切到新索引
+     * 旧版本的同名实体索引不能和别名共存，用 remove_index 在同一个请求里删掉。
+     */
+    public void swapAlias(String newIndex, Set<String> oldIndices) {
+        List<AliasAction> actions = new ArrayList<>();
+        for (String oldIndex : oldIndices) {
+            if (oldIndex.equals(ALIAS)) {
+                actions.add(new AliasAction.RemoveIndex(
+                        AliasActionParameters.builder().withIndices(ALIAS).build()));
+            } else {
+                actions.add(new AliasAction.Remove(
+                        AliasActionParameters.builder().withIndices(oldIndex).withAliases(ALIAS).build()));
+            }
+        }
+        actions.add(new AliasAction.Add(
+                AliasActionParameters.builder().withIndices(newIndex).withAliases(ALIAS).build()));
+        elasticsearchOperations.indexOps(IndexCoordinates.of(newIndex))
+                .alias(new AliasActions(actions.toArray(new AliasAction[0])));
+    }
+}
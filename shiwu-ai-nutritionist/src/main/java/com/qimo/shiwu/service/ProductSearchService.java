@@ -1,17 +1,36 @@
 package com.qimo.shiwu.service;
 import com.qimo.shiwu.data.es.ProductDocument;
 import com.qimo.shiwu.data.es.ProductSearchRepository;
-import com.qimo.shiwu.data.mysql.entity.SKU;
+import com.qimo.shiwu.dto.CachedSearchPage;
+import com.qimo.shiwu.dto.IngredientCandidates;
+import com.qimo.shiwu.dto.IngredientQuery;
+import com.qimo.shiwu.dto.SearchCursorPage;
+import com.qimo.shiwu.dto.SkuSnapshot;
+import com.qimo.shiwu.service.rank.RerankEngine;
+import com.qimo.shiwu.service.search.ElasticsearchProductSearchEngine;
+import com.qimo.shiwu.service.search.EmbeddedProductSearchEngine;
+import com.qimo.shiwu.service.search.RecallSlice;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
@@ -20,14 +39,71 @@ import java.util.stream.Collectors;
  * ===================================================================
  * [开发者注意]:
  * 封装《开题报告》中的“召回 + 精排”完整流程。
+ * 精排不是只排当前一页: 先召回前 `shiwu.search.rank-window` 个候选，整体精排后再分页，
+ * 这样 ES 排在后几页、但精排得分更高的商品也能出现在第一页。超出窗口的深翻页按召回顺序分页，只做页内重排。
+ * 召回结果 (skuId 列表) 会被 SearchResultCache 缓存，重复的食谱食材搜索不再访问 ES。
  */
 @Service
 public class ProductSearchService {
 
+    /**
+     * 召回引擎模式 (ES 与进程内引擎 EmbeddedProductSearchEngine 的组合方式)
+     */
+    public enum RecallMode {
+        /** 默认: 只用 ES */
+        OFF,
+        /** 只用本地引擎 (单机部署 / 没有 ES 的测试环境) */
+        PRIMARY,
+        /** 先用 ES，ES 异常时降级到本地引擎 */
+        FALLBACK,
+        /** 用 ES 返回结果，同时用本地引擎跑一遍并统计两者的重合度 (上线前验证) */
+        SHADOW
+    }
+
     @Autowired
     private ProductSearchRepository productSearchRepository; // ES 仓库
     @Autowired
     private ProductCacheService productCacheService; // 缓存/MySQL 服务
+    @Autowired
+    private RerankEngine rerankEngine; // 精排
+    @Autowired
+    private SearchResultCache searchResultCache; // 召回结果缓存
+    @Autowired
+    private ElasticsearchProductSearchEngine elasticsearchEngine;
+    @Autowired
+    private EmbeddedProductSearchEngine embeddedEngine;
+
+    @Value("${shiwu.search.engine-mode:OFF}")
+    private RecallMode recallMode;
+
+    @Value("${shiwu.search.rank-window:200}")
+    private int rankWindow; // 精排窗口: 召回前多少个候选一起精排，再在精排结果上分页
+
+    @Value("${shiwu.search.ingredient.recall-size:20}")
+    private int ingredientRecallSize; // 每个食材召回多少个候选参与精排
+
+    @Value("${shiwu.search.ingredient.default-limit:5}")
+    private int ingredientDefaultLimit; // 每个食材默认返回几个
+
+    // 降级 / 影子对比统计
+    private final AtomicLong fallbackCount = new AtomicLong();
+    private final AtomicLong shadowCount = new AtomicLong();
+    private final AtomicLong shadowOverlapPermille = new AtomicLong(); // 重合度 (千分比) 之和
+
+    /**
+     * 启用了本地引擎时，启动后构建索引 (失败只打日志，FALLBACK / SHADOW 模式下仍可使用 ES)
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void initEmbeddedEngine() {
+        if (recallMode == RecallMode.OFF) {
+            return;
+        }
+        try {
+            embeddedEngine.rebuild();
+        } catch (Exception e) {
+            System.err.println("本地搜索索引构建失败: " + e.getMessage());
+        }
+    }
 
     /**
      * [核心功能]: 封装“召回 + 精排”的完整搜索流程
@@ -40,50 +116,345 @@ public class ProductSearchService {
      * @param pageable 分页和排序对象
      * @return 排序后的 SKU 分页结果
      */
-    public Page<SKU> searchProducts(String query, List<String> tags,
-                                    BigDecimal minPrice, BigDecimal maxPrice,
-                                    Pageable pageable) {
+    public Page<SkuSnapshot> searchProducts(String query, List<String> tags,
+                                            BigDecimal minPrice, BigDecimal maxPrice,
+                                            Pageable pageable) {
+        return searchProducts(query, tags, minPrice, maxPrice, null, pageable);
+    }
 
-        // 1. [召回 Recall] - 从 Elasticsearch 召回相关文档
-        System.out.println("ES 召回: " + query);
+    /**
+     * 带用户的搜索: 精排时额外考虑该用户健康目标 (HealthGoal.heat_target) 的契合度
+     *
+     * @param userId 当前用户 (可为 null，等同于匿名搜索)
+     */
+    public Page<SkuSnapshot> searchProducts(String query, List<String> tags,
+                                            BigDecimal minPrice, BigDecimal maxPrice,
+                                            Long userId, Pageable pageable) {
 
         // 如果没有提供价格范围，设置默认值
         BigDecimal effectiveMinPrice = (minPrice != null) ? minPrice : BigDecimal.ZERO;
         BigDecimal effectiveMaxPrice = (maxPrice != null) ? maxPrice : new BigDecimal("999999");
         List<String> effectiveTags = (tags != null) ? tags : new ArrayList<>();
 
-        Page<ProductDocument> documents = productSearchRepository.searchProducts(
-                query,
-                effectiveTags,
-                effectiveTags.size(), // 传入标签数量，用于 "minimum_should_match"
-                effectiveMinPrice,
-                effectiveMaxPrice,
-                pageable
-        );
+        int pageSize = pageable.getPageSize();
+        int window = rankWindow(pageSize);
+        long offset = pageable.getOffset();
+        boolean inWindow = offset + pageSize <= window;
+        // 窗口内的页都召回同一个窗口 (第 0 页、窗口大小)；深翻页直接召回请求的那一页
+        Pageable recallPageable = inWindow ? PageRequest.of(0, window, pageable.getSort()) : pageable;
+
+        // 1. [召回 Recall] - 先查搜索结果缓存，命中则完全跳过 ES
+        String cacheKey = searchResultCache.buildKey(query, effectiveTags, effectiveMinPrice, effectiveMaxPrice, recallPageable);
+        CachedSearchPage recalled = searchResultCache.get(cacheKey);
+        if (recalled == null) {
+            String ticket = searchResultCache.recallTicket();
+            recalled = recallPage(query, effectiveTags, effectiveMinPrice, effectiveMaxPrice, recallPageable);
+            searchResultCache.put(cacheKey, ticket, recalled.getSkuIds(), recalled.getTotalElements());
+        }
 
-        if (!documents.hasContent()) {
+        if (recalled.getSkuIds().isEmpty()) {
             return Page.empty(pageable);
         }
 
         // 2. [精排 Rank] - 获取最新数据 (Data Hydration)
-        // 从召回的文档中提取 skuIds
-        List<Long> skuIds = documents.getContent().stream()
-                .map(ProductDocument::getSkuId)
-                .toList();
+        List<Long> skuIds = recalled.getSkuIds();
 
         // 批量从缓存(Redis)或数据库(MySQL)获取最新的 SKU 详情
-        // (这保证了价格和库存的实时性)
-        List<SKU> rankedSkus = skuIds.stream()
-                .map(id -> productCacheService.getSkuById(id).orElse(null))
-                .filter(Objects::nonNull) // 过滤掉可能已下架的商品
-                .collect(Collectors.toList());
+        // (这保证了价格和库存的实时性；一次 MGET + 一次 IN 查询，结果保持 ES 召回顺序，
+        //  已删除的商品会被跳过)
+        List<SkuSnapshot> candidates = productCacheService.getSkusByIds(skuIds);
 
         // 3. [精排 Rank] - 执行业务排序算法
-        // TODO: 在这里实现《开题报告》中提到的复杂排序算法
-        // 例如: Jaro-Winkler 距离, 加权评分(好评率, 销量等)
-        // (目前暂时返回按 ES 召回顺序排序的结果)
+        // Jaro-Winkler 文本相似度 + 性价比 + 库存 + 销量 + 健康目标契合度 加权打分，见 RerankEngine
+        if (!inWindow) {
+            List<SkuSnapshot> rankedSkus = rerankEngine.rerank(query, candidates, userId, pageSize);
+            return new PageImpl<>(rankedSkus, pageable, recalled.getTotalElements());
+        }
+        // 只需要前 offset + pageSize 名 (堆选)，再切出当前页
+        List<SkuSnapshot> rankedSkus = rerankEngine.rerank(query, candidates, userId, (int) offset + pageSize);
+        List<SkuSnapshot> pageContent = rankedSkus.subList((int) Math.min(offset, rankedSkus.size()), rankedSkus.size());
 
         // 重新组装 Page 对象
-        return new PageImpl<>(rankedSkus, pageable, documents.getTotalElements());
+        return new PageImpl<>(new ArrayList<>(pageContent), pageable, recalled.getTotalElements());
+    }
+
+    /**
+     * [核心功能]: 游标分页搜索 (适合无限滚动 / 深翻页)
+     * ES 只返回 skuId 和排序值，用 search_after 翻页，第 100 页和第 1 页一样快。
+     * 每次召回一个精排窗口，窗口内整体精排后按偏移切页；窗口用完后从窗口最后一条继续 search_after。
+     * (同一窗口的各页各自精排一次，期间销量 / 库存变化可能让窗口内个别商品重复或漏掉)
+     *
+     * @param cursor 上一页返回的 nextCursor (首页传 null)
+     * @param size 每页条数
+     */
+    public SearchCursorPage searchProductsAfter(String query, List<String> tags,
+                                                BigDecimal minPrice, BigDecimal maxPrice,
+                                                Long userId, String cursor, int size) {
+        BigDecimal effectiveMinPrice = (minPrice != null) ? minPrice : BigDecimal.ZERO;
+        BigDecimal effectiveMaxPrice = (maxPrice != null) ? maxPrice : new BigDecimal("999999");
+        List<String> effectiveTags = (tags != null) ? tags : new ArrayList<>();
+
+        // 游标 = 当前精排窗口在 ES 中的起点 (search_after) + 窗口内已经返回的条数
+        WindowCursor position = decodeCursor(cursor);
+        int window = rankWindow(size);
+
+        // 1. [召回 Recall] - 只取 skuId，一次召回整个精排窗口 (引擎由 RecallMode 决定)
+        RecallSlice recalled = recallAfter(query, effectiveTags, effectiveMinPrice, effectiveMaxPrice,
+                position.searchAfter(), window);
+        List<Long> skuIds = recalled.skuIds();
+        if (skuIds.isEmpty()) {
+            return new SearchCursorPage(new ArrayList<>(), null, recalled.totalHits());
+        }
+
+        // 2. [精排 Rank] - 回填 + 整个窗口精排，切出当前页
+        List<SkuSnapshot> candidates = productCacheService.getSkusByIds(skuIds);
+        int offset = position.offset();
+        List<SkuSnapshot> rankedSkus = rerankEngine.rerank(query, candidates, userId, offset + size);
+        List<SkuSnapshot> pageContent = new ArrayList<>(rankedSkus.subList(Math.min(offset, rankedSkus.size()), rankedSkus.size()));
+
+        // 窗口内还有剩余 -> 同一窗口的下一段；窗口已用完 -> 从窗口最后一条之后召回下一个窗口；ES 不满一个窗口说明已经到底
+        String nextCursor;
+        if (offset + size < candidates.size()) {
+            nextCursor = encodeCursor(new WindowCursor(position.searchAfter(), offset + size));
+        } else if (skuIds.size() < window) {
+            nextCursor = null;
+        } else {
+            nextCursor = encodeCursor(new WindowCursor(recalled.lastSortValues(), 0));
+        }
+        return new SearchCursorPage(pageContent, nextCursor, recalled.totalHits());
+    }
+
+    /**
+     * [核心功能]: 一次解析整个食谱的食材 (AI 食谱 -> 购物篮)
+     * 与逐个调用 searchProducts 相比 (每个食材一次 ES 请求 + 一次回填):
+     *   1. 所有食材合并成一次 ES _msearch (只取 skuId)；
+     *   2. 所有召回的 skuId 取并集，一次 MGET + 一次 IN 查询回填；
+     *   3. 每个食材各自精排，销量一次 HMGET。
+     *
+     * @param ingredients 各食材的检索条件
+     * @param userId 当前用户 (可为 null)
+     * @return 与 ingredients 顺序一致的候选列表
+     */
+    public List<IngredientCandidates> searchIngredients(List<IngredientQuery> ingredients, Long userId) {
+        if (ingredients == null || ingredients.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<IngredientQuery> effective = new ArrayList<>(ingredients.size());
+        for (IngredientQuery ingredient : ingredients) {
+            effective.add(new IngredientQuery(
+                    ingredient.getQuery(),
+                    ingredient.getTags() != null ? ingredient.getTags() : new ArrayList<>(),
+                    ingredient.getMinPrice() != null ? ingredient.getMinPrice() : BigDecimal.ZERO,
+                    ingredient.getMaxPrice() != null ? ingredient.getMaxPrice() : new BigDecimal("999999"),
+                    ingredient.getLimit() > 0 ? ingredient.getLimit() : ingredientDefaultLimit));
+        }
+
+        // 1. [召回 Recall] - 一次 _msearch
+        List<List<Long>> recalled = recallIngredients(effective);
+
+        // 2. [精排 Rank] - 并集一次回填
+        Set<Long> union = new LinkedHashSet<>();
+        recalled.forEach(union::addAll);
+        Map<Long, SkuSnapshot> skuById = new HashMap<>();
+        for (SkuSnapshot sku : productCacheService.getSkusByIds(new ArrayList<>(union))) {
+            skuById.put(sku.skuId(), sku);
+        }
+
+        // 3. [精排 Rank] - 每个食材各自精排
+        List<String> queries = new ArrayList<>(effective.size());
+        List<List<SkuSnapshot>> candidateLists = new ArrayList<>(effective.size());
+        int maxLimit = 0;
+        for (int i = 0; i < effective.size(); i++) {
+            queries.add(effective.get(i).getQuery());
+            candidateLists.add(recalled.get(i).stream().map(skuById::get).filter(Objects::nonNull).toList());
+            maxLimit = Math.max(maxLimit, effective.get(i).getLimit());
+        }
+        List<List<SkuSnapshot>> ranked = rerankEngine.rerankAll(queries, candidateLists, userId, maxLimit);
+
+        List<IngredientCandidates> results = new ArrayList<>(effective.size());
+        for (int i = 0; i < effective.size(); i++) {
+            List<SkuSnapshot> top = ranked.get(i);
+            int limit = Math.min(effective.get(i).getLimit(), top.size());
+            results.add(new IngredientCandidates(effective.get(i).getQuery(), new ArrayList<>(top.subList(0, limit))));
+        }
+        return results;
+    }
+
+    /**
+     * 辅助方法：召回所有食材的 skuId。
+     * ES 模式下一次 _msearch；PRIMARY 模式 (或 FALLBACK 模式下 ES 失败时) 逐个查本地引擎 (进程内，没有 IO)。
+     */
+    private List<List<Long>> recallIngredients(List<IngredientQuery> ingredients) {
+        int size = Math.max(ingredientRecallSize,
+                ingredients.stream().mapToInt(IngredientQuery::getLimit).max().orElse(0));
+        if (recallMode != RecallMode.PRIMARY) {
+            try {
+                System.out.println("ES 批量召回: " + ingredients.size() + " 个食材");
+                return productSearchRepository.multiRecallSkuIds(ingredients, size).stream()
+                        .map(hits -> hits.getSearchHits().stream().map(hit -> hit.getContent().getSkuId()).toList())
+                        .toList();
+            } catch (Exception e) {
+                if (recallMode != RecallMode.FALLBACK || !embeddedEngine.isReady()) {
+                    throw e;
+                }
+                fallbackCount.incrementAndGet();
+                System.err.println("ES 批量召回失败，降级到本地引擎: " + e.getMessage());
+            }
+        }
+        List<List<Long>> recalled = new ArrayList<>(ingredients.size());
+        for (IngredientQuery q : ingredients) {
+            recalled.add(embeddedEngine.searchProducts(q.getQuery(), q.getTags(), q.getTags().size(),
+                            q.getMinPrice(), q.getMaxPrice(), PageRequest.of(0, size))
+                    .map(ProductDocument::getSkuId).getContent());
+        }
+        return recalled;
+    }
+
+    /**
+     * 精排窗口按页大小取整，保证每一页要么完全在窗口内、要么完全在窗口外
+     */
+    private int rankWindow(int pageSize) {
+        return Math.max(pageSize, rankWindow / pageSize * pageSize);
+    }
+
+    /**
+     * 游标位置: searchAfter 为窗口起点 (首个窗口为 null)，offset 为窗口内已返回的条数
+     */
+    private record WindowCursor(List<Object> searchAfter, int offset) {
+    }
+
+    /**
+     * 游标 = Base64(窗口内偏移 [+ "," + 窗口起点的 _score + "," + skuId])
+     */
+    private static String encodeCursor(WindowCursor position) {
+        String raw = position.searchAfter() == null ? String.valueOf(position.offset())
+                : position.offset() + "," + position.searchAfter().get(0) + "," + position.searchAfter().get(1);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static WindowCursor decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return new WindowCursor(null, 0);
+        }
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            String[] parts = raw.split(",");
+            int offset = Integer.parseInt(parts[0]);
+            if (offset < 0) {
+                throw new IllegalArgumentException("offset < 0");
+            }
+            if (parts.length == 1) {
+                return new WindowCursor(null, offset);
+            }
+            return new WindowCursor(List.of(Double.valueOf(parts[1]), Long.valueOf(parts[2])), offset);
+        } catch (Exception e) {
+            throw new RuntimeException("非法的分页游标: " + cursor, e);
+        }
+    }
+
+    /**
+     * 辅助方法：召回一页文档 (引擎由 RecallMode 决定)，只保留 skuId 和总数
+     */
+    private CachedSearchPage recallPage(String query, List<String> tags,
+                                         BigDecimal minPrice, BigDecimal maxPrice, Pageable pageable) {
+        Page<ProductDocument> documents = recall(query, tags, minPrice, maxPrice, pageable);
+        List<Long> skuIds = documents.getContent().stream()
+                .map(ProductDocument::getSkuId)
+                .toList();
+        return new CachedSearchPage(skuIds, documents.getTotalElements());
+    }
+
+    /**
+     * 辅助方法：按 RecallMode 选择召回引擎
+     */
+    private Page<ProductDocument> recall(String query, List<String> tags,
+                                         BigDecimal minPrice, BigDecimal maxPrice, Pageable pageable) {
+        int tagCount = tags.size(); // 传入标签数量，用于 "minimum_should_match"
+        switch (recallMode) {
+            case PRIMARY:
+                return embeddedEngine.searchProducts(query, tags, tagCount, minPrice, maxPrice, pageable);
+            case FALLBACK:
+                try {
+                    System.out.println("ES 召回: " + query);
+                    return elasticsearchEngine.searchProducts(query, tags, tagCount, minPrice, maxPrice, pageable);
+                } catch (Exception e) {
+                    if (!embeddedEngine.isReady()) {
+                        throw e;
+                    }
+                    fallbackCount.incrementAndGet();
+                    System.err.println("ES 召回失败，降级到本地引擎: " + e.getMessage());
+                    return embeddedEngine.searchProducts(query, tags, tagCount, minPrice, maxPrice, pageable);
+                }
+            case SHADOW:
+                System.out.println("ES 召回: " + query);
+                Page<ProductDocument> primary = elasticsearchEngine.searchProducts(query, tags, tagCount, minPrice, maxPrice, pageable);
+                compareWithShadow(primary, query, tags, minPrice, maxPrice, pageable);
+                return primary;
+            default:
+                System.out.println("ES 召回: " + query);
+                return elasticsearchEngine.searchProducts(query, tags, tagCount, minPrice, maxPrice, pageable);
+        }
+    }
+
+    /**
+     * 辅助方法：按 RecallMode 选择游标召回的引擎 (影子模式只对比分页召回，这里直接用 ES)
+     * 注意两个引擎的 _score 不可比: FALLBACK 模式下用 ES 的游标去本地引擎翻页，位置只是近似的。
+     */
+    private RecallSlice recallAfter(String query, List<String> tags, BigDecimal minPrice, BigDecimal maxPrice,
+                                    List<Object> searchAfter, int size) {
+        switch (recallMode) {
+            case PRIMARY:
+                return embeddedEngine.recallAfter(query, tags, minPrice, maxPrice, searchAfter, size);
+            case FALLBACK:
+                try {
+                    System.out.println("ES 游标召回: " + query);
+                    return elasticsearchEngine.recallAfter(query, tags, minPrice, maxPrice, searchAfter, size);
+                } catch (Exception e) {
+                    if (!embeddedEngine.isReady()) {
+                        throw e;
+                    }
+                    fallbackCount.incrementAndGet();
+                    System.err.println("ES 游标召回失败，降级到本地引擎: " + e.getMessage());
+                    return embeddedEngine.recallAfter(query, tags, minPrice, maxPrice, searchAfter, size);
+                }
+            default:
+                System.out.println("ES 游标召回: " + query);
+                return elasticsearchEngine.recallAfter(query, tags, minPrice, maxPrice, searchAfter, size);
+        }
+    }
+
+    /**
+     * 影子模式: 统计本地引擎与 ES 同一页结果的重合度 (影子侧的任何异常都不影响主流程)
+     */
+    private void compareWithShadow(Page<ProductDocument> primary, String query, List<String> tags,
+                                   BigDecimal minPrice, BigDecimal maxPrice, Pageable pageable) {
+        if (!embeddedEngine.isReady()) {
+            return;
+        }
+        try {
+            Page<ProductDocument> shadow = embeddedEngine.searchProducts(query, tags, tags.size(), minPrice, maxPrice, pageable);
+            Set<Long> expected = primary.getContent().stream().map(ProductDocument::getSkuId).collect(Collectors.toSet());
+            long common = shadow.getContent().stream().filter(doc -> expected.contains(doc.getSkuId())).count();
+            long permille = expected.isEmpty() ? (shadow.hasContent() ? 0 : 1000) : common * 1000 / expected.size();
+            shadowCount.incrementAndGet();
+            shadowOverlapPermille.addAndGet(permille);
+        } catch (Exception e) {
+            System.err.println("影子召回失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 影子模式下本地引擎与 ES 结果的平均重合度 (0 ~ 1)
+     */
+    public double getShadowOverlap() {
+        long count = shadowCount.get();
+        return count == 0 ? 0 : shadowOverlapPermille.get() / 1000.0 / count;
+    }
+
+    /**
+     * FALLBACK 模式下降级到本地引擎的次数
+     */
+    public long getFallbackCount() {
+        return fallbackCount.get();
     }
 }
@@ -0,0 +1,549 @@
+package com.qimo.shiwu.service;
+
+import com.qimo.shiwu.data.mysql.entity.Product;
+import com.qimo.shiwu.data.mysql.entity.SKU;
+import com.qimo.shiwu.data.mysql.repository.ProductRepository;
+import net.sourceforge.pinyin4j.PinyinHelper;
+import net.sourceforge.pinyin4j.format.HanyuPinyinCaseType;
+import net.sourceforge.pinyin4j.format.HanyuPinyinOutputFormat;
+import net.sourceforge.pinyin4j.format.HanyuPinyinToneType;
+import net.sourceforge.pinyin4j.format.HanyuPinyinVCharType;
+import net.sourceforge.pinyin4j.format.exception.BadHanyuPinyinOutputFormatCombination;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * ===================================================================
+ * 服务 14: 商品名联想 (输入提示)
+ * ===================================================================
+ * [开发者注意]:
+ * 进程内的前缀树 (Trie)，输入框每敲一个字就查一次，不访问 ES / Redis / MySQL，单次查询是微秒级。
+ * 支持三种输入:
+ *   - 汉字:     "鸡胸"   -> 新鲜鸡胸肉 (商品名的每个汉字后缀都建了索引，所以不要求从第一个字开始)
+ *   - 全拼:     "jixiong" -> 鸡胸肉 (只对整个商品名建全拼，后缀只建首字母，控制节点数量)
+ *   - 首字母:   "jxr"    -> 鸡胸肉
+ * 多音字只取 pinyin4j 给出的第一个读音。
+ *
+ * 每个节点预先保存该前缀下热度最高的 top-k 个商品，查询只需沿前缀走到节点直接返回，不需要遍历子树。
+ * 热度 = 该商品所有在售 SKU 的累计销量 (来自 SkuSalesService)。
+ *
+ * 索引在启动时全量构建，之后由 DataSyncService 在每次同步 SKU 时增量更新；
+ * 销量是持续变化的，另外定期全量重建一次以刷新热度。
+ *
+ * 增量更新只改动商品 key 路径上的节点: 插入时沿路径合并进 top-k；删除时只重算 top-k 里有它的节点，
+ * 自底向上用 "本节点的 terminals + 各子节点的 top-k" 合并得出，不遍历子树。
+ * 写者之间用 updateLock 串行 (读 -> 取热度 -> 替换 整体原子，查询不受影响)；
+ * 全量重建期间到达的增量更新会记下来，新索引替换上去之后重放，不会被重建覆盖掉。
+ */
+@Service
+public class ProductSuggestService {
+
+    private static final int MAX_KEY_LENGTH = 24; // 超过这个长度的前缀很少有人输入，不再建节点
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    private static final HanyuPinyinOutputFormat PINYIN_FORMAT = new HanyuPinyinOutputFormat();
+    static {
+        PINYIN_FORMAT.setCaseType(HanyuPinyinCaseType.LOWERCASE);
+        PINYIN_FORMAT.setToneType(HanyuPinyinToneType.WITHOUT_TONE);
+        PINYIN_FORMAT.setVCharType(HanyuPinyinVCharType.WITH_V);
+    }
+
+    @Autowired
+    private ProductRepository productRepository;
+    @Autowired
+    private SkuSalesService skuSalesService;
+
+    @Value("${shiwu.suggest.top-k:10}")
+    private int topK;
+
+    /**
+     * 一个被索引的商品
+     */
+    private static final class Entry {
+        final long productId;
+        final String name;
+        final long popularity;
+        final Set<Long> skuIds;
+        final Set<String> keys;
+
+        Entry(long productId, String name, long popularity, Set<Long> skuIds) {
+            this.productId = productId;
+            this.name = name;
+            this.popularity = popularity;
+            this.skuIds = skuIds;
+            this.keys = keysOf(name);
+        }
+
+        /** this 是否排在 other 前面: 热度高优先，其次名字短的优先 */
+        boolean before(Entry other) {
+            if (popularity != other.popularity) {
+                return popularity > other.popularity;
+            }
+            if (name.length() != other.name.length()) {
+                return name.length() < other.name.length();
+            }
+            return productId < other.productId;
+        }
+    }
+
+    /**
+     * 前缀树节点: 子节点按字符升序存放在数组里 (二分查找)，比 HashMap 省内存
+     */
+    private static final class Node {
+        char[] labels = new char[0];
+        Node[] children = new Node[0];
+        Entry[] top = NO_ENTRIES;       // 该前缀下热度最高的 k 个商品 (有序)
+        Entry[] terminals = NO_ENTRIES; // 恰好在此结束的 key 所属的商品
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(labels, c);
+            return i >= 0 ? children[i] : null;
+        }
+
+        Node childOrCreate(char c) {
+            int i = Arrays.binarySearch(labels, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            int pos = -i - 1;
+            Node node = new Node();
+            char[] newLabels = new char[labels.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, pos);
+            System.arraycopy(children, 0, newChildren, 0, pos);
+            newLabels[pos] = c;
+            newChildren[pos] = node;
+            System.arraycopy(labels, pos, newLabels, pos + 1, labels.length - pos);
+            System.arraycopy(children, pos, newChildren, pos + 1, children.length - pos);
+            labels = newLabels;
+            children = newChildren;
+            return node;
+        }
+    }
+
+    // 以下三个字段由 lock 保护: 查询持读锁，增量更新 / 替换索引持写锁；只有持有 updateLock 的写者会修改它们
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Node root = new Node();
+    private Map<Long, Entry> entries = new HashMap<>();   // productId -> 商品
+    private Map<Long, Long> productOfSku = new HashMap<>(); // skuId -> productId
+
+    // 写者互斥 (增量更新、全量替换)；replayLog 不为 null 表示正在全量重建，由 updateLock 保护
+    private final ReentrantLock updateLock = new ReentrantLock();
+    private List<SyncedChange> replayLog;
+
+    /**
+     * 全量重建期间到达的一次增量更新
+     */
+    private record SyncedChange(List<SKU> activeSkus, List<Long> removedSkuIds) {
+    }
+
+    /**
+     * 启动时全量构建 (数据库不可用时只打日志，联想功能为空，不影响启动)
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void buildOnStartup() {
+        try {
+            rebuild();
+        } catch (Exception e) {
+            System.err.println("构建商品联想索引失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 全量重建 (刷新热度)。在锁外构建新索引，构建完成后一次性替换，再重放构建期间的增量更新。
+     */
+    @Scheduled(fixedDelayString = "${shiwu.suggest.rebuild-interval-ms:3600000}",
+            initialDelayString = "${shiwu.suggest.rebuild-interval-ms:3600000}")
+    public synchronized void rebuild() {
+        updateLock.lock();
+        try {
+            replayLog = new ArrayList<>();
+        } finally {
+            updateLock.unlock();
+        }
+        try {
+            build();
+        } finally {
+            updateLock.lock();
+            try {
+                replayLog = null;
+            } finally {
+                updateLock.unlock();
+            }
+        }
+    }
+
+    private void build() {
+        List<Product> products = productRepository.findAllWithActiveSkus();
+        Map<Long, Long> sales = skuSalesService.getAllSales();
+
+        Node newRoot = new Node();
+        Map<Long, Entry> newEntries = new HashMap<>();
+        Map<Long, Long> newProductOfSku = new HashMap<>();
+        for (Product product : products) {
+            Set<Long> skuIds = new HashSet<>();
+            long popularity = 0;
+            for (SKU sku : product.getSkus()) {
+                skuIds.add(sku.getSkuId());
+                popularity += sales.getOrDefault(sku.getSkuId(), 0L);
+                newProductOfSku.put(sku.getSkuId(), product.getProductId());
+            }
+            Entry entry = new Entry(product.getProductId(), product.getProductName(), popularity, skuIds);
+            newEntries.put(entry.productId, entry);
+            insert(newRoot, entry);
+        }
+
+        updateLock.lock();
+        try {
+            lock.writeLock().lock();
+            try {
+                root = newRoot;
+                entries = newEntries;
+                productOfSku = newProductOfSku;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            for (SyncedChange change : replayLog) {
+                apply(change.activeSkus(), change.removedSkuIds());
+            }
+        } finally {
+            updateLock.unlock();
+        }
+        System.out.println("商品联想索引构建完成: " + newEntries.size() + " 个商品");
+    }
+
+    /**
+     * [核心功能]: 联想查询
+     * @param prefix 用户已输入的内容 (汉字 / 全拼 / 首字母，忽略大小写和空格)
+     * @param limit 最多返回几个 (不超过 shiwu.suggest.top-k)
+     * @return 按热度排列的商品名
+     */
+    public List<String> suggest(String prefix, int limit) {
+        String key = normalize(prefix);
+        if (key.isEmpty()) {
+            return List.of();
+        }
+        lock.readLock().lock();
+        try {
+            Node node = root;
+            for (int i = 0; i < key.length() && node != null; i++) {
+                node = node.child(key.charAt(i));
+            }
+            if (node == null) {
+                return List.of();
+            }
+            int n = Math.min(limit, node.top.length);
+            List<String> names = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                names.add(node.top[i].name);
+            }
+            return names;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * [增量更新]: SKU 同步到 ES 后由 DataSyncService 调用
+     * @param activeSkus 本次同步中仍在售的 SKU (已 JOIN FETCH product)
+     * @param removedSkuIds 本次同步中已删除或下架的 SKU
+     */
+    public void onSkusSynced(Collection<SKU> activeSkus, Collection<Long> removedSkuIds) {
+        updateLock.lock();
+        try {
+            if (replayLog != null) {
+                replayLog.add(new SyncedChange(new ArrayList<>(activeSkus), new ArrayList<>(removedSkuIds)));
+            }
+            apply(activeSkus, removedSkuIds);
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    /**
+     * [需持有 updateLock] 应用一次增量更新。只有写者会修改索引，这里读 entries / productOfSku 不需要读锁。
+     */
+    private void apply(Collection<SKU> activeSkus, Collection<Long> removedSkuIds) {
+        // 1. 算出受影响商品的新 SKU 集合
+        Map<Long, Product> touchedProducts = new HashMap<>();
+        Map<Long, Set<Long>> newSkuIds = new HashMap<>();
+        for (SKU sku : activeSkus) {
+            Product product = sku.getProduct();
+            touchedProducts.put(product.getProductId(), product);
+            newSkuIds.computeIfAbsent(product.getProductId(), this::currentSkuIds).add(sku.getSkuId());
+            Long previousProduct = productOfSku.get(sku.getSkuId());
+            if (previousProduct != null && !previousProduct.equals(product.getProductId())) {
+                // SKU 换了所属商品
+                newSkuIds.computeIfAbsent(previousProduct, this::currentSkuIds).remove(sku.getSkuId());
+            }
+        }
+        for (Long skuId : removedSkuIds) {
+            Long productId = productOfSku.get(skuId);
+            if (productId != null) {
+                newSkuIds.computeIfAbsent(productId, this::currentSkuIds).remove(skuId);
+            }
+        }
+        if (newSkuIds.isEmpty()) {
+            return;
+        }
+
+        // 2. 在写锁外读取热度 (所有商品的 SKU 合并成一次 HMGET)
+        List<Long> allSkuIds = new ArrayList<>();
+        newSkuIds.values().forEach(allSkuIds::addAll);
+        long[] sales = skuSalesService.getSales(allSkuIds);
+        Map<Long, Long> salesBySku = new HashMap<>(allSkuIds.size() * 2);
+        for (int i = 0; i < sales.length; i++) {
+            salesBySku.put(allSkuIds.get(i), sales[i]);
+        }
+        Map<Long, Entry> replacements = new HashMap<>();
+        for (Map.Entry<Long, Set<Long>> item : newSkuIds.entrySet()) {
+            Set<Long> skuIds = item.getValue();
+            if (skuIds.isEmpty()) {
+                replacements.put(item.getKey(), null); // 没有在售 SKU 了，从索引中移除
+                continue;
+            }
+            long popularity = 0;
+            for (Long skuId : skuIds) {
+                popularity += salesBySku.getOrDefault(skuId, 0L);
+            }
+            Entry current = entries.get(item.getKey());
+            String name = touchedProducts.containsKey(item.getKey())
+                    ? touchedProducts.get(item.getKey()).getProductName() : current != null ? current.name : null;
+            if (name != null) {
+                replacements.put(item.getKey(), new Entry(item.getKey(), name, popularity, skuIds));
+            }
+        }
+
+        // 3. 写锁内替换
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<Long, Entry> item : replacements.entrySet()) {
+                Entry old = entries.remove(item.getKey());
+                if (old != null) {
+                    remove(root, old);
+                    old.skuIds.forEach(productOfSku::remove);
+                }
+                Entry entry = item.getValue();
+                if (entry != null) {
+                    entries.put(entry.productId, entry);
+                    entry.skuIds.forEach(skuId -> productOfSku.put(skuId, entry.productId));
+                    insert(root, entry);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** [需持有 updateLock] 商品当前在索引中的 SKU 集合的副本 */
+    private Set<Long> currentSkuIds(Long productId) {
+        Entry entry = entries.get(productId);
+        return entry != null ? new HashSet<>(entry.skuIds) : new HashSet<>();
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // 前缀树维护
+    // ------------------------------------------------------------------
+
+    private void insert(Node root, Entry entry) {
+        for (String key : entry.keys) {
+            Node node = root;
+            for (int i = 0; i < key.length(); i++) {
+                node = node.childOrCreate(key.charAt(i));
+                node.top = offer(node.top, entry);
+            }
+            node.terminals = append(node.terminals, entry);
+        }
+    }
+
+    /**
+     * 先从所有 key 的终点摘掉该商品，再自底向上重算路径上 top-k 里出现过它的节点
+     */
+    private void remove(Node root, Entry entry) {
+        List<List<Node>> affectedByDepth = new ArrayList<>();
+        Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (String key : entry.keys) {
+            Node node = root;
+            for (int i = 0; i < key.length() && node != null; i++) {
+                node = node.child(key.charAt(i));
+                if (node != null && contains(node.top, entry) && seen.add(node)) {
+                    while (affectedByDepth.size() <= i) {
+                        affectedByDepth.add(new ArrayList<>());
+                    }
+                    affectedByDepth.get(i).add(node);
+                }
+            }
+            if (node != null) {
+                node.terminals = without(node.terminals, entry);
+            }
+        }
+        // 深的先算: 父节点合并时用到的子节点 top-k 已经是新的
+        for (int depth = affectedByDepth.size() - 1; depth >= 0; depth--) {
+            for (Node node : affectedByDepth.get(depth)) {
+                node.top = mergeTop(node);
+            }
+        }
+    }
+
+    /** 把 entry 插入有序的 top 数组，保持最多 k 个 */
+    private Entry[] offer(Entry[] top, Entry entry) {
+        if (contains(top, entry)) {
+            return top;
+        }
+        int pos = 0;
+        while (pos < top.length && top[pos].before(entry)) {
+            pos++;
+        }
+        if (pos >= topK) {
+            return top;
+        }
+        int length = Math.min(top.length + 1, topK);
+        Entry[] result = new Entry[length];
+        System.arraycopy(top, 0, result, 0, pos);
+        result[pos] = entry;
+        System.arraycopy(top, pos, result, pos + 1, length - pos - 1);
+        return result;
+    }
+
+    /**
+     * 重算一个节点的 top-k: 子树里的商品要么在此结束 (terminals)，要么在某个子节点的子树里，
+     * 而子节点的 top-k 已经包含了它子树里的前 k 名，所以合并它们即可 (只在删除商品时发生)
+     */
+    private Entry[] mergeTop(Node node) {
+        Entry[] top = NO_ENTRIES;
+        for (Entry entry : node.terminals) {
+            top = offer(top, entry);
+        }
+        for (Node child : node.children) {
+            for (Entry entry : child.top) {
+                top = offer(top, entry);
+            }
+        }
+        return top;
+    }
+
+    private static boolean contains(Entry[] array, Entry entry) {
+        for (Entry e : array) {
+            if (e == entry) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Entry[] append(Entry[] array, Entry entry) {
+        if (contains(array, entry)) {
+            return array;
+        }
+        Entry[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = entry;
+        return result;
+    }
+
+    private static Entry[] without(Entry[] array, Entry entry) {
+        return Arrays.stream(array).filter(e -> e != entry).toArray(Entry[]::new);
+    }
+
+    // ------------------------------------------------------------------
+    // 索引 key 的生成
+    // ------------------------------------------------------------------
+
+    private static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 一个商品名生成的全部 key:
+     * 整个名字的 汉字 / 全拼 / 首字母，以及从每个汉字开始的后缀的 汉字 / 首字母
+     */
+    static Set<String> keysOf(String productName) {
+        String name = normalize(productName);
+        Set<String> keys = new LinkedHashSet<>();
+        if (name.isEmpty()) {
+            return keys;
+        }
+        String[] pinyin = new String[name.length()];
+        for (int i = 0; i < name.length(); i++) {
+            pinyin[i] = pinyinOf(name.charAt(i));
+        }
+
+        StringBuilder full = new StringBuilder();
+        for (String p : pinyin) {
+            full.append(p);
+        }
+        addKey(keys, full.toString());
+
+        for (int start = 0; start < name.length(); start++) {
+            if (start > 0 && !isHanzi(name.charAt(start))) {
+                continue;
+            }
+            addKey(keys, name.substring(start));
+            StringBuilder initials = new StringBuilder();
+            for (int i = start; i < name.length(); i++) {
+                initials.append(pinyin[i].charAt(0));
+            }
+            addKey(keys, initials.toString());
+        }
+        return keys;
+    }
+
+    private static void addKey(Set<String> keys, String key) {
+        keys.add(key.length() > MAX_KEY_LENGTH ? key.substring(0, MAX_KEY_LENGTH) : key);
+    }
+
+    private static boolean isHanzi(char c) {
+        return Character.UnicodeScript.of(c) == Character.UnicodeScript.HAN;
+    }
+
+    private static String pinyinOf(char c) {
+        if (isHanzi(c)) {
+            try {
+                String[] readings = PinyinHelper.toHanyuPinyinStringArray(c, PINYIN_FORMAT);
+                if (readings != null && readings.length > 0) {
+                    return readings[0];
+                }
+            } catch (BadHanyuPinyinOutputFormatCombination e) {
+                // 格式是常量，不会发生
+            }
+        }
+        return String.valueOf(c);
+    }
+}
@@ -0,0 +1,422 @@
+package com.qimo.shiwu.service;
+
+import com.qimo.shiwu.data.mysql.entity.Inventory;
+import com.qimo.shiwu.data.mysql.entity.StockFlushLog;
+import com.qimo.shiwu.data.mysql.repository.InventoryRepository;
+import com.qimo.shiwu.data.mysql.repository.StockFlushLogRepository;
+import com.qimo.shiwu.util.RedisLeaseLock;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.UUID;
+
+/**
+ * ===================================================================
+ * 服务 6: Redis 库存预扣服务 (秒杀 / 大促模式)
+ * ===================================================================
+ * [开发者注意]:
+ * 在 OrderService 的 REDIS_LUA 模式下，库存的"检查 + 扣减"完全在 Redis 中由一段 Lua 脚本原子完成，
+ * 不再需要分布式锁，也不再在下单链路上读写 MySQL 的 inventory 表。
+ *
+ * Redis 中的数据结构:
+ * - stock:sku:{skuId}   (String) 当前可售库存计数器
+ * - stock:pending       (Hash)   field = skuId, value = 已在 Redis 扣减、尚未回写 MySQL 的数量
+ * - stock:skus          (Set)    已预热的 skuId 集合 (对账任务用)
+ * - stock:flushing      (Hash)   field = skuId, value = "flushId:delta"，正在回写的批次 (崩溃恢复用)
+ *
+ * 恒等式: 计数器 = MySQL 库存 - pending。
+ * 回写任务 (flushPendingDeductions) 先写 MySQL 再减 pending，所以任意时刻按上式算出的库存只会偏小不会偏大，
+ * 对账任务 (reconcileStock) 据此修正计数器，不会造成超卖。
+ * 每次回写带一个 flushId，和库存扣减在同一事务里写入 stock_flush_log；扣回 pending 前进程崩溃的话，
+ * 下一轮先按 stock:flushing 里的 flushId 查回写记录，已提交的只补扣 pending，不会把同一增量写两次。
+ *
+ * 和 OrderService 一样，这里假设 inventory_id == skuId。
+ */
+@Service
+public class RedisStockService {
+
+    public static final String STOCK_KEY_PREFIX = "stock:sku:";
+    public static final String PENDING_KEY = "stock:pending";
+    public static final String PRELOADED_SET_KEY = "stock:skus";
+    public static final String FLUSHING_KEY = "stock:flushing";
+    private static final String JOB_LOCK_KEY = "lock:stock:job";
+
+    /** tryReserve 的返回值: 库存不足 */
+    public static final long INSUFFICIENT = -1L;
+    /** tryReserve 的返回值: 该 SKU 的计数器尚未预热 */
+    public static final long NOT_LOADED = -2L;
+
+    /**
+     * 原子地检查并扣减库存，同时把扣减量记入 pending。
+     * KEYS[1] = 库存计数器, KEYS[2] = pending hash; ARGV[1] = skuId, ARGV[2] = 购买数量
+     * 返回扣减后的剩余库存，或 -1 (库存不足) / -2 (未预热)
+     */
+    private static final DefaultRedisScript<Long> RESERVE_SCRIPT = new DefaultRedisScript<>(
+            "local stock = redis.call('get', KEYS[1]) " +
+            "if not stock then return -2 end " +
+            "local qty = tonumber(ARGV[2]) " +
+            "if tonumber(stock) < qty then return -1 end " +
+            "local left = redis.call('decrby', KEYS[1], qty) " +
+            "redis.call('hincrby', KEYS[2], ARGV[1], qty) " +
+            "return left", Long.class);
+
+    /**
+     * 归还预扣的库存 (下单事务失败时的补偿)。
+     * KEYS/ARGV 同 RESERVE_SCRIPT
+     */
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('exists', KEYS[1]) == 0 then return -2 end " +
+            "redis.call('hincrby', KEYS[2], ARGV[1], -tonumber(ARGV[2])) " +
+            "return redis.call('incrby', KEYS[1], ARGV[2])", Long.class);
+
+    /**
+     * 整篮原子预扣: 先检查全部 SKU，全部满足才一起扣减 (all-or-nothing)。
+     * KEYS[1] = pending hash, KEYS[2..n+1] = 各 SKU 的库存计数器
+     * ARGV[2i-1] = 第 i 个 skuId, ARGV[2i] = 第 i 个购买数量
+     * 返回 0 成功；i 表示第 i 个 SKU 库存不足；-i 表示第 i 个 SKU 未预热
+     */
+    private static final DefaultRedisScript<Long> RESERVE_ALL_SCRIPT = new DefaultRedisScript<>(
+            "local n = #KEYS - 1 " +
+            "for i = 1, n do " +
+            "  local stock = redis.call('get', KEYS[i + 1]) " +
+            "  if not stock then return -i end " +
+            "  if tonumber(stock) < tonumber(ARGV[2 * i]) then return i end " +
+            "end " +
+            "for i = 1, n do " +
+            "  redis.call('decrby', KEYS[i + 1], ARGV[2 * i]) " +
+            "  redis.call('hincrby', KEYS[1], ARGV[2 * i - 1], ARGV[2 * i]) " +
+            "end " +
+            "return 0", Long.class);
+
+    /**
+     * 整篮归还 (KEYS/ARGV 同 RESERVE_ALL_SCRIPT)
+     */
+    private static final DefaultRedisScript<Long> RELEASE_ALL_SCRIPT = new DefaultRedisScript<>(
+            "for i = 1, #KEYS - 1 do " +
+            "  if redis.call('exists', KEYS[i + 1]) == 1 then " +
+            "    redis.call('incrby', KEYS[i + 1], ARGV[2 * i]) " +
+            "    redis.call('hincrby', KEYS[1], ARGV[2 * i - 1], -tonumber(ARGV[2 * i])) " +
+            "  end " +
+            "end " +
+            "return 0", Long.class);
+
+    /**
+     * 用 MySQL 库存初始化计数器: 计数器 = MySQL 库存 - pending。
+     * KEYS[1] = 库存计数器, KEYS[2] = pending hash, KEYS[3] = 预热集合
+     * ARGV[1] = skuId, ARGV[2] = MySQL 库存, ARGV[3] = "1" 覆盖已有计数器 / "0" 仅在不存在时初始化
+     */
+    private static final DefaultRedisScript<Long> LOAD_SCRIPT = new DefaultRedisScript<>(
+            "if ARGV[3] == '0' and redis.call('exists', KEYS[1]) == 1 then return -1 end " +
+            "local pending = tonumber(redis.call('hget', KEYS[2], ARGV[1]) or '0') " +
+            "local stock = tonumber(ARGV[2]) - pending " +
+            "if stock < 0 then stock = 0 end " +
+            "redis.call('set', KEYS[1], stock) " +
+            "redis.call('sadd', KEYS[3], ARGV[1]) " +
+            "return stock", Long.class);
+
+    /**
+     * 对账时的 CAS 修正: 只有计数器仍等于观测值时才覆盖，避免吞掉对账期间发生的预扣。
+     * KEYS[1] = 库存计数器; ARGV[1] = 观测值, ARGV[2] = 修正后的值
+     */
+    private static final DefaultRedisScript<Long> CAS_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then redis.call('set', KEYS[1], ARGV[2]) return 1 end " +
+            "return 0", Long.class);
+
+    /**
+     * 回写提交后扣回 pending 并删除回写日志 (日志仍是这一批时才执行，重复调用不会重复扣)。
+     * pending 扣到 0 的字段直接删掉，回写任务不用每轮都扫一遍早已回写完的 SKU。
+     * KEYS[1] = pending hash, KEYS[2] = 回写日志 hash; ARGV[1] = skuId, ARGV[2] = "flushId:delta", ARGV[3] = delta
+     */
+    private static final DefaultRedisScript<Long> FINISH_FLUSH_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('hget', KEYS[2], ARGV[1]) ~= ARGV[2] then return 0 end " +
+            "if redis.call('hincrby', KEYS[1], ARGV[1], -tonumber(ARGV[3])) == 0 then " +
+            "  redis.call('hdel', KEYS[1], ARGV[1]) " +
+            "end " +
+            "redis.call('hdel', KEYS[2], ARGV[1]) " +
+            "return 1", Long.class);
+
+    @Autowired private StringRedisTemplate redisTemplate;
+    @Autowired private InventoryRepository inventoryRepository;
+    @Autowired private StockFlushLogRepository stockFlushLogRepository;
+    @Autowired private RedisLeaseLock leaseLock;
+    @Autowired private SyncOutboxService syncOutboxService;
+    @Autowired private TransactionTemplate transactionTemplate;
+
+    /**
+     * [核心功能]: 原子预扣库存
+     * @return 剩余库存；INSUFFICIENT 表示库存不足；NOT_LOADED 表示计数器尚未预热
+     */
+    public long tryReserve(Long skuId, int quantity) {
+        checkQuantity(quantity);
+        Long result = redisTemplate.execute(RESERVE_SCRIPT,
+                List.of(STOCK_KEY_PREFIX + skuId, PENDING_KEY),
+                skuId.toString(), String.valueOf(quantity));
+        return result != null ? result : NOT_LOADED;
+    }
+
+    /**
+     * 归还预扣的库存 (订单落库失败时调用)
+     */
+    public void release(Long skuId, int quantity) {
+        checkQuantity(quantity);
+        redisTemplate.execute(RELEASE_SCRIPT,
+                List.of(STOCK_KEY_PREFIX + skuId, PENDING_KEY),
+                skuId.toString(), String.valueOf(quantity));
+    }
+
+    /**
+     * [核心功能]: 整篮原子预扣 (一次 Lua 调用，all-or-nothing)
+     * @param basket skuId -> 购买数量
+     * @return 0 成功；i > 0 表示按 basket 迭代顺序第 i 个 SKU 库存不足；i < 0 表示第 -i 个 SKU 未预热
+     */
+    public long tryReserveAll(SortedMap<Long, Integer> basket) {
+        basket.values().forEach(RedisStockService::checkQuantity);
+        Long result = redisTemplate.execute(RESERVE_ALL_SCRIPT, basketKeys(basket), basketArgs(basket));
+        return result != null ? result : -1L;
+    }
+
+    /**
+     * 整篮归还预扣的库存
+     */
+    public void releaseAll(SortedMap<Long, Integer> basket) {
+        basket.values().forEach(RedisStockService::checkQuantity);
+        redisTemplate.execute(RELEASE_ALL_SCRIPT, basketKeys(basket), basketArgs(basket));
+    }
+
+    /**
+     * 数量必须为正: 负数会让 RESERVE 脚本反向加库存，0 会在 pending 里留下无意义的字段
+     */
+    private static void checkQuantity(Integer quantity) {
+        if (quantity == null || quantity <= 0) {
+            throw new RuntimeException("购买数量必须大于 0");
+        }
+    }
+
+    private List<String> basketKeys(SortedMap<Long, Integer> basket) {
+        List<String> keys = new ArrayList<>(basket.size() + 1);
+        keys.add(PENDING_KEY);
+        for (Long skuId : basket.keySet()) {
+            keys.add(STOCK_KEY_PREFIX + skuId);
+        }
+        return keys;
+    }
+
+    private Object[] basketArgs(SortedMap<Long, Integer> basket) {
+        List<String> args = new ArrayList<>(basket.size() * 2);
+        for (Map.Entry<Long, Integer> entry : basket.entrySet()) {
+            args.add(entry.getKey().toString());
+            args.add(entry.getValue().toString());
+        }
+        return args.toArray();
+    }
+
+    /**
+     * 懒加载: 计数器不存在时才用 MySQL 库存初始化 (已存在则不动)
+     */
+    public void loadIfAbsent(Long skuId) {
+        Inventory inventory = inventoryRepository.findById(skuId)
+                .orElseThrow(() -> new RuntimeException("商品不存在"));
+        loadCounter(skuId, inventory.getInventoryQuantity(), false);
+    }
+
+    /**
+     * [核心功能]: 大促前预热库存计数器
+     * 从 InventoryRepository 读取库存，覆盖写入 Redis (会扣除尚未回写的 pending 数量)。
+     * @param skuIds 需要预热的 SKU
+     * @return 成功预热的数量
+     */
+    public int preloadStock(Collection<Long> skuIds) {
+        List<Inventory> inventories = inventoryRepository.findAllById(skuIds);
+        return preload(inventories);
+    }
+
+    /**
+     * 预热全部库存计数器
+     */
+    public int preloadAllStock() {
+        return preload(inventoryRepository.findAll());
+    }
+
+    private int preload(List<Inventory> inventories) {
+        // 与回写/对账任务互斥，避免 "MySQL 已更新但 pending 未减" 的中间状态被当成真实库存
+        RedisLeaseLock.Lease lease = leaseLock.tryLock(JOB_LOCK_KEY, 0);
+        if (lease == null) {
+            throw new RuntimeException("库存回写任务正在执行，请稍后再预热");
+        }
+        try {
+            recoverFlushes();
+            for (Inventory inventory : inventories) {
+                loadCounter(inventory.getInventoryId(), inventory.getInventoryQuantity(), true);
+            }
+            System.out.println("Redis 库存预热完成: " + inventories.size() + " 个 SKU");
+            return inventories.size();
+        } finally {
+            leaseLock.unlock(lease);
+        }
+    }
+
+    private void loadCounter(Long skuId, int mysqlQuantity, boolean overwrite) {
+        redisTemplate.execute(LOAD_SCRIPT,
+                List.of(STOCK_KEY_PREFIX + skuId, PENDING_KEY, PRELOADED_SET_KEY),
+                skuId.toString(), String.valueOf(mysqlQuantity), overwrite ? "1" : "0");
+    }
+
+    /**
+     * 当前 Redis 中的可售库存 (未预热返回 null)
+     */
+    public Integer getStock(Long skuId) {
+        String value = redisTemplate.opsForValue().get(STOCK_KEY_PREFIX + skuId);
+        return value != null ? Integer.valueOf(value) : null;
+    }
+
+    /**
+     * 异步回写任务: 把 pending 中的扣减量批量写入 MySQL。
+     * 先写 MySQL 再减 pending，保证"计数器 = MySQL - pending"只会偏小。
+     * 每个 SKU: 1) 在 stock:flushing 记下 flushId 和增量；2) 一个事务内扣库存、写 stock_flush_log、记发件箱事件；
+     * 3) 扣回 pending 并删除 stock:flushing 记录。2、3 之间崩溃由下一轮的 recoverFlushes 收尾。
+     * 商品缓存和 ES 由发件箱中继异步更新。
+     */
+    @Scheduled(fixedDelayString = "${shiwu.stock.flush-interval-ms:1000}")
+    public void flushPendingDeductions() {
+        Map<Object, Object> pending = redisTemplate.opsForHash().entries(PENDING_KEY);
+        if (pending.isEmpty()) {
+            return;
+        }
+        // 租约由看门狗续期，SKU 再多回写再久也不会中途失效；真丢了 (如 Redis 故障) 就在下一个 SKU 前停下
+        RedisLeaseLock.Lease lease = leaseLock.tryLock(JOB_LOCK_KEY, 0);
+        if (lease == null) {
+            return; // 其他节点正在回写
+        }
+        List<Long> flushed = new ArrayList<>();
+        try {
+            recoverFlushes();
+            // 恢复可能已经扣回了一部分 pending，重新读一次
+            pending = redisTemplate.opsForHash().entries(PENDING_KEY);
+            LocalDateTime now = LocalDateTime.now();
+            for (Map.Entry<Object, Object> entry : pending.entrySet()) {
+                if (lease.isLost()) {
+                    break;
+                }
+                Long skuId = Long.valueOf(entry.getKey().toString());
+                int delta = Integer.parseInt(entry.getValue().toString());
+                if (delta <= 0) {
+                    continue;
+                }
+                String flushId = UUID.randomUUID().toString();
+                String journal = flushId + ":" + delta;
+                redisTemplate.opsForHash().put(FLUSHING_KEY, skuId.toString(), journal);
+                boolean applied = Boolean.TRUE.equals(transactionTemplate.execute(status -> {
+                    if (inventoryRepository.applyReservedDeduction(skuId, delta, now) == 0) {
+                        return false;
+                    }
+                    stockFlushLogRepository.save(new StockFlushLog(flushId, skuId, delta, now));
+                    syncOutboxService.recordStockChanges(List.of(skuId));
+                    return true;
+                }));
+                if (!applied) {
+                    redisTemplate.opsForHash().delete(FLUSHING_KEY, skuId.toString());
+                    System.err.println("库存回写失败，inventory 不存在: " + skuId);
+                    continue;
+                }
+                finishFlush(skuId.toString(), journal, delta);
+                flushed.add(skuId);
+            }
+        } finally {
+            leaseLock.unlock(lease);
+        }
+
+        if (!flushed.isEmpty()) {
+            System.out.println("Redis 库存回写完成: " + flushed.size() + " 个 SKU");
+        }
+    }
+
+    /**
+     * 对账任务: 以 MySQL 为准修正 Redis 计数器 (例如后台补货直接改了 MySQL)。
+     */
+    @Scheduled(fixedDelayString = "${shiwu.stock.reconcile-interval-ms:60000}")
+    public void reconcileStock() {
+        Set<String> skuIds = redisTemplate.opsForSet().members(PRELOADED_SET_KEY);
+        if (skuIds == null || skuIds.isEmpty()) {
+            return;
+        }
+        RedisLeaseLock.Lease lease = leaseLock.tryLock(JOB_LOCK_KEY, 0);
+        if (lease == null) {
+            return;
+        }
+        int fixed = 0;
+        try {
+            // 先收尾未完成的回写，否则 "MySQL 已扣、pending 未减" 会被算成真实库存少了
+            recoverFlushes();
+            stockFlushLogRepository.deleteOlderThan(LocalDateTime.now().minusDays(1));
+            for (String skuIdStr : skuIds) {
+                if (lease.isLost()) {
+                    break;
+                }
+                Long skuId = Long.valueOf(skuIdStr);
+                // 先读 Redis 侧 (计数器 + pending)，再读 MySQL
+                String observed = redisTemplate.opsForValue().get(STOCK_KEY_PREFIX + skuId);
+                Object pendingValue = redisTemplate.opsForHash().get(PENDING_KEY, skuIdStr);
+                if (observed == null) {
+                    continue;
+                }
+                int pending = pendingValue != null ? Integer.parseInt(pendingValue.toString()) : 0;
+                Inventory inventory = inventoryRepository.findById(skuId).orElse(null);
+                if (inventory == null) {
+                    continue;
+                }
+                long expected = Math.max(0, inventory.getInventoryQuantity() - pending);
+                if (Long.parseLong(observed) != expected) {
+                    Long swapped = redisTemplate.execute(CAS_SCRIPT,
+                            List.of(STOCK_KEY_PREFIX + skuId), observed, String.valueOf(expected));
+                    if (swapped != null && swapped == 1L) {
+                        fixed++;
+                        System.out.println("库存对账修正 SKU " + skuId + ": " + observed + " -> " + expected);
+                    }
+                }
+            }
+        } finally {
+            leaseLock.unlock(lease);
+        }
+        if (fixed > 0) {
+            System.out.println("库存对账完成，修正 " + fixed + " 个 SKU");
+        }
+    }
+
+    /**
+     * 崩溃恢复 (持有任务锁时调用): 逐条检查 stock:flushing 中未完成的回写。
+     * stock_flush_log 里有这个 flushId 说明 MySQL 已提交，只需扣回 pending；没有说明事务没提交，丢弃日志即可，
+     * 这部分 pending 会在下一轮正常回写。
+     */
+    private void recoverFlushes() {
+        Map<Object, Object> journals = redisTemplate.opsForHash().entries(FLUSHING_KEY);
+        for (Map.Entry<Object, Object> entry : journals.entrySet()) {
+            String skuId = entry.getKey().toString();
+            String journal = entry.getValue().toString();
+            int sep = journal.lastIndexOf(':');
+            String flushId = journal.substring(0, sep);
+            int delta = Integer.parseInt(journal.substring(sep + 1));
+            if (stockFlushLogRepository.existsById(flushId)) {
+                finishFlush(skuId, journal, delta);
+                System.out.println("补完未完成的库存回写 SKU " + skuId + ": " + delta);
+            } else {
+                redisTemplate.opsForHash().delete(FLUSHING_KEY, skuId);
+            }
+        }
+    }
+
+    private void finishFlush(String skuId, String journal, int delta) {
+        redisTemplate.execute(FINISH_FLUSH_SCRIPT, List.of(PENDING_KEY, FLUSHING_KEY),
+                skuId, journal, String.valueOf(delta));
+    }
+}
@@ -0,0 +1,252 @@
+package com.qimo.shiwu.service;
+
+import com.qimo.shiwu.dto.CachedSearchPage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * ===================================================================
+ * 服务 13: 搜索结果缓存 (ES 召回结果)
+ * ===================================================================
+ * [开发者注意]:
+ * AI 食谱会反复用同样的食材名 + 标签 + 价格区间搜索 (例如 "鸡胸"、"糙米")，
+ * 这里把 ES 召回的一页结果 (skuId 列表 + 总数) 缓存到 Redis，命中时完全不访问 ES。
+ *
+ * 缓存 key 由归一化后的 (搜索词, 排序去重后的标签, 价格区间, 分页) 计算摘要得到，
+ * 所以 " 鸡胸 " / "鸡胸"、[低脂, 高蛋白] / [高蛋白, 低脂] 会命中同一条缓存。
+ *
+ * Redis 中的数据结构:
+ * - search:result:{摘要}  (String) "代数|总数|skuId,skuId,..."
+ * - search:sku:{skuId}    (Set)    包含该 SKU 的所有结果 key (反向索引)
+ * - search:gen            (String) 全局代数，T+1 全量同步后加一，旧代数的结果全部作废
+ * - search:seq            (String) 失效序号，每次 invalidateSkus 加一
+ * - search:stamp:{skuId}  (String) 该 SKU 最近一次失效时的序号
+ *
+ * 失效: DataSyncService 每次把 SKU 同步到 ES 后调用 invalidateSkus，
+ * 通过反向索引删除所有包含这些 SKU 的结果。
+ * 新上架 / 价格变动后新进入某个结果的 SKU 无法通过反向索引找到，这部分由 TTL 兜底。
+ *
+ * 写入竞态: "未命中 -> 召回 ES -> (SKU 同步并失效) -> 写入" 会把失效前召回的旧结果写回去。
+ * 所以召回前先用 recallTicket 记下 (代数, 失效序号)，put 时用 Lua 校验: 代数变了或结果中任一 SKU 的失效序号
+ * 比票据新，说明召回期间发生过失效，放弃写入。
+ */
+@Service
+public class SearchResultCache {
+
+    private static final String RESULT_KEY_PREFIX = "search:result:";
+    private static final String SKU_INDEX_KEY_PREFIX = "search:sku:";
+    private static final String GENERATION_KEY = "search:gen";
+    private static final String SEQ_KEY = "search:seq";
+    private static final String STAMP_KEY_PREFIX = "search:stamp:";
+
+    /**
+     * 条件写入: 召回期间没有发生失效才写结果并登记反向索引。
+     * KEYS[1] = 代数, KEYS[2] = 结果 key, KEYS[3..n+2] = 各 SKU 的失效序号, KEYS[n+3..2n+2] = 各 SKU 的反向索引
+     * ARGV[1] = 票据代数, ARGV[2] = 票据失效序号, ARGV[3] = 结果, ARGV[4] = 结果 TTL, ARGV[5] = 反向索引 TTL
+     * 返回 1 已写入，0 已放弃
+     */
+    private static final DefaultRedisScript<Long> PUT_SCRIPT = new DefaultRedisScript<>(
+            "if (redis.call('get', KEYS[1]) or '0') ~= ARGV[1] then return 0 end " +
+            "local n = (#KEYS - 2) / 2 " +
+            "for i = 1, n do " +
+            "  local stamp = redis.call('get', KEYS[2 + i]) " +
+            "  if stamp and tonumber(stamp) > tonumber(ARGV[2]) then return 0 end " +
+            "end " +
+            "redis.call('set', KEYS[2], ARGV[3], 'PX', ARGV[4]) " +
+            "for i = 1, n do " +
+            "  redis.call('sadd', KEYS[2 + n + i], KEYS[2]) " +
+            "  redis.call('pexpire', KEYS[2 + n + i], ARGV[5]) " +
+            "end " +
+            "return 1", Long.class);
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Value("${shiwu.search.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${shiwu.search.cache.ttl-ms:300000}")
+    private long ttlMillis;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * 计算归一化的缓存 key
+     */
+    public String buildKey(String query, List<String> tags, BigDecimal minPrice, BigDecimal maxPrice, Pageable pageable) {
+        String normalizedQuery = query == null ? "" : query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+        String normalizedTags = tags == null ? "" : tags.stream()
+                .filter(t -> t != null && !t.isBlank())
+                .map(String::trim)
+                .distinct()
+                .sorted()
+                .collect(Collectors.joining(","));
+        String raw = normalizedQuery + '\u0001' + normalizedTags + '\u0001'
+                + minPrice.stripTrailingZeros().toPlainString() + '\u0001'
+                + maxPrice.stripTrailingZeros().toPlainString() + '\u0001'
+                + pageable.getPageNumber() + '\u0001' + pageable.getPageSize() + '\u0001' + pageable.getSort();
+        return RESULT_KEY_PREFIX + DigestUtils.md5DigestAsHex(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 读取缓存 (一次 MGET 同时取全局代数和结果)
+     * @return 命中的结果，未命中或已作废时返回 null
+     */
+    public CachedSearchPage get(String key) {
+        if (!enabled) {
+            return null;
+        }
+        List<String> values = redisTemplate.opsForValue().multiGet(List.of(GENERATION_KEY, key));
+        String generation = values != null && values.get(0) != null ? values.get(0) : "0";
+        String entry = values != null ? values.get(1) : null;
+        if (entry != null) {
+            String[] parts = entry.split("\\|", 3);
+            if (parts.length == 3 && parts[0].equals(generation)) {
+                hits.incrementAndGet();
+                List<Long> skuIds = new ArrayList<>();
+                if (!parts[2].isEmpty()) {
+                    for (String id : parts[2].split(",")) {
+                        skuIds.add(Long.valueOf(id));
+                    }
+                }
+                return new CachedSearchPage(skuIds, Long.parseLong(parts[1]));
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 召回 ES 之前调用: 记下当前的 (代数, 失效序号)，写入时交给 put 校验
+     * @return 票据 "代数:失效序号"；缓存关闭时返回 null
+     */
+    public String recallTicket() {
+        if (!enabled) {
+            return null;
+        }
+        List<String> values = redisTemplate.opsForValue().multiGet(List.of(GENERATION_KEY, SEQ_KEY));
+        String generation = values != null && values.get(0) != null ? values.get(0) : "0";
+        String seq = values != null && values.get(1) != null ? values.get(1) : "0";
+        return generation + ":" + seq;
+    }
+
+    /**
+     * 写入缓存，并登记反向索引 (一次 Lua 调用)。
+     * 拿到票据之后发生了全量作废或结果中某个 SKU 的失效，就不写入，避免把旧结果缓存一个 TTL。
+     * @param ticket 召回前由 recallTicket 取得
+     */
+    public void put(String key, String ticket, List<Long> skuIds, long totalElements) {
+        if (!enabled || ticket == null) {
+            return;
+        }
+        int sep = ticket.indexOf(':');
+        String generation = ticket.substring(0, sep);
+        String seq = ticket.substring(sep + 1);
+        String value = generation + "|" + totalElements + "|"
+                + skuIds.stream().map(String::valueOf).collect(Collectors.joining(","));
+        List<String> keys = new ArrayList<>(skuIds.size() * 2 + 2);
+        keys.add(GENERATION_KEY);
+        keys.add(key);
+        for (Long skuId : skuIds) {
+            keys.add(STAMP_KEY_PREFIX + skuId);
+        }
+        for (Long skuId : skuIds) {
+            keys.add(SKU_INDEX_KEY_PREFIX + skuId);
+        }
+        // 反向索引比结果多活一个 TTL 即可，结果过期后残留的 key 在下次失效时顺带清掉
+        redisTemplate.execute(PUT_SCRIPT, keys, generation, seq, value,
+                String.valueOf(ttlMillis), String.valueOf(ttlMillis * 2));
+    }
+
+    /**
+     * [核心功能]: 作废包含这些 SKU 的所有搜索结果 (SKU 已同步到 ES 后调用)
+     */
+    public void invalidateSkus(Collection<Long> skuIds) {
+        if (!enabled || skuIds.isEmpty()) {
+            return;
+        }
+        List<String> indexKeys = skuIds.stream().map(id -> SKU_INDEX_KEY_PREFIX + id).toList();
+        // 先盖失效序号 (之后的 put 会被拦下)，再取反向索引 (之前已写入的结果会被删掉)
+        Long seq = redisTemplate.opsForValue().increment(SEQ_KEY);
+        byte[] stamp = String.valueOf(seq).getBytes(StandardCharsets.UTF_8);
+        List<Object> members = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long skuId : skuIds) {
+                // 只需要活得比一次召回久
+                connection.stringCommands().pSetEx((STAMP_KEY_PREFIX + skuId).getBytes(StandardCharsets.UTF_8),
+                        ttlMillis * 2, stamp);
+            }
+            for (String indexKey : indexKeys) {
+                connection.setCommands().sMembers(indexKey.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+
+        Set<String> toDelete = new LinkedHashSet<>(indexKeys);
+        int resultCount = 0;
+        for (Object set : members) {
+            if (set instanceof Collection<?> keys) {
+                for (Object resultKey : keys) {
+                    if (toDelete.add(String.valueOf(resultKey))) {
+                        resultCount++;
+                    }
+                }
+            }
+        }
+        redisTemplate.delete(toDelete);
+        invalidations.addAndGet(resultCount);
+    }
+
+    /**
+     * 作废全部搜索结果 (全量同步后调用)
+     */
+    public void invalidateAll() {
+        if (!enabled) {
+            return;
+        }
+        // 旧代数的结果不再被读取，在 TTL 内自然过期
+        redisTemplate.opsForValue().increment(GENERATION_KEY);
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * 命中率 (0 ~ 1)
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * 因 SKU 变更而删除的结果条数
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+}
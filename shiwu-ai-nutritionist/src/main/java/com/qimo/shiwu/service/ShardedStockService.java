@@ -0,0 +1,518 @@
+package com.qimo.shiwu.service;
+
+import com.qimo.shiwu.data.mysql.entity.Inventory;
+import com.qimo.shiwu.data.mysql.repository.InventoryRepository;
+import com.qimo.shiwu.util.RedisLeaseLock;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ===================================================================
+ * 服务 10: 分段库存服务 (超热点 SKU 的库存分桶)
+ * ===================================================================
+ * [开发者注意]:
+ * OrderService 的 SHARDED 模式使用。把一个 SKU 的库存拆成 N 个子桶，每个桶是一个独立的 Redis key，
+ * 在 Redis Cluster 下会分散到不同节点，单个热点 key 不再是瓶颈，吞吐大致随桶数线性增长。
+ *
+ * Redis 中的数据结构:
+ * - stock:shard:{skuId}:{i}  (Hash) stock = 桶内可售库存, pending = 已扣减、尚未回写 MySQL 的数量
+ *                             move:{id} / moved:{id} = 再平衡搬运的日志 (见下文)
+ * - stock:shard:meta         (Hash) field = skuId, value = 桶数
+ * 每个 Lua 脚本只操作一个 key，天然兼容 Redis Cluster (多 key 脚本要求所有桶在同一个 slot，分桶就失去了意义)。
+ *
+ * 下单: 随机选一个起始桶，不够就依次尝试相邻的桶；单个桶都不够时再跨桶凑单 (失败则全部归还)。
+ * 读取: 管道一次取回所有桶求和。
+ * 再平衡: 定时把库存从富余的桶挪到空桶，避免"总量够但都分散在别的桶"。
+ * 回写: 定时把各桶的 pending 汇总后写入 MySQL，并记录发件箱事件。
+ * 对账: 定时比较 MySQL 库存与各桶 stock + pending 之和 (下单、归还都在同一个桶内同时改这两个字段，和不变)，修正差额。
+ *
+ * 初始化、再平衡、回写、对账都在同一把分布式锁 (JOB_LOCK_KEY) 下执行，同一时刻只有一个节点在改桶的划分。
+ * 初始化先写各个桶，最后才写 meta，其他节点读到桶数时桶一定已经存在。
+ * 再平衡搬运分三步，中途崩溃可恢复 (对账时补完):
+ *   1. 源桶扣 stock，同时在源桶记下日志 move:{id} = 目标桶:数量；
+ *   2. 目标桶加 stock，同时记下 moved:{id} (已有则跳过，保证只加一次)；
+ *   3. 删除源桶的 move:{id}。
+ */
+@Service
+public class ShardedStockService {
+
+    public static final String SHARD_KEY_PREFIX = "stock:shard:";
+    public static final String META_KEY = "stock:shard:meta";
+    private static final String JOB_LOCK_KEY = "lock:stock:shard-job";
+
+    /**
+     * 从单个桶扣减: KEYS[1] = 桶; ARGV[1] = 数量
+     * 返回扣减后的桶内库存，-1 库存不足，-2 桶未初始化
+     */
+    private static final DefaultRedisScript<Long> RESERVE_SCRIPT = new DefaultRedisScript<>(
+            "local stock = redis.call('hget', KEYS[1], 'stock') " +
+            "if not stock then return -2 end " +
+            "if tonumber(stock) < tonumber(ARGV[1]) then return -1 end " +
+            "redis.call('hincrby', KEYS[1], 'pending', ARGV[1]) " +
+            "return redis.call('hincrby', KEYS[1], 'stock', -tonumber(ARGV[1]))", Long.class);
+
+    /**
+     * 从单个桶尽量多拿 (最多 ARGV[1] 个)，ARGV[2] = "1" 时同时记入 pending (下单凑单)，"0" 时不记 (再平衡搬运)
+     * 返回实际拿到的数量
+     */
+    private static final DefaultRedisScript<Long> TAKE_SCRIPT = new DefaultRedisScript<>(
+            "local stock = tonumber(redis.call('hget', KEYS[1], 'stock') or '0') " +
+            "local take = math.min(stock, tonumber(ARGV[1])) " +
+            "if take <= 0 then return 0 end " +
+            "redis.call('hincrby', KEYS[1], 'stock', -take) " +
+            "if ARGV[2] == '1' then redis.call('hincrby', KEYS[1], 'pending', take) end " +
+            "return take", Long.class);
+
+    /**
+     * 放回单个桶: ARGV[1] = 数量, ARGV[2] = "1" 时同时扣回 pending (归还下单)，"0" 时不扣 (再平衡搬运)
+     */
+    private static final DefaultRedisScript<Long> GIVE_SCRIPT = new DefaultRedisScript<>(
+            "if ARGV[2] == '1' then redis.call('hincrby', KEYS[1], 'pending', -tonumber(ARGV[1])) end " +
+            "return redis.call('hincrby', KEYS[1], 'stock', ARGV[1])", Long.class);
+
+    /**
+     * 搬运第 1 步 (源桶): 最多拿 ARGV[1] 个，并记下日志 ARGV[2] = ARGV[3] .. ':' .. 实际数量
+     * 返回实际拿到的数量
+     */
+    private static final DefaultRedisScript<Long> MOVE_OUT_SCRIPT = new DefaultRedisScript<>(
+            "local stock = tonumber(redis.call('hget', KEYS[1], 'stock') or '0') " +
+            "local take = math.min(stock, tonumber(ARGV[1])) " +
+            "if take <= 0 then return 0 end " +
+            "redis.call('hincrby', KEYS[1], 'stock', -take) " +
+            "redis.call('hset', KEYS[1], ARGV[2], ARGV[3] .. ':' .. take) " +
+            "return take", Long.class);
+
+    /**
+     * 搬运第 2 步 (目标桶): ARGV[2] = moved:{id} 不存在时才加 ARGV[1] 个，ARGV[3] = 当前时间 (清理旧记录用)
+     */
+    private static final DefaultRedisScript<Long> MOVE_IN_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('hsetnx', KEYS[1], ARGV[2], ARGV[3]) == 0 then return 0 end " +
+            "redis.call('hincrby', KEYS[1], 'stock', ARGV[1]) " +
+            "return 1", Long.class);
+
+    private static final String MOVE_OUT_PREFIX = "move:";
+    private static final String MOVE_IN_PREFIX = "moved:";
+    // moved:{id} 保留多久 (远大于一次搬运的耗时)，过期后由对账清理
+    private static final long MOVE_IN_RETENTION_MS = TimeUnit.MINUTES.toMillis(10);
+
+    @Autowired private StringRedisTemplate redisTemplate;
+    @Autowired private InventoryRepository inventoryRepository;
+    @Autowired private SyncOutboxService syncOutboxService;
+    @Autowired private TransactionTemplate transactionTemplate;
+    @Autowired private RedisLeaseLock leaseLock;
+
+    @Value("${shiwu.stock.shard.default-buckets:8}")
+    private int defaultBuckets;
+
+    @Value("${shiwu.lock.max-wait-ms:2000}")
+    private long lockMaxWaitMs; // 懒初始化 / 手动划分时最多等多久任务锁
+
+    /**
+     * [核心功能]: 初始化 (或重新划分) 一个 SKU 的库存分桶
+     * 可售总量 = MySQL 库存 - 各桶尚未回写的 pending，平均分到 N 个桶。
+     * 应在开售前调用；开售后重新划分会覆盖各桶的 stock。
+     */
+    public void initShards(Long skuId, int buckets) {
+        RedisLeaseLock.Lease lease = lockJob(lockMaxWaitMs);
+        try {
+            doInitShards(skuId, buckets);
+        } finally {
+            leaseLock.unlock(lease);
+        }
+    }
+
+    /**
+     * 持有任务锁时调用: 先写各个桶，最后写 meta
+     */
+    private int doInitShards(Long skuId, int buckets) {
+        Inventory inventory = inventoryRepository.findById(skuId)
+                .orElseThrow(() -> new RuntimeException("商品不存在"));
+        int oldBuckets = getBucketCount(skuId);
+        // 先补完中断的搬运，否则覆盖 stock 之后再补会多出库存
+        recoverMoves(skuId, oldBuckets);
+        long pending = 0;
+        for (long p : readBuckets(skuId, oldBuckets, "pending")) {
+            pending += p;
+        }
+        long total = Math.max(0, inventory.getInventoryQuantity() - pending);
+
+        for (int i = 0; i < buckets; i++) {
+            long share = total / buckets + (i < total % buckets ? 1 : 0);
+            redisTemplate.opsForHash().put(bucketKey(skuId, i), "stock", String.valueOf(share));
+            // 已有的 pending 原样保留，等待回写
+            redisTemplate.opsForHash().putIfAbsent(bucketKey(skuId, i), "pending", "0");
+        }
+        for (int i = buckets; i < oldBuckets; i++) {
+            // 桶数变少时，多出来的桶只保留 pending 等待回写
+            redisTemplate.opsForHash().put(bucketKey(skuId, i), "stock", "0");
+        }
+        int count = Math.max(buckets, oldBuckets);
+        redisTemplate.opsForHash().put(META_KEY, skuId.toString(), String.valueOf(count));
+        System.out.println("SKU " + skuId + " 库存分桶完成: " + total + " 件分到 " + buckets + " 个桶");
+        return count;
+    }
+
+    /**
+     * 桶数 (首次下单时懒初始化: 在任务锁下再查一次，只有一个节点真正划分，其他节点等它写完 meta)
+     */
+    private int ensureShards(Long skuId) {
+        int buckets = getBucketCount(skuId);
+        if (buckets > 0) {
+            return buckets;
+        }
+        RedisLeaseLock.Lease lease = lockJob(lockMaxWaitMs);
+        try {
+            buckets = getBucketCount(skuId);
+            return buckets > 0 ? buckets : doInitShards(skuId, defaultBuckets);
+        } finally {
+            leaseLock.unlock(lease);
+        }
+    }
+
+    private RedisLeaseLock.Lease lockJob(long waitMillis) {
+        RedisLeaseLock.Lease lease = leaseLock.tryLock(JOB_LOCK_KEY, waitMillis);
+        if (lease == null) {
+            throw new RuntimeException("库存分桶正在调整，请稍后重试");
+        }
+        return lease;
+    }
+
+    /**
+     * [核心功能]: 分桶扣减
+     * @return true 扣减成功；false 库存不足
+     */
+    public boolean tryReserve(Long skuId, int quantity) {
+        checkQuantity(quantity);
+        int buckets = ensureShards(skuId);
+
+        // 1. 随机起始桶，不够就尝试相邻的桶
+        int start = ThreadLocalRandom.current().nextInt(buckets);
+        for (int k = 0; k < buckets; k++) {
+            Long left = redisTemplate.execute(RESERVE_SCRIPT,
+                    List.of(bucketKey(skuId, (start + k) % buckets)), String.valueOf(quantity));
+            if (left != null && left >= 0) {
+                return true;
+            }
+        }
+
+        // 2. 单个桶都不够: 跨桶凑单，凑不齐则全部归还
+        int need = quantity;
+        int[] taken = new int[buckets];
+        for (int k = 0; k < buckets && need > 0; k++) {
+            int i = (start + k) % buckets;
+            Long got = redisTemplate.execute(TAKE_SCRIPT, List.of(bucketKey(skuId, i)),
+                    String.valueOf(need), "1");
+            taken[i] = got != null ? got.intValue() : 0;
+            need -= taken[i];
+        }
+        if (need == 0) {
+            return true;
+        }
+        for (int i = 0; i < buckets; i++) {
+            if (taken[i] > 0) {
+                redisTemplate.execute(GIVE_SCRIPT, List.of(bucketKey(skuId, i)), String.valueOf(taken[i]), "1");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 数量必须为正: 负数能通过 RESERVE_SCRIPT 的库存判断，扣减反而会给桶加库存
+     */
+    private static void checkQuantity(int quantity) {
+        if (quantity <= 0) {
+            throw new RuntimeException("购买数量必须大于 0");
+        }
+    }
+
+    /**
+     * 归还库存 (订单落库失败时调用)，放回随机一个桶
+     */
+    public void release(Long skuId, int quantity) {
+        checkQuantity(quantity);
+        int buckets = getBucketCount(skuId);
+        if (buckets == 0) {
+            return;
+        }
+        int i = ThreadLocalRandom.current().nextInt(buckets);
+        redisTemplate.execute(GIVE_SCRIPT, List.of(bucketKey(skuId, i)), String.valueOf(quantity), "1");
+    }
+
+    /**
+     * 当前可售总量 = 各桶之和 (一次管道读取)
+     */
+    public long getTotalStock(Long skuId) {
+        long total = 0;
+        for (long stock : readBuckets(skuId, getBucketCount(skuId), "stock")) {
+            total += stock;
+        }
+        return total;
+    }
+
+    /**
+     * 再平衡: 总量足够但有桶见底时，把库存从富余的桶搬到低于平均值的桶 (只在抢到任务锁的节点上执行)
+     */
+    @Scheduled(fixedDelayString = "${shiwu.stock.shard.rebalance-interval-ms:500}")
+    public void rebalance() {
+        RedisLeaseLock.Lease lease = leaseLock.tryLock(JOB_LOCK_KEY, 0);
+        if (lease == null) {
+            return; // 其他节点正在处理
+        }
+        try {
+            for (Long skuId : shardedSkuIds()) {
+                if (lease.isLost()) {
+                    return;
+                }
+                rebalance(skuId, lease);
+            }
+        } finally {
+            leaseLock.unlock(lease);
+        }
+    }
+
+    private void rebalance(Long skuId, RedisLeaseLock.Lease lease) {
+        long[] stocks = readBuckets(skuId, getBucketCount(skuId), "stock");
+        int n = stocks.length;
+        long total = 0;
+        long min = Long.MAX_VALUE;
+        for (long s : stocks) {
+            total += s;
+            min = Math.min(min, s);
+        }
+        if (total < n || min > 0) {
+            return; // 总量不足以每桶一件，或者没有空桶
+        }
+        long avg = total / n;
+        for (int dst = 0; dst < n; dst++) {
+            for (int src = 0; src < n && stocks[dst] < avg; src++) {
+                long surplus = stocks[src] - avg;
+                if (surplus <= 0) {
+                    continue;
+                }
+                if (lease.isLost()) {
+                    return; // 锁已被别人拿走，剩下的交给对方
+                }
+                long got = move(skuId, src, dst, Math.min(surplus, avg - stocks[dst]));
+                stocks[src] -= got;
+                stocks[dst] += got;
+            }
+        }
+    }
+
+    /**
+     * 从 src 桶搬最多 want 个到 dst 桶 (三步见类注释)
+     * @return 实际搬运的数量
+     */
+    private long move(Long skuId, int src, int dst, long want) {
+        String moveId = UUID.randomUUID().toString();
+        Long got = redisTemplate.execute(MOVE_OUT_SCRIPT, List.of(bucketKey(skuId, src)),
+                String.valueOf(want), MOVE_OUT_PREFIX + moveId, String.valueOf(dst));
+        if (got == null || got <= 0) {
+            return 0;
+        }
+        redisTemplate.execute(MOVE_IN_SCRIPT, List.of(bucketKey(skuId, dst)),
+                String.valueOf(got), MOVE_IN_PREFIX + moveId, String.valueOf(System.currentTimeMillis()));
+        redisTemplate.opsForHash().delete(bucketKey(skuId, src), MOVE_OUT_PREFIX + moveId);
+        return got;
+    }
+
+    /**
+     * 补完中断的搬运 (源桶上还留着 move:{id} 日志的)，顺带清理过期的 moved:{id}。持有任务锁时调用。
+     */
+    private void recoverMoves(Long skuId, int buckets) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < buckets; i++) {
+            String key = bucketKey(skuId, i);
+            for (Map.Entry<Object, Object> entry : redisTemplate.opsForHash().entries(key).entrySet()) {
+                String field = entry.getKey().toString();
+                String value = entry.getValue().toString();
+                if (field.startsWith(MOVE_OUT_PREFIX)) {
+                    String moveId = field.substring(MOVE_OUT_PREFIX.length());
+                    String[] parts = value.split(":");
+                    redisTemplate.execute(MOVE_IN_SCRIPT, List.of(bucketKey(skuId, Integer.parseInt(parts[0]))),
+                            parts[1], MOVE_IN_PREFIX + moveId, String.valueOf(now));
+                    redisTemplate.opsForHash().delete(key, field);
+                    System.out.println("补完中断的库存搬运 SKU " + skuId + ": 桶 " + i + " -> 桶 " + parts[0] + " " + parts[1] + " 件");
+                } else if (field.startsWith(MOVE_IN_PREFIX) && now - Long.parseLong(value) > MOVE_IN_RETENTION_MS) {
+                    redisTemplate.opsForHash().delete(key, field);
+                }
+            }
+        }
+    }
+
+    /**
+     * 对账: MySQL 库存应等于各桶 stock + pending 之和 (回写、搬运都在同一把锁下，此时不会进行到一半)。
+     * 修正中断的搬运、Redis 数据丢失以及绕过分桶直接改 MySQL 库存 (补货等) 造成的差额。
+     */
+    @Scheduled(fixedDelayString = "${shiwu.stock.shard.reconcile-interval-ms:60000}")
+    public void reconcile() {
+        RedisLeaseLock.Lease lease = leaseLock.tryLock(JOB_LOCK_KEY, 0);
+        if (lease == null) {
+            return;
+        }
+        try {
+            for (Long skuId : shardedSkuIds()) {
+                if (lease.isLost()) {
+                    return;
+                }
+                reconcile(skuId);
+            }
+        } catch (Exception e) {
+            System.err.println("分桶库存对账失败: " + e.getMessage());
+        } finally {
+            leaseLock.unlock(lease);
+        }
+    }
+
+    private void reconcile(Long skuId) {
+        Inventory inventory = inventoryRepository.findById(skuId).orElse(null);
+        if (inventory == null) {
+            return;
+        }
+        int buckets = getBucketCount(skuId);
+        recoverMoves(skuId, buckets);
+        long[] stocks = readBucketTotals(skuId, buckets);
+        long observed = 0;
+        for (long total : stocks) {
+            observed += total;
+        }
+        long diff = inventory.getInventoryQuantity() - observed;
+        if (diff == 0) {
+            return;
+        }
+        if (diff > 0) {
+            // 少了: 补到随机一个桶
+            int i = ThreadLocalRandom.current().nextInt(buckets);
+            redisTemplate.execute(GIVE_SCRIPT, List.of(bucketKey(skuId, i)), String.valueOf(diff), "0");
+        } else {
+            // 多了: 依次从各桶扣回 (已经卖出的部分扣不回，下次对账继续)
+            long excess = -diff;
+            for (int i = 0; i < buckets && excess > 0; i++) {
+                Long got = redisTemplate.execute(TAKE_SCRIPT, List.of(bucketKey(skuId, i)),
+                        String.valueOf(excess), "0");
+                excess -= got != null ? got : 0;
+            }
+        }
+        System.out.println("分桶库存对账修正 SKU " + skuId + ": " + (diff > 0 ? "+" : "") + diff);
+    }
+
+    /**
+     * 异步回写: 汇总各桶 pending，一个事务写入 MySQL 并记录发件箱事件，然后逐桶扣回 pending。
+     * 与 RedisStockService 一样先写 MySQL 再减 pending，可售量只会偏小不会偏大。
+     */
+    @Scheduled(fixedDelayString = "${shiwu.stock.flush-interval-ms:1000}")
+    public void flushPendingDeductions() {
+        // 多节点互斥，避免同一份 pending 被重复回写 (租约由看门狗续期，回写再久也不会中途失效)
+        RedisLeaseLock.Lease lease = leaseLock.tryLock(JOB_LOCK_KEY, 0);
+        if (lease == null) {
+            return;
+        }
+        try {
+            flushAll(lease);
+        } finally {
+            leaseLock.unlock(lease);
+        }
+    }
+
+    private void flushAll(RedisLeaseLock.Lease lease) {
+        LocalDateTime now = LocalDateTime.now();
+        for (Long skuId : shardedSkuIds()) {
+            if (lease.isLost()) {
+                return;
+            }
+            long[] pending = readBuckets(skuId, getBucketCount(skuId), "pending");
+            long sum = 0;
+            for (long p : pending) {
+                sum += p;
+            }
+            if (sum <= 0) {
+                continue;
+            }
+            int delta = (int) sum;
+            transactionTemplate.executeWithoutResult(status -> {
+                inventoryRepository.applyReservedDeduction(skuId, delta, now);
+                syncOutboxService.recordStockChanges(List.of(skuId));
+            });
+            for (int i = 0; i < pending.length; i++) {
+                if (pending[i] != 0) {
+                    redisTemplate.opsForHash().increment(bucketKey(skuId, i), "pending", -pending[i]);
+                }
+            }
+        }
+    }
+
+    private List<Long> shardedSkuIds() {
+        List<Long> ids = new ArrayList<>();
+        for (Object key : redisTemplate.opsForHash().keys(META_KEY)) {
+            ids.add(Long.valueOf(key.toString()));
+        }
+        return ids;
+    }
+
+    /**
+     * 桶数 (每次从 Redis 读，其他节点重新划分后立即可见)；0 表示尚未初始化
+     */
+    private int getBucketCount(Long skuId) {
+        Object value = redisTemplate.opsForHash().get(META_KEY, skuId.toString());
+        return value != null ? Integer.parseInt(value.toString()) : 0;
+    }
+
+    /**
+     * 管道读取所有桶的同一个字段
+     */
+    private long[] readBuckets(Long skuId, int buckets, String field) {
+        List<Object> values = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < buckets; i++) {
+                conn.hGet(bucketKey(skuId, i), field);
+            }
+            return null;
+        });
+        long[] result = new long[buckets];
+        for (int i = 0; i < buckets; i++) {
+            Object value = values.get(i);
+            result[i] = value != null ? Long.parseLong(value.toString()) : 0;
+        }
+        return result;
+    }
+
+    /**
+     * 管道读取每个桶的 stock + pending (同一个桶的两个字段用一次 HMGET 读，不会被下单拆开)
+     */
+    @SuppressWarnings("unchecked")
+    private long[] readBucketTotals(Long skuId, int buckets) {
+        List<Object> values = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < buckets; i++) {
+                conn.hMGet(bucketKey(skuId, i), "stock", "pending");
+            }
+            return null;
+        });
+        long[] result = new long[buckets];
+        for (int i = 0; i < buckets; i++) {
+            for (Object value : (List<Object>) values.get(i)) {
+                result[i] += value != null ? Long.parseLong(value.toString()) : 0;
+            }
+        }
+        return result;
+    }
+
+    private static String bucketKey(Long skuId, int bucket) {
+        return SHARD_KEY_PREFIX + skuId + ":" + bucket;
+    }
+}
@@ -0,0 +1,99 @@
+package com.qimo.shiwu.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ===================================================================
+ * 服务 12: SKU 销量统计
+ * ===================================================================
+ * [开发者注意]:
+ * 精排的 "销量热度" 数据来源。销量记在 Redis Hash `sku:sales` (field = skuId) 中，
+ * OrderService 每成交一单累加一次；精排时对一页候选只做一次 HMGET。
+ * 这是排序用的近似值: 记录失败只打日志，不影响下单。
+ */
+@Service
+public class SkuSalesService {
+
+    public static final String SALES_KEY = "sku:sales";
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    /**
+     * 累加销量 (整篮时一个 pipeline 完成)
+     */
+    public void recordSales(Map<Long, Integer> quantities) {
+        try {
+            if (quantities.size() == 1) {
+                Map.Entry<Long, Integer> item = quantities.entrySet().iterator().next();
+                redisTemplate.opsForHash().increment(SALES_KEY, item.getKey().toString(), item.getValue());
+                return;
+            }
+            byte[] key = SALES_KEY.getBytes(StandardCharsets.UTF_8);
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Map.Entry<Long, Integer> item : quantities.entrySet()) {
+                    connection.hashCommands().hIncrBy(key,
+                            item.getKey().toString().getBytes(StandardCharsets.UTF_8), item.getValue());
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            System.err.println("记录销量失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 批量读取销量 (一次 HMGET)
+     * @return 与 skuIds 顺序一致的销量数组，没有记录的为 0；Redis 不可用时全部为 0
+     */
+    public long[] getSales(List<Long> skuIds) {
+        long[] sales = new long[skuIds.size()];
+        if (skuIds.isEmpty()) {
+            return sales;
+        }
+        byte[][] fields = new byte[skuIds.size()][];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = skuIds.get(i).toString().getBytes(StandardCharsets.UTF_8);
+        }
+        try {
+            List<byte[]> values = redisTemplate.execute((RedisCallback<List<byte[]>>) (RedisConnection connection) ->
+                    connection.hashCommands().hMGet(SALES_KEY.getBytes(StandardCharsets.UTF_8), fields));
+            if (values != null) {
+                for (int i = 0; i < sales.length; i++) {
+                    byte[] value = values.get(i);
+                    if (value != null) {
+                        sales[i] = Long.parseLong(new String(value, StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("读取销量失败: " + e.getMessage());
+        }
+        return sales;
+    }
+
+    /**
+     * 读取全部 SKU 的销量 (一次 HGETALL，用于启动时构建索引等全量场景)
+     */
+    public Map<Long, Long> getAllSales() {
+        Map<Long, Long> sales = new HashMap<>();
+        try {
+            Map<Object, Object> all = redisTemplate.opsForHash().entries(SALES_KEY);
+            for (Map.Entry<Object, Object> entry : all.entrySet()) {
+                sales.put(Long.valueOf(entry.getKey().toString()), Long.valueOf(entry.getValue().toString()));
+            }
+        } catch (Exception e) {
+            System.err.println("读取销量失败: " + e.getMessage());
+        }
+        return sales;
+    }
+}
@@ -0,0 +1,281 @@
+package com.qimo.shiwu.service;
+
+import com.qimo.shiwu.data.mysql.entity.SyncOutboxEvent;
+import com.qimo.shiwu.data.mysql.repository.SyncOutboxRepository;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ===================================================================
+ * 服务 18: ES 近实时同步合并器 (防抖 + 合并)
+ * ===================================================================
+ * [开发者注意]:
+ * 大促时同一个 SKU 每秒被下单几百次，每单都同步一次 ES 是纯浪费 (读同一行、写同一篇文档)。
+ * 发件箱中继不再直接同步 ES，而是把事件标记到这里的脏集合 (dirty set，按 skuId 合并):
+ * - 同一个 SKU 在窗口内被反复标记，只保留一条 (记住第一次和最后一次标记的时间)；
+ * - 定时 (tick-ms) 取出 "安静了 window-ms" 或者 "第一次标记已超过 max-staleness-ms" 的 SKU，
+ *   一次 IN 查询 + 一次 bulk 写入 (syncSkus / syncStockAndPrice)；
+ * - 一直被打的热点 SKU 靠 max-staleness-ms 保证最多滞后这么久 (再加一个 tick 和一次同步的耗时)。
+ * 同一个 SKU 只要有一次 "完整变更" 标记，就按完整同步处理。
+ *
+ * 脏集合只是内存里的合并缓冲，不是持久状态: 每条记录带着它合并的发件箱事件 id，
+ * ES 同步成功后才删除这些发件箱事件 (确认)；进程崩溃时事件仍在 sync_outbox 中，认领租约到期后由中继重新投递。
+ * 刷出失败时会把这批 SKU 按原来的首次标记时间放回脏集合，并暂停刷出 (指数退避: retry-base-ms 起每次翻倍，
+ * 最多 max-backoff-ms)，ES 故障期间不会每个 tick 都打一次 MySQL + 一次注定失败的 bulk；成功一次后恢复正常节奏。
+ * 同时把这批事件在发件箱中标记为失败 (累加重试次数，推迟到同一个时间)，重启后也按这个节奏重试。
+ * 统计: 合并倍数 = 标记次数 / 实际同步的 SKU 次数；滞后 = 刷出时间 - 首次标记时间。
+ * 统计通过 Micrometer 导出 (/actuator/metrics/sync.coalesce.*)。
+ */
+@Service
+public class SkuSyncCoalescer implements MeterBinder {
+
+    @Autowired private DataSyncService dataSyncService;
+    @Autowired private SyncOutboxRepository syncOutboxRepository;
+
+    @Value("${shiwu.sync.coalesce.window-ms:500}")
+    private long windowMs;
+
+    @Value("${shiwu.sync.coalesce.max-staleness-ms:2000}")
+    private long maxStalenessMs;
+
+    @Value("${shiwu.sync.coalesce.retry-base-ms:500}")
+    private long retryBaseMs;
+
+    @Value("${shiwu.sync.coalesce.max-backoff-ms:30000}")
+    private long maxBackoffMs;
+
+    private final Map<Long, DirtyEntry> dirty = new ConcurrentHashMap<>();
+
+    // 失败退避 (只在调度线程中读写)
+    private int consecutiveFailures;
+    private long retryAtMillis;
+
+    // 统计
+    private final AtomicLong markCount = new AtomicLong();
+    private final AtomicLong syncedCount = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong totalLagMillis = new AtomicLong();
+    private final AtomicLong maxLagMillis = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    /**
+     * 一个待同步的 SKU (字段只在 ConcurrentHashMap 的 compute 中读写，由桶锁保护)
+     */
+    private static final class DirtyEntry {
+        final long firstMarkMillis;
+        long lastMarkMillis;
+        boolean full;
+        /** 合并进来的发件箱事件，同步成功后删除 */
+        final Set<Long> eventIds = new HashSet<>();
+
+        DirtyEntry(long firstMarkMillis, long lastMarkMillis, boolean full) {
+            this.firstMarkMillis = firstMarkMillis;
+            this.lastMarkMillis = lastMarkMillis;
+            this.full = full;
+        }
+    }
+
+    /**
+     * [核心功能]: 标记发件箱事件对应的 SKU 待同步
+     * SKU_CHANGED 需要完整同步，STOCK_CHANGED 只需局部同步价格/库存；同一个 SKU 两种都有时按完整同步。
+     * 事件在同步成功后才从发件箱删除。
+     */
+    public void mark(Collection<SyncOutboxEvent> events) {
+        long now = System.currentTimeMillis();
+        for (SyncOutboxEvent event : events) {
+            boolean full = !SyncOutboxEvent.STOCK_CHANGED.equals(event.getEventType());
+            dirty.compute(event.getSkuId(), (id, entry) -> {
+                if (entry == null) {
+                    entry = new DirtyEntry(now, now, full);
+                }
+                entry.lastMarkMillis = now;
+                entry.full |= full;
+                entry.eventIds.add(event.getEventId());
+                return entry;
+            });
+        }
+        markCount.addAndGet(events.size());
+    }
+
+    /**
+     * 刷出到期的 SKU
+     */
+    @Scheduled(fixedDelayString = "${shiwu.sync.coalesce.tick-ms:50}")
+    public void flush() {
+        long now = System.currentTimeMillis();
+        if (dirty.isEmpty() || now < retryAtMillis) {
+            return;
+        }
+        List<Long> fullIds = new ArrayList<>();
+        List<Long> stockIds = new ArrayList<>();
+        Map<Long, DirtyEntry> taken = new HashMap<>();
+        for (Long skuId : dirty.keySet()) {
+            dirty.computeIfPresent(skuId, (id, entry) -> {
+                boolean quiet = now - entry.lastMarkMillis >= windowMs;
+                boolean stale = now - entry.firstMarkMillis >= maxStalenessMs;
+                if (!quiet && !stale) {
+                    return entry;
+                }
+                (entry.full ? fullIds : stockIds).add(id);
+                taken.put(id, entry);
+                return null; // 移出脏集合；之后的新标记会开始一条新记录
+            });
+        }
+        if (fullIds.isEmpty() && stockIds.isEmpty()) {
+            return;
+        }
+
+        List<Long> eventIds = new ArrayList<>();
+        for (DirtyEntry entry : taken.values()) {
+            eventIds.addAll(entry.eventIds);
+        }
+
+        try {
+            dataSyncService.syncSkus(fullIds);
+            dataSyncService.syncStockAndPrice(stockIds);
+        } catch (Exception e) {
+            for (Map.Entry<Long, DirtyEntry> entry : taken.entrySet()) {
+                requeue(entry.getKey(), entry.getValue());
+            }
+            failureCount.incrementAndGet();
+            long backoff = Math.min(maxBackoffMs, retryBaseMs << Math.min(consecutiveFailures, 20));
+            consecutiveFailures++;
+            retryAtMillis = System.currentTimeMillis() + backoff;
+            System.err.println("ES 合并同步失败 (连续 " + consecutiveFailures + " 次)，" + backoff + "ms 后重试: " + e.getMessage());
+            deferEvents(eventIds, backoff);
+            return;
+        }
+        consecutiveFailures = 0;
+        acknowledge(eventIds);
+
+        long done = System.currentTimeMillis();
+        flushCount.incrementAndGet();
+        syncedCount.addAndGet(taken.size());
+        for (DirtyEntry entry : taken.values()) {
+            long lag = done - entry.firstMarkMillis;
+            totalLagMillis.addAndGet(lag);
+            maxLagMillis.accumulateAndGet(lag, Math::max);
+        }
+    }
+
+    /**
+     * 同步失败: 按原来的首次标记时间放回 (不能因为重试而把滞后时间重新计时)，事件 id 一起放回
+     */
+    private void requeue(Long skuId, DirtyEntry failed) {
+        dirty.compute(skuId, (id, current) -> {
+            if (current == null) {
+                failed.lastMarkMillis = failed.firstMarkMillis;
+                return failed;
+            }
+            DirtyEntry merged = new DirtyEntry(Math.min(current.firstMarkMillis, failed.firstMarkMillis),
+                    current.lastMarkMillis, current.full || failed.full);
+            merged.eventIds.addAll(current.eventIds);
+            merged.eventIds.addAll(failed.eventIds);
+            return merged;
+        });
+    }
+
+    /**
+     * 同步成功: 删除已经生效的发件箱事件 (删除失败也没关系，事件重新投递只会多同步一次)
+     */
+    private void acknowledge(List<Long> eventIds) {
+        if (eventIds.isEmpty()) {
+            return;
+        }
+        try {
+            syncOutboxRepository.deleteAllByIdInBatch(eventIds);
+        } catch (Exception e) {
+            System.err.println("发件箱事件确认失败，稍后会被重新投递: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 同步失败: 事件在发件箱中累加重试次数，并推迟到本地重试的时间之后才会被重新投递
+     * (本地重试成功会先把它们删掉；本进程挂了，就由其他节点或重启后的中继接手)
+     */
+    private void deferEvents(List<Long> eventIds, long backoffMillis) {
+        if (eventIds.isEmpty()) {
+            return;
+        }
+        try {
+            syncOutboxRepository.markFailed(eventIds, LocalDateTime.now().plus(Duration.ofMillis(backoffMillis + windowMs)));
+        } catch (Exception e) {
+            System.err.println("发件箱事件退避失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 合并倍数 = 标记次数 / 实际同步的 SKU 次数 (越大说明合并效果越好)
+     */
+    public double getCoalescingRatio() {
+        long synced = syncedCount.get();
+        return synced == 0 ? 0 : (double) markCount.get() / synced;
+    }
+
+    /**
+     * 平均滞后 (首次标记到同步完成)
+     */
+    public double getAverageLagMillis() {
+        long synced = syncedCount.get();
+        return synced == 0 ? 0 : (double) totalLagMillis.get() / synced;
+    }
+
+    public long getMaxLagMillis() {
+        return maxLagMillis.get();
+    }
+
+    public long getMarkCount() {
+        return markCount.get();
+    }
+
+    public long getSyncedCount() {
+        return syncedCount.get();
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    public int getPendingCount() {
+        return dirty.size();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("sync.coalesce.marks", markCount, AtomicLong::get)
+                .description("标记次数").register(registry);
+        FunctionCounter.builder("sync.coalesce.synced", syncedCount, AtomicLong::get)
+                .description("实际同步的 SKU 次数").register(registry);
+        FunctionCounter.builder("sync.coalesce.flushes", flushCount, AtomicLong::get).register(registry);
+        FunctionCounter.builder("sync.coalesce.failures", failureCount, AtomicLong::get).register(registry);
+        Gauge.builder("sync.coalesce.ratio", this, SkuSyncCoalescer::getCoalescingRatio)
+                .description("合并倍数").register(registry);
+        Gauge.builder("sync.coalesce.lag.avg", this, SkuSyncCoalescer::getAverageLagMillis)
+                .baseUnit("milliseconds").register(registry);
+        Gauge.builder("sync.coalesce.lag.max", this, SkuSyncCoalescer::getMaxLagMillis)
+                .baseUnit("milliseconds").register(registry);
+        Gauge.builder("sync.coalesce.pending", dirty, Map::size).register(registry);
+    }
+}
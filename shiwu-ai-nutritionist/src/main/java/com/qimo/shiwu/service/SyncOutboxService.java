@@ -0,0 +1,170 @@
+package com.qimo.shiwu.service;
+
+import com.qimo.shiwu.data.mysql.entity.SyncOutboxEvent;
+import com.qimo.shiwu.data.mysql.repository.SyncOutboxRepository;
+import com.qimo.shiwu.util.SnowflakeIdGenerator;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * ===================================================================
+ * 服务 9: 同步发件箱 (Transactional Outbox + 批量中继)
+ * ===================================================================
+ * [开发者注意]:
+ * 下单事务里只写一条 sync_outbox 记录 (recordSkuChanges)，不再同步调用 Redis / ES，
+ * 订单延迟里不再包含 ES 写入；事务回滚时事件也随之消失。
+ *
+ * 中继任务 (relay) 定期认领一批到期事件 (FOR UPDATE SKIP LOCKED + 租约，多节点各取各的)，按 skuId 去重合并后:
+ *   1. 一条多 key DEL 清理商品缓存；
+ *   2. 把事件交给 SkuSyncCoalescer 合并后同步 ES (热点 SKU 的反复变更在窗口内只同步一次):
+ *      SKU_CHANGED: 一次 IN 查询 + 一次 ES bulk 整篇重建；
+ *      STOCK_CHANGED (下单扣库存): 一次投影查询 + 一次 ES bulk 局部更新 (只改价格和库存)；
+ *      同一个 SKU 两种事件都有时只做整篇重建；
+ *   3. 事件由 SkuSyncCoalescer 在 ES 同步成功后删除 (确认)，同步失败时由它标记退避；
+ *      交给合并器之前就失败 (例如清缓存失败) 时逐个 SKU 重试，只有仍然失败的事件按各自的重试次数指数退避。
+ * 认领到确认之间事件一直留在 sync_outbox 里，进程崩溃后租约到期即被重新投递，不会丢。
+ * 清缓存和重建 ES 文档都是幂等的，租约到期后被重复投递也没有副作用。
+ */
+@Service
+public class SyncOutboxService {
+
+    @Autowired private SyncOutboxRepository syncOutboxRepository;
+    @Autowired private SnowflakeIdGenerator idGenerator;
+    @Autowired private ProductCacheService productCacheService;
+    @Autowired private SkuSyncCoalescer skuSyncCoalescer;
+    @Autowired private TransactionTemplate transactionTemplate;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Value("${shiwu.outbox.relay-batch-size:500}")
+    private int relayBatchSize;
+
+    @Value("${shiwu.outbox.max-backoff-seconds:300}")
+    private long maxBackoffSeconds;
+
+    @Value("${shiwu.outbox.claim-ttl-seconds:30}")
+    private long claimTtlSeconds;
+
+    /**
+     * [核心功能]: 在当前业务事务中记录 SKU 变更事件
+     * 必须在事务内调用 (MANDATORY)，保证事件与业务数据同生共死。
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void recordSkuChanges(Collection<Long> skuIds) {
+        record(skuIds, SyncOutboxEvent.SKU_CHANGED);
+    }
+
+    /**
+     * 在当前业务事务中记录 "只有库存/价格变化" 的事件 (下单、库存回写)
+     * 中继时只局部更新 ES 的 inventoryQuantity / skuPrice，不重建整篇文档。
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void recordStockChanges(Collection<Long> skuIds) {
+        record(skuIds, SyncOutboxEvent.STOCK_CHANGED);
+    }
+
+    private void record(Collection<Long> skuIds, String eventType) {
+        LocalDateTime now = LocalDateTime.now();
+        for (Long skuId : skuIds) {
+            SyncOutboxEvent event = new SyncOutboxEvent();
+            event.setEventId(idGenerator.nextId());
+            event.setSkuId(skuId);
+            event.setEventType(eventType);
+            event.setCreateTime(now);
+            event.setAttempts(0);
+            event.setNextAttemptTime(now);
+            // 主键已预先分配，persist 避免 save() 的 merge 查询
+            entityManager.persist(event);
+        }
+    }
+
+    /**
+     * 中继任务: 批量投递到期事件
+     */
+    @Scheduled(fixedDelayString = "${shiwu.outbox.relay-interval-ms:200}")
+    public void relay() {
+        List<SyncOutboxEvent> events = claimDueEvents();
+        if (events.isEmpty()) {
+            return;
+        }
+
+        try {
+            deliver(events);
+            System.out.println("发件箱中继完成: " + events.size() + " 条事件");
+        } catch (Exception e) {
+            // 整批失败: 逐个 SKU 重试，一个坏事件不拖累同批的其他事件
+            System.err.println("发件箱批量中继失败，改为逐个 SKU 投递: " + e.getMessage());
+            Map<Long, List<SyncOutboxEvent>> bySku = events.stream()
+                    .collect(Collectors.groupingBy(SyncOutboxEvent::getSkuId, LinkedHashMap::new, Collectors.toList()));
+            for (Map.Entry<Long, List<SyncOutboxEvent>> entry : bySku.entrySet()) {
+                try {
+                    deliver(entry.getValue());
+                } catch (Exception skuError) {
+                    backOff(entry.getValue(), skuError);
+                }
+            }
+        }
+    }
+
+    /**
+     * 在一个短事务里锁住并认领一批到期事件 (提交后行锁即释放，投递过程不持有数据库锁)
+     */
+    private List<SyncOutboxEvent> claimDueEvents() {
+        return transactionTemplate.execute(status -> {
+            LocalDateTime now = LocalDateTime.now();
+            List<SyncOutboxEvent> events = syncOutboxRepository.lockDueEvents(now, relayBatchSize);
+            if (!events.isEmpty()) {
+                syncOutboxRepository.claim(events.stream().map(SyncOutboxEvent::getEventId).toList(),
+                        now.plusSeconds(claimTtlSeconds));
+            }
+            return events;
+        });
+    }
+
+    /**
+     * 投递一组事件: 清缓存，再交给合并器同步 ES (同步成功后由合并器删除事件)
+     */
+    private void deliver(List<SyncOutboxEvent> events) {
+        // 同一个 SKU 的多次变更合并成一次
+        Set<Long> skuIds = new LinkedHashSet<>();
+        for (SyncOutboxEvent event : events) {
+            skuIds.add(event.getSkuId());
+        }
+        productCacheService.evictSkuCaches(skuIds);
+        skuSyncCoalescer.mark(events);
+    }
+
+    /**
+     * 投递失败: 每个事件按自己的重试次数退避 (新事件不会因为同批里有老的失败事件而被推迟很久)
+     */
+    private void backOff(List<SyncOutboxEvent> events, Exception e) {
+        LocalDateTime now = LocalDateTime.now();
+        Map<Integer, List<Long>> byAttempts = events.stream().collect(Collectors.groupingBy(
+                event -> event.getAttempts() + 1,
+                Collectors.mapping(SyncOutboxEvent::getEventId, Collectors.toList())));
+        for (Map.Entry<Integer, List<Long>> entry : byAttempts.entrySet()) {
+            int attempts = entry.getKey();
+            long backoff = Math.min(maxBackoffSeconds, 1L << Math.min(attempts, 20));
+            syncOutboxRepository.markFailed(entry.getValue(), now.plusSeconds(backoff));
+        }
+        System.err.println("发件箱中继失败 (SKU " + events.get(0).getSkuId() + ", " + events.size() + " 条事件)，稍后重试: "
+                + e.getMessage());
+    }
+}
@@ -0,0 +1,288 @@
+package com.qimo.shiwu.service;
+
+import com.qimo.shiwu.data.mysql.entity.SKU;
+import com.qimo.shiwu.util.AhoCorasick;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * ===================================================================
+ * 服务 15: 商品标签规则引擎
+ * ===================================================================
+ * [开发者注意]:
+ * 替换 DataSyncService 里硬编码的 contains("鸡胸") / contains("糙米") / skuHeat < 200。
+ * 规则从 `shiwu.tag.rules-location` 指定的文件加载 (格式见 tag-rules.txt)，分两类:
+ * - 关键词规则: 所有关键词编译成一个 Aho-Corasick 自动机，商品名和描述各扫描一遍，
+ *   耗时只与文本长度有关，规则再多也不会变慢；
+ * - 阈值规则: 按 (字段, 比较符) 分组并按阈值排序，每组一次二分查找即可找出全部命中的规则。
+ *
+ * 热加载: 定期检查规则文件的修改时间，变化后重新编译并整体替换 (volatile)；
+ * 新规则有语法错误时保留旧规则继续工作，只打日志。
+ * 使用 file: 路径 (例如 shiwu.tag.rules-location=file:/etc/shiwu/tag-rules.txt) 时才能热加载，
+ * classpath 里的文件在打包后不会变化。
+ * 规则变化只影响之后同步的商品，已在 ES 中的文档等下一次 T+1 全量同步时更新。
+ */
+@Service
+public class TagRuleEngine {
+
+    private static final String[] FIELDS = {"skuHeat", "skuPrice", "inventoryQuantity"};
+    private static final String[] OPERATORS = {"<", "<=", ">", ">="};
+
+    @Autowired
+    private ResourceLoader resourceLoader;
+
+    @Value("${shiwu.tag.rules-location:classpath:tag-rules.txt}")
+    private String rulesLocation;
+
+    private volatile CompiledRules rules;
+    private long loadedLastModified;
+
+    /**
+     * 编译后的规则集 (不可变)
+     */
+    private static final class CompiledRules {
+        final String[] tagNames;
+        final AhoCorasick keywords; // 负载 = 标签编号
+        // thresholds[字段][比较符] 按阈值升序排列的 (阈值, 标签编号)
+        final double[][][] thresholdValues;
+        final int[][][] thresholdTags;
+        final int ruleCount;
+
+        CompiledRules(String[] tagNames, AhoCorasick keywords,
+                      double[][][] thresholdValues, int[][][] thresholdTags, int ruleCount) {
+            this.tagNames = tagNames;
+            this.keywords = keywords;
+            this.thresholdValues = thresholdValues;
+            this.thresholdTags = thresholdTags;
+            this.ruleCount = ruleCount;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        try {
+            reload();
+        } catch (Exception e) {
+            throw new RuntimeException("加载标签规则失败: " + rulesLocation + ", " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 规则文件有变化时重新加载
+     */
+    @Scheduled(fixedDelayString = "${shiwu.tag.reload-check-interval-ms:10000}")
+    public void reloadIfChanged() {
+        try {
+            Resource resource = resourceLoader.getResource(rulesLocation);
+            if (resource.isFile() && resource.lastModified() != loadedLastModified) {
+                reload();
+            }
+        } catch (Exception e) {
+            System.err.println("标签规则热加载失败，继续使用旧规则: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 加载并编译规则文件，成功后整体替换当前规则
+     */
+    public synchronized void reload() throws IOException {
+        Resource resource = resourceLoader.getResource(rulesLocation);
+        long lastModified = resource.isFile() ? resource.lastModified() : 0;
+        CompiledRules compiled;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8))) {
+            compiled = compile(reader);
+        }
+        rules = compiled;
+        loadedLastModified = lastModified;
+        System.out.println("标签规则加载完成: " + compiled.ruleCount + " 条规则, "
+                + compiled.tagNames.length + " 个标签, 自动机 " + compiled.keywords.nodeCount() + " 个节点");
+    }
+
+    /**
+     * 当前规则是否有基于价格或库存的阈值规则
+     * (有的话，价格/库存变化会改变标签，不能只局部更新 ES 的这两个字段)
+     */
+    public boolean dependsOnStockOrPrice() {
+        CompiledRules r = rules;
+        for (int field = 1; field < FIELDS.length; field++) {
+            for (int op = 0; op < OPERATORS.length; op++) {
+                if (r.thresholdValues[field][op].length > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * [核心功能]: 计算一个 SKU 的标签
+     * 商品名和描述各扫描一遍 + 每个数值字段若干次二分查找。
+     */
+    public List<String> tagsFor(SKU sku) {
+        CompiledRules r = rules;
+        boolean[] hit = new boolean[r.tagNames.length];
+        int[] hitCount = {0};
+
+        if (sku.getProduct() != null) {
+            scan(r, sku.getProduct().getProductName(), hit, hitCount);
+            scan(r, sku.getProduct().getProductDesc(), hit, hitCount);
+        }
+        matchThresholds(r, 0, sku.getSkuHeat(), hit, hitCount);
+        matchThresholds(r, 1, sku.getSkuPrice(), hit, hitCount);
+        if (sku.getInventory() != null && sku.getInventory().getInventoryQuantity() != null) {
+            matchThresholds(r, 2, BigDecimal.valueOf(sku.getInventory().getInventoryQuantity()), hit, hitCount);
+        }
+
+        List<String> tags = new ArrayList<>(hitCount[0]);
+        for (int i = 0; i < hit.length && tags.size() < hitCount[0]; i++) {
+            if (hit[i]) {
+                tags.add(r.tagNames[i]);
+            }
+        }
+        return tags;
+    }
+
+    private static void scan(CompiledRules r, String text, boolean[] hit, int[] hitCount) {
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        r.keywords.forEachMatch(text.toLowerCase(Locale.ROOT), tag -> {
+            if (!hit[tag]) {
+                hit[tag] = true;
+                hitCount[0]++;
+            }
+        });
+    }
+
+    private static void matchThresholds(CompiledRules r, int field, BigDecimal value, boolean[] hit, int[] hitCount) {
+        if (value == null) {
+            return;
+        }
+        double x = value.doubleValue();
+        for (int op = 0; op < OPERATORS.length; op++) {
+            double[] values = r.thresholdValues[field][op];
+            if (values.length == 0) {
+                continue;
+            }
+            int[] tags = r.thresholdTags[field][op];
+            // 命中的规则在有序数组中是连续的一段
+            int from;
+            int to;
+            switch (op) {
+                case 0 -> { from = upperBound(values, x); to = values.length; }     // x <  v  <=> v > x
+                case 1 -> { from = lowerBound(values, x); to = values.length; }     // x <= v  <=> v >= x
+                case 2 -> { from = 0; to = lowerBound(values, x); }                 // x >  v  <=> v < x
+                default -> { from = 0; to = upperBound(values, x); }                // x >= v  <=> v <= x
+            }
+            for (int i = from; i < to; i++) {
+                if (!hit[tags[i]]) {
+                    hit[tags[i]] = true;
+                    hitCount[0]++;
+                }
+            }
+        }
+    }
+
+    /** 第一个 >= x 的下标 */
+    private static int lowerBound(double[] values, double x) {
+        int lo = 0, hi = values.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] < x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** 第一个 > x 的下标 */
+    private static int upperBound(double[] values, double x) {
+        int lo = 0, hi = values.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] <= x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * 解析规则文件并编译
+     */
+    private static CompiledRules compile(BufferedReader reader) throws IOException {
+        Map<String, Integer> tagIds = new LinkedHashMap<>();
+        AhoCorasick.Builder keywords = AhoCorasick.builder();
+        List<List<double[]>> thresholds = new ArrayList<>(); // [字段 * 4 + 比较符] -> {阈值, 标签编号}
+        for (int i = 0; i < FIELDS.length * OPERATORS.length; i++) {
+            thresholds.add(new ArrayList<>());
+        }
+
+        int ruleCount = 0;
+        String line;
+        int lineNo = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNo++;
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            try {
+                if (parts[0].equals("keyword") && parts.length == 3) {
+                    int tag = tagIds.computeIfAbsent(parts[1], t -> tagIds.size());
+                    for (String keyword : parts[2].split(",")) {
+                        keywords.add(keyword.strip().toLowerCase(Locale.ROOT), tag);
+                    }
+                } else if (parts[0].equals("threshold") && parts.length == 5) {
+                    int field = Arrays.asList(FIELDS).indexOf(parts[2]);
+                    int op = Arrays.asList(OPERATORS).indexOf(parts[3]);
+                    if (field < 0 || op < 0) {
+                        throw new IllegalArgumentException("未知的字段或比较符");
+                    }
+                    int tag = tagIds.computeIfAbsent(parts[1], t -> tagIds.size());
+                    thresholds.get(field * OPERATORS.length + op).add(new double[]{Double.parseDouble(parts[4]), tag});
+                } else {
+                    throw new IllegalArgumentException("无法识别的规则");
+                }
+                ruleCount++;
+            } catch (RuntimeException e) {
+                throw new IOException("标签规则第 " + lineNo + " 行有误 (" + e.getMessage() + "): " + line, e);
+            }
+        }
+
+        double[][][] values = new double[FIELDS.length][OPERATORS.length][];
+        int[][][] tags = new int[FIELDS.length][OPERATORS.length][];
+        for (int field = 0; field < FIELDS.length; field++) {
+            for (int op = 0; op < OPERATORS.length; op++) {
+                List<double[]> group = thresholds.get(field * OPERATORS.length + op);
+                group.sort((a, b) -> Double.compare(a[0], b[0]));
+                values[field][op] = group.stream().mapToDouble(rule -> rule[0]).toArray();
+                tags[field][op] = group.stream().mapToInt(rule -> (int) rule[1]).toArray();
+            }
+        }
+        return new CompiledRules(tagIds.keySet().toArray(new String[0]), keywords.build(), values, tags, ruleCount);
+    }
+}
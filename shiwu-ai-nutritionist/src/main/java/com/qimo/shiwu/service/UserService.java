@@ -8,6 +8,7 @@ import com.qimo.shiwu.data.mysql.repository.HealthGoalRepository;
 import com.qimo.shiwu.data.mysql.repository.UserProfileRepository;
 import com.qimo.shiwu.data.mysql.repository.UserRepository;
 import com.qimo.shiwu.dto.UserRegistrationData;
+import com.qimo.shiwu.dto.UserSnapshot;
 import com.qimo.shiwu.util.SnowflakeIdGenerator;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cache.annotation.CacheEvict;
@@ -101,12 +102,12 @@ public class UserService {
 
     /**
      * [核心功能]: 获取用户完整信息 (带缓存)
-     * 使用 @Cacheable 自动缓存用户详情
+     * 使用 @Cacheable 自动缓存用户详情 (缓存的是不可变的 UserSnapshot，不含密码，不是 User 实体)
      */
-    @Cacheable(value = "userDetails", key = "#userId")
-    public Optional<User> getUserDetails(Long userId) {
+    @Cacheable(value = "userDetails", key = "#userId", sync = true)
+    public Optional<UserSnapshot> getUserDetails(Long userId) {
         System.out.println("正在从 MySQL 查询用户详情: " + userId);
-        return userRepository.findByIdWithDetails(userId);
+        return userRepository.findByIdWithDetails(userId).map(UserSnapshot::from);
     }
 
     /**
@@ -0,0 +1,34 @@
+package com.qimo.shiwu.service.rank;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * 健康目标契合度: 商品热量与用户单餐热量预算 (HealthGoal.heat_target / 3) 越接近分数越高
+ * 匿名用户或没有设置健康目标时所有商品都记 0.5 分 (不影响相对顺序)。
+ */
+@Component
+public class HeatTargetScorer implements RankScorer {
+
+    @Override
+    public String name() {
+        return "goal";
+    }
+
+    @Override
+    public double defaultWeight() {
+        return 0.15;
+    }
+
+    @Override
+    public double score(RankInput input, int i) {
+        double target = input.mealHeatTarget;
+        if (Double.isNaN(target) || target <= 0) {
+            return 0.5;
+        }
+        double heat = input.heats[i];
+        if (heat <= 0) {
+            return 0;
+        }
+        return Math.exp(-Math.abs(heat - target) / target);
+    }
+}
@@ -0,0 +1,34 @@
+package com.qimo.shiwu.service.rank;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * 性价比: 每元钱能买到的热量 (skuHeat / skuPrice)
+ * 用 x / (x + 参考值) 压到 [0, 1)，参考值附近的商品得 0.5 分。
+ */
+@Component
+public class PricePerCalorieScorer implements RankScorer {
+
+    private static final double REFERENCE_KCAL_PER_YUAN = 20;
+
+    @Override
+    public String name() {
+        return "price";
+    }
+
+    @Override
+    public double defaultWeight() {
+        return 0.15;
+    }
+
+    @Override
+    public double score(RankInput input, int i) {
+        double price = input.prices[i];
+        double heat = input.heats[i];
+        if (price <= 0 || heat <= 0) {
+            return 0;
+        }
+        double kcalPerYuan = heat / price;
+        return kcalPerYuan / (kcalPerYuan + REFERENCE_KCAL_PER_YUAN);
+    }
+}
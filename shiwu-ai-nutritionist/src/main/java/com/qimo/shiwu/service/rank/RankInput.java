@@ -0,0 +1,33 @@
+package com.qimo.shiwu.service.rank;
+
+/**
+ * 一次精排的输入 (列式存储)
+ * [开发者注意]:
+ * 候选商品的各个字段在进入打分循环前一次性拆成原始类型数组，
+ * 打分时只做数组下标访问，不再触碰 SKU 实体 / BigDecimal，避免装箱和对象分配。
+ */
+public final class RankInput {
+
+    /** 归一化后的搜索词 (小写、去首尾空白)，可能为空串 */
+    final String query;
+    /** 用户单餐热量预算 (kcal)，没有健康目标时为 NaN */
+    final double mealHeatTarget;
+
+    final int size;
+    final String[] names;    // 归一化后的商品名
+    final double[] prices;   // 价格 (元)
+    final double[] heats;    // 热量 (kcal)
+    final int[] stocks;      // 库存
+    final long[] sales;      // 累计销量
+
+    RankInput(String query, double mealHeatTarget, int size) {
+        this.query = query;
+        this.mealHeatTarget = mealHeatTarget;
+        this.size = size;
+        this.names = new String[size];
+        this.prices = new double[size];
+        this.heats = new double[size];
+        this.stocks = new int[size];
+        this.sales = new long[size];
+    }
+}
@@ -0,0 +1,29 @@
+package com.qimo.shiwu.service.rank;
+
+/**
+ * 精排打分器 (RerankEngine 的扩展点)
+ * [开发者注意]:
+ * 新增一个打分维度只需要实现这个接口并注册为 Spring Bean，
+ * 权重通过 `shiwu.rank.weight.<name()>` 配置 (未配置时使用 defaultWeight，配置为 0 则跳过)。
+ *
+ * score 会在热路径上对每个候选调用一次，实现里不要分配对象、不要访问 Redis/MySQL，
+ * 需要的数据都应该提前放进 RankInput 的数组里。可能被多个线程并发调用 (并行打分)。
+ */
+public interface RankScorer {
+
+    /**
+     * 打分器名称，同时是权重配置的 key
+     */
+    String name();
+
+    /**
+     * 未配置权重时使用的默认权重
+     */
+    double defaultWeight();
+
+    /**
+     * 给第 i 个候选打分
+     * @return [0, 1] 之间的分数，越大越靠前
+     */
+    double score(RankInput input, int i);
+}
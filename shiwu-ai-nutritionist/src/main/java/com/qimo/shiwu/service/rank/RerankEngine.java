@@ -0,0 +1,274 @@
+package com.qimo.shiwu.service.rank;
+
+import com.qimo.shiwu.data.mysql.entity.HealthGoal;
+import com.qimo.shiwu.data.mysql.repository.HealthGoalRepository;
+import com.qimo.shiwu.dto.SkuSnapshot;
+import com.qimo.shiwu.service.SkuSalesService;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * ===================================================================
+ * 服务 11: 精排引擎 (召回之后的多因子重排)
+ * ===================================================================
+ * [开发者注意]:
+ * 对 ES 召回并回填后的候选商品做加权打分，选出前 K 个:
+ *   总分 = Σ 权重(i) × 打分器(i)，打分器见 {@link RankScorer} 的各个实现
+ *   (文本相似度 / 性价比 / 库存 / 销量 / 健康目标契合度)。
+ *
+ * 性能要点 (500 个候选控制在个位数毫秒):
+ * - 外部数据 (销量、健康目标) 在打分前各取一次，打分循环里没有 IO；
+ * - 候选字段先拆成原始类型数组 (RankInput)，打分时不装箱、不分配对象；
+ * - 只保留前 K 个: 用大小为 K 的堆 (堆里存下标) 选出，O(n log K)，不对全部候选排序；
+ * - 候选数超过 `shiwu.rank.parallel-threshold` 时并行打分。
+ * 同分时保持 ES 的召回顺序。
+ */
+@Service
+public class RerankEngine {
+
+    private static final int MEALS_PER_DAY = 3;
+
+    @Autowired
+    private List<RankScorer> scorers;
+    @Autowired
+    private SkuSalesService skuSalesService;
+    @Autowired
+    private HealthGoalRepository healthGoalRepository;
+    @Autowired
+    private Environment environment;
+
+    @Value("${shiwu.rank.parallel-threshold:1000}")
+    private int parallelThreshold;
+
+    // 启用的打分器及其权重 (权重为 0 的打分器直接跳过)
+    private RankScorer[] activeScorers;
+    private double[] weights;
+
+    private final AtomicLong rerankCount = new AtomicLong();
+    private final AtomicLong rerankNanos = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        List<RankScorer> active = new ArrayList<>();
+        List<Double> activeWeights = new ArrayList<>();
+        for (RankScorer scorer : scorers) {
+            double weight = environment.getProperty("shiwu.rank.weight." + scorer.name(),
+                    Double.class, scorer.defaultWeight());
+            if (weight != 0) {
+                active.add(scorer);
+                activeWeights.add(weight);
+            }
+        }
+        activeScorers = active.toArray(new RankScorer[0]);
+        weights = activeWeights.stream().mapToDouble(Double::doubleValue).toArray();
+        System.out.println("精排打分器: " + active.stream().map(RankScorer::name).toList() + " 权重: " + activeWeights);
+    }
+
+    /**
+     * [核心功能]: 匿名用户的精排
+     */
+    public List<SkuSnapshot> rerank(String query, List<SkuSnapshot> candidates, int topK) {
+        return rerank(query, candidates, null, topK);
+    }
+
+    /**
+     * [核心功能]: 精排
+     * @param query 搜索词
+     * @param candidates 召回并回填后的候选 (ES 顺序)
+     * @param userId 当前用户，用于健康目标契合度 (可为 null)
+     * @param topK 返回前几个
+     * @return 按总分从高到低排列的前 topK 个候选
+     */
+    public List<SkuSnapshot> rerank(String query, List<SkuSnapshot> candidates, Long userId, int topK) {
+        if (Math.min(topK, candidates.size()) <= 0) {
+            return new ArrayList<>();
+        }
+        // 一次性准备数据 (一次 HMGET 取销量，一次主键查询取健康目标)
+        long[] sales = skuSalesService.getSales(candidates.stream().map(SkuSnapshot::skuId).toList());
+        return rerank(query, candidates, sales, loadMealHeatTarget(userId), topK);
+    }
+
+    /**
+     * [核心功能]: 批量精排 (一个食谱的多个食材各自精排)
+     * 所有候选的销量合并成一次 HMGET，健康目标只查一次。
+     * @return 与 queries 顺序一致的每组精排结果
+     */
+    public List<List<SkuSnapshot>> rerankAll(List<String> queries, List<List<SkuSnapshot>> candidateLists, Long userId, int topK) {
+        Set<Long> union = new LinkedHashSet<>();
+        for (List<SkuSnapshot> candidates : candidateLists) {
+            for (SkuSnapshot sku : candidates) {
+                union.add(sku.skuId());
+            }
+        }
+        List<Long> unionIds = new ArrayList<>(union);
+        long[] unionSales = skuSalesService.getSales(unionIds);
+        Map<Long, Long> salesById = new HashMap<>(unionIds.size() * 2);
+        for (int i = 0; i < unionIds.size(); i++) {
+            salesById.put(unionIds.get(i), unionSales[i]);
+        }
+        double mealHeatTarget = loadMealHeatTarget(userId);
+
+        List<List<SkuSnapshot>> results = new ArrayList<>(candidateLists.size());
+        for (int q = 0; q < candidateLists.size(); q++) {
+            List<SkuSnapshot> candidates = candidateLists.get(q);
+            long[] sales = new long[candidates.size()];
+            for (int i = 0; i < sales.length; i++) {
+                sales[i] = salesById.getOrDefault(candidates.get(i).skuId(), 0L);
+            }
+            results.add(Math.min(topK, candidates.size()) <= 0 ? new ArrayList<>()
+                    : rerank(queries.get(q), candidates, sales, mealHeatTarget, topK));
+        }
+        return results;
+    }
+
+    private List<SkuSnapshot> rerank(String query, List<SkuSnapshot> candidates, long[] sales, double mealHeatTarget, int topK) {
+        int n = candidates.size();
+        int k = Math.min(topK, n);
+        long start = System.nanoTime();
+        RankInput input = buildInput(query, candidates, sales, mealHeatTarget);
+
+        // 1. 打分
+        double[] scores = new double[n];
+        if (n >= parallelThreshold) {
+            IntStream.range(0, n).parallel().forEach(i -> scores[i] = totalScore(input, i));
+        } else {
+            for (int i = 0; i < n; i++) {
+                scores[i] = totalScore(input, i);
+            }
+        }
+
+        // 2. 选出前 K 个
+        int[] top = selectTopK(scores, k);
+        List<SkuSnapshot> result = new ArrayList<>(k);
+        for (int index : top) {
+            result.add(candidates.get(index));
+        }
+
+        rerankCount.incrementAndGet();
+        rerankNanos.addAndGet(System.nanoTime() - start);
+        return result;
+    }
+
+    private double totalScore(RankInput input, int i) {
+        double total = 0;
+        for (int s = 0; s < activeScorers.length; s++) {
+            total += weights[s] * activeScorers[s].score(input, i);
+        }
+        return total;
+    }
+
+    private RankInput buildInput(String query, List<SkuSnapshot> candidates, long[] sales, double mealHeatTarget) {
+        String normalizedQuery = query != null ? query.trim().toLowerCase(Locale.ROOT) : "";
+        RankInput input = new RankInput(normalizedQuery, mealHeatTarget, candidates.size());
+        for (int i = 0; i < input.size; i++) {
+            SkuSnapshot sku = candidates.get(i);
+            String name = sku.productName();
+            input.names[i] = name != null ? name.toLowerCase(Locale.ROOT) : "";
+            input.prices[i] = sku.skuPrice() != null ? sku.skuPrice().doubleValue() : 0;
+            input.heats[i] = sku.skuHeat() != null ? sku.skuHeat().doubleValue() : 0;
+            input.stocks[i] = sku.inventoryQuantity() != null ? sku.inventoryQuantity() : 0;
+            input.sales[i] = sales[i];
+        }
+        return input;
+    }
+
+    private double loadMealHeatTarget(Long userId) {
+        if (userId == null) {
+            return Double.NaN;
+        }
+        return healthGoalRepository.findByUserUserId(userId)
+                .map(HealthGoal::getHeat_target)
+                .map(target -> target.doubleValue() / MEALS_PER_DAY)
+                .orElse(Double.NaN);
+    }
+
+    /**
+     * 用大小为 k 的小顶堆 (堆顶是当前前 K 名里最差的) 选出得分最高的 k 个下标，
+     * 返回时按得分从高到低排列。
+     */
+    static int[] selectTopK(double[] scores, int k) {
+        int[] heap = new int[k];
+        int size = 0;
+        for (int i = 0; i < scores.length; i++) {
+            if (size < k) {
+                heap[size] = i;
+                siftUp(heap, size++, scores);
+            } else if (better(i, heap[0], scores)) {
+                heap[0] = i;
+                siftDown(heap, 0, size, scores);
+            }
+        }
+        // 依次弹出堆顶 (最差的) 放到末尾，得到从高到低的顺序
+        int[] result = new int[size];
+        for (int last = size - 1; last >= 0; last--) {
+            result[last] = heap[0];
+            heap[0] = heap[last];
+            siftDown(heap, 0, last, scores);
+        }
+        return result;
+    }
+
+    /**
+     * a 是否排在 b 前面: 分数高者在前，同分时召回顺序靠前者在前
+     */
+    private static boolean better(int a, int b, double[] scores) {
+        return scores[a] > scores[b] || (scores[a] == scores[b] && a < b);
+    }
+
+    private static void siftUp(int[] heap, int pos, double[] scores) {
+        int node = heap[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (!better(heap[parent], node, scores)) {
+                break;
+            }
+            heap[pos] = heap[parent];
+            pos = parent;
+        }
+        heap[pos] = node;
+    }
+
+    private static void siftDown(int[] heap, int pos, int size, double[] scores) {
+        int node = heap[pos];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && better(heap[child], heap[child + 1], scores)) {
+                child++;
+            }
+            if (!better(node, heap[child], scores)) {
+                break;
+            }
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = node;
+    }
+
+    /**
+     * 平均每次精排耗时 (微秒，不含取销量的 Redis 往返)
+     */
+    public double getAverageRerankMicros() {
+        long count = rerankCount.get();
+        return count == 0 ? 0 : rerankNanos.get() / 1000.0 / count;
+    }
+
+    public long getRerankCount() {
+        return rerankCount.get();
+    }
+}
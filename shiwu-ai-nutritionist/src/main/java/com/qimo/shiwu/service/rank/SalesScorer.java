@@ -0,0 +1,32 @@
+package com.qimo.shiwu.service.rank;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * 销量热度: 对数压缩后的累计销量 (销量数据由 SkuSalesService 维护)
+ */
+@Component
+public class SalesScorer implements RankScorer {
+
+    private static final double REFERENCE_LOG_SALES = Math.log1p(100);
+
+    @Override
+    public String name() {
+        return "sales";
+    }
+
+    @Override
+    public double defaultWeight() {
+        return 0.15;
+    }
+
+    @Override
+    public double score(RankInput input, int i) {
+        long sales = input.sales[i];
+        if (sales <= 0) {
+            return 0;
+        }
+        double x = Math.log1p(sales);
+        return x / (x + REFERENCE_LOG_SALES);
+    }
+}
@@ -0,0 +1,28 @@
+package com.qimo.shiwu.service.rank;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * 库存充足度: 无货 0 分，库存越多越接近 1 分 (避免把快卖空的商品排在最前面)
+ */
+@Component
+public class StockScorer implements RankScorer {
+
+    private static final double REFERENCE_STOCK = 10;
+
+    @Override
+    public String name() {
+        return "stock";
+    }
+
+    @Override
+    public double defaultWeight() {
+        return 0.15;
+    }
+
+    @Override
+    public double score(RankInput input, int i) {
+        int stock = input.stocks[i];
+        return stock <= 0 ? 0 : stock / (stock + REFERENCE_STOCK);
+    }
+}
@@ -0,0 +1,103 @@
+package com.qimo.shiwu.service.rank;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+
+/**
+ * 文本相关度: 搜索词与商品名的 Jaro-Winkler 相似度
+ * 商品名直接包含搜索词时记满分 (例如 "杭椒" 之于 "新鲜杭椒 500g")。
+ */
+@Component
+public class TextSimilarityScorer implements RankScorer {
+
+    private static final double PREFIX_SCALE = 0.1;
+    private static final int MAX_PREFIX = 4;
+
+    // 匹配标记的复用缓冲区 (每个线程一份)，避免每次比较都分配数组
+    private static final ThreadLocal<boolean[][]> SCRATCH = ThreadLocal.withInitial(() -> new boolean[2][64]);
+
+    @Override
+    public String name() {
+        return "text";
+    }
+
+    @Override
+    public double defaultWeight() {
+        return 0.4;
+    }
+
+    @Override
+    public double score(RankInput input, int i) {
+        String name = input.names[i];
+        if (input.query.isEmpty() || name == null || name.isEmpty()) {
+            return 0;
+        }
+        if (name.contains(input.query)) {
+            return 1;
+        }
+        return jaroWinkler(input.query, name);
+    }
+
+    static double jaroWinkler(String a, String b) {
+        int la = a.length();
+        int lb = b.length();
+        if (la == 0 || lb == 0) {
+            return 0;
+        }
+
+        boolean[][] scratch = SCRATCH.get();
+        if (scratch[0].length < la || scratch[1].length < lb) {
+            scratch[0] = new boolean[Math.max(la, scratch[0].length * 2)];
+            scratch[1] = new boolean[Math.max(lb, scratch[1].length * 2)];
+        }
+        boolean[] matchedA = scratch[0];
+        boolean[] matchedB = scratch[1];
+        Arrays.fill(matchedA, 0, la, false);
+        Arrays.fill(matchedB, 0, lb, false);
+
+        // 标准算法的匹配窗口是 max(la, lb) / 2 - 1；中文商品名往往只有两三个字，窗口至少放宽到 1
+        int window = Math.max(1, Math.max(la, lb) / 2 - 1);
+        int matches = 0;
+        for (int i = 0; i < la; i++) {
+            int from = Math.max(0, i - window);
+            int to = Math.min(lb - 1, i + window);
+            char c = a.charAt(i);
+            for (int j = from; j <= to; j++) {
+                if (!matchedB[j] && b.charAt(j) == c) {
+                    matchedA[i] = true;
+                    matchedB[j] = true;
+                    matches++;
+                    break;
+                }
+            }
+        }
+        if (matches == 0) {
+            return 0;
+        }
+
+        int transpositions = 0;
+        for (int i = 0, j = 0; i < la; i++) {
+            if (!matchedA[i]) {
+                continue;
+            }
+            while (!matchedB[j]) {
+                j++;
+            }
+            if (a.charAt(i) != b.charAt(j)) {
+                transpositions++;
+            }
+            j++;
+        }
+
+        double m = matches;
+        double jaro = (m / la + m / lb + (m - transpositions / 2.0) / m) / 3.0;
+
+        int prefix = 0;
+        int maxPrefix = Math.min(MAX_PREFIX, Math.min(la, lb));
+        while (prefix < maxPrefix && a.charAt(prefix) == b.charAt(prefix)) {
+            prefix++;
+        }
+        return jaro + prefix * PREFIX_SCALE * (1 - jaro);
+    }
+}
@@ -0,0 +1,41 @@
+package com.qimo.shiwu.service.search;
+
+import com.qimo.shiwu.data.es.ProductDocument;
+import com.qimo.shiwu.data.es.ProductSearchRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.elasticsearch.core.SearchHits;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * 基于 Elasticsearch 的召回 (直接委托给 ProductSearchRepository)
+ */
+@Component
+public class ElasticsearchProductSearchEngine implements ProductSearchEngine {
+
+    @Autowired
+    private ProductSearchRepository productSearchRepository;
+
+    @Override
+    public Page<ProductDocument> searchProducts(String query, List<String> tags, int tagCount,
+                                                BigDecimal minPrice, BigDecimal maxPrice,
+                                                Pageable pageable) {
+        return productSearchRepository.searchProducts(query, tags, tagCount, minPrice, maxPrice, pageable);
+    }
+
+    @Override
+    public RecallSlice recallAfter(String query, List<String> tags, BigDecimal minPrice, BigDecimal maxPrice,
+                                   List<Object> searchAfter, int size) {
+        SearchHits<ProductDocument> hits = productSearchRepository.recallSkuIds(
+                query, tags, minPrice, maxPrice, searchAfter, size);
+        List<Long> skuIds = hits.getSearchHits().stream()
+                .map(hit -> hit.getContent().getSkuId())
+                .toList();
+        List<Object> last = skuIds.isEmpty() ? null : hits.getSearchHit(skuIds.size() - 1).getSortValues();
+        return new RecallSlice(skuIds, last, hits.getTotalHits());
+    }
+}
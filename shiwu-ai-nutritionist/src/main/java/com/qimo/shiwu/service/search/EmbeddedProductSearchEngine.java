@@ -0,0 +1,474 @@
+package com.qimo.shiwu.service.search;
+
+import com.qimo.shiwu.data.es.ProductDocument;
+import com.qimo.shiwu.data.mysql.entity.SKU;
+import com.qimo.shiwu.data.mysql.repository.SKURepository;
+import com.qimo.shiwu.service.DataSyncService;
+import com.qimo.shiwu.service.ProductSearchService.RecallMode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 进程内倒排索引召回引擎 (ES 的降级 / 影子对比 / 单机替身)
+ * [开发者注意]:
+ * 用 SKURepository.findAllActiveSKUsForSync 的数据构建一份与 ES 相同的 ProductDocument 集合
+ * (文档转换复用 DataSyncService.convertSkuToDocument)，在内存中建倒排索引:
+ * - 分词: 汉字按二元组 (bigram) 切分，同时保留单字以支持单字查询；字母数字串整体作为一个词；
+ * - 倒排表: 词 -> 升序的文档下标 int[]，标签是精确匹配的关键词倒排表；
+ * - 打分: BM25 (tf 视为 1)，productName / productDesc 分开打分取较大者 (同 multi_match 的 best_fields)；
+ * - 过滤: 标签倒排表求交集 + 价格数组区间判断。
+ * 单机几千个商品的查询在亚毫秒级。
+ * 查询时只为倒排表命中的文档分配打分空间 (稀疏累加器)，不按商品总数分配数组；
+ * 文档按 skuId 升序编号，排序键把 "分数降序 + 文档下标升序" 压进一个 long，直接对 long[] 排序，不装箱。
+ *
+ * 索引是不可变快照，重建时在后台构建新快照后整体替换 (volatile)，查询完全无锁。
+ * 数据最多滞后一个刷新周期 (shiwu.search.embedded.refresh-interval-ms)，
+ * 价格和库存在回填阶段会重新取最新值，所以只影响召回，不影响展示。
+ * 启用后 (engine-mode 不是 OFF) 还没有快照时 (启动时构建失败)，每 shiwu.search.embedded.retry-interval-ms 重试一次。
+ *
+ * 测试时可以不连 MySQL，直接用 load(documents) 装入文档。
+ */
+@Component
+public class EmbeddedProductSearchEngine implements ProductSearchEngine {
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int[] EMPTY = new int[0];
+
+    @Autowired
+    private SKURepository skuRepository;
+    @Autowired
+    private DataSyncService dataSyncService;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${shiwu.search.engine-mode:OFF}")
+    private RecallMode engineMode;
+
+    @Value("${shiwu.search.embedded.refresh-interval-ms:300000}")
+    private long refreshIntervalMs;
+
+    private volatile Snapshot snapshot;
+    private volatile long builtAt; // 当前快照的构建时间
+
+    /**
+     * 一份不可变的索引快照
+     */
+    private static final class Snapshot {
+        final ProductDocument[] docs;
+        final long[] skuIds;
+        final double[] prices;
+        final Map<String, int[]> namePostings;
+        final Map<String, int[]> descPostings;
+        final Map<String, int[]> tagPostings;
+        final int[] nameLengths;
+        final int[] descLengths;
+        final double avgNameLength;
+        final double avgDescLength;
+
+        Snapshot(List<ProductDocument> documents) {
+            int n = documents.size();
+            docs = documents.toArray(new ProductDocument[0]);
+            // 文档下标顺序 == skuId 顺序，排序时 "skuId 升序" 就是 "下标升序"
+            Arrays.sort(docs, Comparator.comparingLong(ProductDocument::getSkuId));
+            skuIds = new long[n];
+            prices = new double[n];
+            nameLengths = new int[n];
+            descLengths = new int[n];
+            Map<String, IntBuffer> names = new HashMap<>();
+            Map<String, IntBuffer> descs = new HashMap<>();
+            Map<String, IntBuffer> tags = new HashMap<>();
+            long totalName = 0;
+            long totalDesc = 0;
+            for (int d = 0; d < n; d++) {
+                ProductDocument doc = docs[d];
+                skuIds[d] = doc.getSkuId();
+                prices[d] = doc.getSkuPrice() != null ? doc.getSkuPrice().doubleValue() : 0;
+                nameLengths[d] = index(names, tokenize(doc.getProductName(), true), d);
+                descLengths[d] = index(descs, tokenize(doc.getProductDesc(), true), d);
+                totalName += nameLengths[d];
+                totalDesc += descLengths[d];
+                if (doc.getTags() != null) {
+                    index(tags, new LinkedHashSet<>(doc.getTags()), d);
+                }
+            }
+            namePostings = freeze(names);
+            descPostings = freeze(descs);
+            tagPostings = freeze(tags);
+            avgNameLength = n == 0 ? 1 : Math.max(1, (double) totalName / n);
+            avgDescLength = n == 0 ? 1 : Math.max(1, (double) totalDesc / n);
+        }
+
+        private static int index(Map<String, IntBuffer> postings, Set<String> terms, int doc) {
+            for (String term : terms) {
+                postings.computeIfAbsent(term, t -> new IntBuffer()).add(doc);
+            }
+            return terms.size();
+        }
+
+        private static Map<String, int[]> freeze(Map<String, IntBuffer> postings) {
+            Map<String, int[]> frozen = new HashMap<>(postings.size() * 2);
+            postings.forEach((term, buffer) -> frozen.put(term, buffer.toArray()));
+            return frozen;
+        }
+    }
+
+    /**
+     * 可增长的 int 数组 (避免 List<Integer> 装箱)
+     */
+    private static final class IntBuffer {
+        int[] data = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+
+    /**
+     * [核心功能]: 从 MySQL 全量构建索引并替换当前快照
+     * (用 TransactionTemplate 开只读事务，定时任务在本类内部调用时也生效)
+     */
+    public void rebuild() {
+        TransactionTemplate readOnly = new TransactionTemplate(transactionManager);
+        readOnly.setReadOnly(true);
+        List<ProductDocument> documents = readOnly.execute(status -> {
+            List<SKU> skus = skuRepository.findAllActiveSKUsForSync();
+            List<ProductDocument> converted = new ArrayList<>(skus.size());
+            for (SKU sku : skus) {
+                converted.add(dataSyncService.convertSkuToDocument(sku));
+            }
+            return converted;
+        });
+        load(documents);
+        System.out.println("本地搜索索引构建完成: " + documents.size() + " 个商品");
+    }
+
+    /**
+     * 用给定的文档构建索引并替换当前快照
+     */
+    public void load(List<ProductDocument> documents) {
+        snapshot = new Snapshot(documents);
+        builtAt = System.currentTimeMillis();
+    }
+
+    /**
+     * 定期刷新: 启用时，没有快照 (启动时构建失败) 就重试，有快照则每个刷新周期重建一次
+     */
+    @Scheduled(fixedDelayString = "${shiwu.search.embedded.retry-interval-ms:10000}",
+            initialDelayString = "${shiwu.search.embedded.retry-interval-ms:10000}")
+    public void refresh() {
+        if (engineMode == RecallMode.OFF) {
+            return;
+        }
+        if (snapshot != null && System.currentTimeMillis() - builtAt < refreshIntervalMs) {
+            return;
+        }
+        try {
+            rebuild();
+        } catch (Exception e) {
+            System.err.println("本地搜索索引构建失败: " + e.getMessage());
+        }
+    }
+
+    public boolean isReady() {
+        return snapshot != null;
+    }
+
+    @Override
+    public Page<ProductDocument> searchProducts(String query, List<String> tags, int tagCount,
+                                                BigDecimal minPrice, BigDecimal maxPrice,
+                                                Pageable pageable) {
+        Snapshot s = requireSnapshot();
+        Ranked ranked = rank(s, query, tags, minPrice, maxPrice);
+        int from = (int) Math.min(pageable.getOffset(), ranked.size());
+        int to = Math.min(from + pageable.getPageSize(), ranked.size());
+        List<ProductDocument> content = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            content.add(s.docs[ranked.doc(i)]);
+        }
+        return new PageImpl<>(content, pageable, ranked.size());
+    }
+
+    /**
+     * 游标召回: 排序与 searchProducts 相同 (分数降序，skuId 升序)，从 [score, skuId] 之后开始取
+     */
+    @Override
+    public RecallSlice recallAfter(String query, List<String> tags, BigDecimal minPrice, BigDecimal maxPrice,
+                                   List<Object> searchAfter, int size) {
+        Snapshot s = requireSnapshot();
+        Ranked ranked = rank(s, query, tags, minPrice, maxPrice);
+        int from = 0;
+        if (searchAfter != null && !searchAfter.isEmpty()) {
+            // 二分查找第一条排在游标之后的结果
+            float afterScore = ((Number) searchAfter.get(0)).floatValue();
+            long afterSkuId = ((Number) searchAfter.get(1)).longValue();
+            int hi = ranked.size();
+            while (from < hi) {
+                int mid = (from + hi) >>> 1;
+                if (isAfter(ranked.score(mid), s.skuIds[ranked.doc(mid)], afterScore, afterSkuId)) {
+                    hi = mid;
+                } else {
+                    from = mid + 1;
+                }
+            }
+        }
+        int to = Math.min(from + size, ranked.size());
+        List<Long> skuIds = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            skuIds.add(s.skuIds[ranked.doc(i)]);
+        }
+        List<Object> last = to == from ? null
+                : List.of((double) ranked.score(to - 1), s.skuIds[ranked.doc(to - 1)]);
+        return new RecallSlice(skuIds, last, ranked.size());
+    }
+
+    /**
+     * (score, skuId) 是否排在 (afterScore, afterSkuId) 之后
+     */
+    private static boolean isAfter(float score, long skuId, float afterScore, long afterSkuId) {
+        return score != afterScore ? score < afterScore : skuId > afterSkuId;
+    }
+
+    private Snapshot requireSnapshot() {
+        Snapshot s = snapshot;
+        if (s == null) {
+            throw new IllegalStateException("本地搜索索引尚未构建");
+        }
+        return s;
+    }
+
+    /**
+     * 已排序的命中结果: 每个元素是 sortKey(分数, 文档下标)，升序即 "分数降序，skuId 升序"
+     */
+    private record Ranked(long[] keys) {
+        int size() {
+            return keys.length;
+        }
+
+        int doc(int i) {
+            return (int) keys[i];
+        }
+
+        float score(int i) {
+            return Float.intBitsToFloat(Integer.MAX_VALUE - (int) (keys[i] >>> 32));
+        }
+    }
+
+    private static final Ranked NO_MATCH = new Ranked(new long[0]);
+
+    /**
+     * 正数 float 的位模式与大小同序，用 MAX_VALUE 减去后放在高 32 位实现降序；低 32 位放文档下标 (升序)
+     */
+    private static long sortKey(float score, int doc) {
+        return ((long) (Integer.MAX_VALUE - Float.floatToIntBits(score)) << 32) | doc;
+    }
+
+    /**
+     * 过滤 + 打分 + 排序 (分数降序，skuId 升序)
+     */
+    private static Ranked rank(Snapshot s, String query, List<String> tags, BigDecimal minPrice, BigDecimal maxPrice) {
+        int n = s.docs.length;
+
+        // 1. 标签过滤: 所有标签的倒排表求交集
+        int[] tagFilter = null;
+        for (String tag : tags) {
+            int[] postings = s.tagPostings.getOrDefault(tag, EMPTY);
+            tagFilter = tagFilter == null ? postings : intersect(tagFilter, postings);
+            if (tagFilter.length == 0) {
+                return NO_MATCH;
+            }
+        }
+
+        // 2. 文本打分 (两个字段分开累加，最后取较大者)，只为倒排表里出现的文档分配空间
+        Set<String> terms = tokenize(query, false);
+        if (terms.isEmpty()) {
+            return NO_MATCH;
+        }
+        int postingCount = 0;
+        for (String term : terms) {
+            postingCount += s.namePostings.getOrDefault(term, EMPTY).length;
+            postingCount += s.descPostings.getOrDefault(term, EMPTY).length;
+        }
+        if (postingCount == 0) {
+            return NO_MATCH;
+        }
+        ScoreAccumulator acc = new ScoreAccumulator(postingCount);
+        for (String term : terms) {
+            accumulate(s.namePostings.get(term), s.nameLengths, s.avgNameLength, n, acc, true);
+            accumulate(s.descPostings.get(term), s.descLengths, s.avgDescLength, n, acc, false);
+        }
+
+        // 3. 收集命中 (文本命中 + 标签 + 价格)
+        double min = minPrice.doubleValue();
+        double max = maxPrice.doubleValue();
+        long[] keys = new long[acc.size];
+        int matched = 0;
+        for (int i = 0; i < acc.size; i++) {
+            int slot = acc.order[i];
+            int d = acc.docs[slot];
+            float score = Math.max(acc.nameScores[slot], acc.descScores[slot]);
+            if (score <= 0 || s.prices[d] < min || s.prices[d] > max) {
+                continue;
+            }
+            if (tagFilter != null && Arrays.binarySearch(tagFilter, d) < 0) {
+                continue;
+            }
+            keys[matched++] = sortKey(score, d);
+        }
+
+        // 4. 排序 (分数降序，skuId 升序)
+        keys = Arrays.copyOf(keys, matched);
+        Arrays.sort(keys);
+        return new Ranked(keys);
+    }
+
+    /**
+     * 稀疏打分累加器: 文档下标 -> (名称分, 描述分) 的开放寻址哈希表，容量按本次查询的倒排表长度分配
+     */
+    private static final class ScoreAccumulator {
+        final int[] docs;
+        final float[] nameScores;
+        final float[] descScores;
+        final int[] order; // 按插入顺序记录用到的槽位
+        final int mask;
+        int size;
+
+        ScoreAccumulator(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(2, expected) * 2 - 1) << 1;
+            docs = new int[capacity];
+            Arrays.fill(docs, -1);
+            nameScores = new float[capacity];
+            descScores = new float[capacity];
+            order = new int[expected];
+            mask = capacity - 1;
+        }
+
+        int slot(int doc) {
+            int i = (doc * 0x9E3779B9) & mask;
+            while (docs[i] != doc) {
+                if (docs[i] == -1) {
+                    docs[i] = doc;
+                    order[size++] = i;
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+    }
+
+    /**
+     * BM25 (tf = 1): idf × (k1 + 1) / (1 + k1 × (1 − b + b × 文档长度 / 平均长度))
+     */
+    private static void accumulate(int[] postings, int[] lengths, double avgLength, int n,
+                                   ScoreAccumulator acc, boolean name) {
+        if (postings == null) {
+            return;
+        }
+        double df = postings.length;
+        double idf = Math.log(1 + (n - df + 0.5) / (df + 0.5));
+        for (int d : postings) {
+            double norm = 1 + K1 * (1 - B + B * lengths[d] / avgLength);
+            int slot = acc.slot(d);
+            if (name) {
+                acc.nameScores[slot] += (float) (idf * (K1 + 1) / norm);
+            } else {
+                acc.descScores[slot] += (float) (idf * (K1 + 1) / norm);
+            }
+        }
+    }
+
+    /**
+     * 两个升序数组求交集
+     */
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[k++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, k);
+    }
+
+    /**
+     * 分词: 连续汉字切成二元组 (单个汉字保留为单字)，连续字母数字作为一个词，其余字符作为分隔符。
+     * 建索引时 (forIndex = true) 额外保留每个单字，使单字查询也能命中；
+     * 查询时只有单个汉字才按单字查，否则按二元组查 (与索引中的二元组精确对应)。
+     */
+    static Set<String> tokenize(String text, boolean forIndex) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text == null) {
+            return tokens;
+        }
+        String s = text.toLowerCase(Locale.ROOT);
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (isHanzi(c)) {
+                int start = i;
+                while (i < s.length() && isHanzi(s.charAt(i))) {
+                    i++;
+                }
+                if (i - start == 1) {
+                    tokens.add(s.substring(start, i));
+                    continue;
+                }
+                for (int k = start; k < i - 1; k++) {
+                    tokens.add(s.substring(k, k + 2));
+                }
+                if (forIndex) {
+                    for (int k = start; k < i; k++) {
+                        tokens.add(s.substring(k, k + 1));
+                    }
+                }
+            } else if (Character.isLetterOrDigit(c)) {
+                int start = i;
+                while (i < s.length() && Character.isLetterOrDigit(s.charAt(i)) && !isHanzi(s.charAt(i))) {
+                    i++;
+                }
+                tokens.add(s.substring(start, i));
+            } else {
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isHanzi(char c) {
+        return Character.UnicodeScript.of(c) == Character.UnicodeScript.HAN;
+    }
+}
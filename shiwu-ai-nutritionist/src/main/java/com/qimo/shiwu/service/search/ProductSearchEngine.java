@@ -0,0 +1,31 @@
+package com.qimo.shiwu.service.search;
+
+import com.qimo.shiwu.data.es.ProductDocument;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * 商品召回引擎 (与 ProductSearchRepository.searchProducts 相同的契约)
+ * [开发者注意]:
+ * ProductSearchService 按 `shiwu.search.engine-mode` 在 ES 和进程内引擎之间切换，
+ * 两种实现的参数语义必须保持一致:
+ * - query 在 productName / productDesc 上做全文匹配 (任意一个词命中即可)；
+ * - tags 必须全部命中 (tagCount = tags.size())；
+ * - 价格在 [minPrice, maxPrice] 闭区间内；
+ * - 结果按相关度降序排列，同分按 skuId 升序 (游标召回的排序值即 [_score, skuId])。
+ */
+public interface ProductSearchEngine {
+
+    Page<ProductDocument> searchProducts(String query, List<String> tags, int tagCount,
+                                         BigDecimal minPrice, BigDecimal maxPrice,
+                                         Pageable pageable);
+
+    /**
+     * 游标召回: 只取 skuId，从 searchAfter (上一段最后一条的排序值，首段为 null) 之后取 size 条
+     */
+    RecallSlice recallAfter(String query, List<String> tags, BigDecimal minPrice, BigDecimal maxPrice,
+                            List<Object> searchAfter, int size);
+}
@@ -0,0 +1,13 @@
+package com.qimo.shiwu.service.search;
+
+import java.util.List;
+
+/**
+ * 游标召回的一段结果 (ProductSearchEngine.recallAfter 返回)
+ *
+ * @param skuIds 按相关度排列的 skuId
+ * @param lastSortValues 最后一条的排序值 [_score, skuId]，作为下一段的 searchAfter (没有结果时为 null)
+ * @param totalHits 命中总数
+ */
+public record RecallSlice(List<Long> skuIds, List<Object> lastSortValues, long totalHits) {
+}
@@ -0,0 +1,173 @@
+package com.qimo.shiwu.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Aho-Corasick 多模式匹配自动机
+ *
+ * [开发者注意]:
+ * 把任意多个关键词编译成一个自动机，对文本只扫描一遍就能找出所有命中的关键词，
+ * 耗时只与文本长度 (和命中数) 有关，与关键词数量无关。
+ * 每个关键词带一个 int 负载 (payload，例如标签编号)，命中时回调该负载。
+ *
+ * 构建完成后不可变，可以被多个线程同时使用。
+ * 子节点用有序 char[] + 二分查找存储，汉字字符集很大，这样比稠密数组省内存。
+ */
+public final class AhoCorasick {
+
+    private static final int[] NO_OUTPUT = new int[0];
+
+    private final char[][] labels;   // 每个节点的出边字符 (升序)
+    private final int[][] targets;   // 对应的子节点
+    private final int[] fail;        // 失败指针
+    private final int[][] outputs;   // 到达该节点时命中的负载 (已合并失败链上的输出)
+
+    private AhoCorasick(char[][] labels, int[][] targets, int[] fail, int[][] outputs) {
+        this.labels = labels;
+        this.targets = targets;
+        this.fail = fail;
+        this.outputs = outputs;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * 扫描文本，每命中一个关键词回调一次它的负载 (同一关键词出现多次会回调多次)
+     */
+    public void forEachMatch(CharSequence text, IntConsumer onMatch) {
+        int node = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int next;
+            while ((next = child(node, c)) < 0 && node != 0) {
+                node = fail[node];
+            }
+            node = Math.max(next, 0);
+            for (int payload : outputs[node]) {
+                onMatch.accept(payload);
+            }
+        }
+    }
+
+    public int nodeCount() {
+        return fail.length;
+    }
+
+    private int child(int node, char c) {
+        int i = Arrays.binarySearch(labels[node], c);
+        return i >= 0 ? targets[node][i] : -1;
+    }
+
+    /**
+     * 构建器: 先建 Trie，build() 时按层 (BFS) 计算失败指针并压缩成数组
+     */
+    public static final class Builder {
+        private final List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        private final List<List<Integer>> payloads = new ArrayList<>();
+
+        private Builder() {
+            newNode();
+        }
+
+        private int newNode() {
+            children.add(new TreeMap<>());
+            payloads.add(new ArrayList<>());
+            return children.size() - 1;
+        }
+
+        public Builder add(String keyword, int payload) {
+            if (keyword == null || keyword.isEmpty()) {
+                return this;
+            }
+            int node = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                char c = keyword.charAt(i);
+                Integer next = children.get(node).get(c);
+                if (next == null) {
+                    next = newNode();
+                    children.get(node).put(c, next);
+                }
+                node = next;
+            }
+            if (!payloads.get(node).contains(payload)) {
+                payloads.get(node).add(payload);
+            }
+            return this;
+        }
+
+        public AhoCorasick build() {
+            int n = children.size();
+            char[][] labels = new char[n][];
+            int[][] targets = new int[n][];
+            for (int node = 0; node < n; node++) {
+                TreeMap<Character, Integer> map = children.get(node);
+                labels[node] = new char[map.size()];
+                targets[node] = new int[map.size()];
+                int i = 0;
+                for (Map.Entry<Character, Integer> edge : map.entrySet()) {
+                    labels[node][i] = edge.getKey();
+                    targets[node][i] = edge.getValue();
+                    i++;
+                }
+            }
+
+            int[] fail = new int[n];
+            int[][] outputs = new int[n][];
+            outputs[0] = toArray(payloads.get(0));
+            Queue<Integer> queue = new ArrayDeque<>();
+            for (int child : targets[0]) {
+                fail[child] = 0;
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                int node = queue.poll();
+                // 父节点先出队，所以失败指针指向的节点 (更浅) 的输出已经合并完毕
+                int[] own = toArray(payloads.get(node));
+                int[] inherited = node == 0 ? NO_OUTPUT : outputs[fail[node]];
+                outputs[node] = merge(own, inherited);
+                for (int i = 0; i < labels[node].length; i++) {
+                    char c = labels[node][i];
+                    int child = targets[node][i];
+                    int f = fail[node];
+                    int next;
+                    while (true) {
+                        int j = Arrays.binarySearch(labels[f], c);
+                        next = j >= 0 ? targets[f][j] : -1;
+                        if (next >= 0 || f == 0) {
+                            break;
+                        }
+                        f = fail[f];
+                    }
+                    fail[child] = next >= 0 && next != child ? next : 0;
+                    queue.add(child);
+                }
+            }
+            return new AhoCorasick(labels, targets, fail, outputs);
+        }
+
+        private static int[] toArray(List<Integer> values) {
+            return values.isEmpty() ? NO_OUTPUT : values.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        private static int[] merge(int[] a, int[] b) {
+            if (b.length == 0) {
+                return a;
+            }
+            if (a.length == 0) {
+                return b;
+            }
+            int[] merged = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, merged, a.length, b.length);
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.qimo.shiwu.util;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * 基于 Redis 的租约锁 (公平等待 + 自动续期 + 栅栏令牌)
+ *
+ * [开发者注意]:
+ * 用来替换 OrderService 里 "SETNX 固定值 locked + 固定 30 秒过期 + 抢不到立即失败" 的简单锁:
+ * - 每次加锁使用唯一的 owner token，只有持有者能释放或续期，不会误删别人的锁；
+ * - 持有期间由看门狗线程每 lease/3 续期一次，慢事务不会让锁提前过期；
+ * - 抢不到锁时进入 Redis 中的 FIFO 等待队列 (先到先得)，在有限时间内等待，
+ *   由 Redis 发布/订阅的 "锁已释放" 消息唤醒，而不是轮询 Redis；
+ * - 每次成功加锁都会得到一个单调递增的栅栏令牌 (fencing token)，
+ *   写库时带上它 (见 InventoryRepository.deductWithFence)，
+ *   即使锁因为 GC 停顿等原因过期后被别人拿走，旧持有者的写入也会被数据库拒绝。
+ *
+ * Redis 中的数据结构 (name 为锁名):
+ * - name            (String) 当前持有者的 token，带过期时间
+ * - name:queue      (List)   等待者 token，按到达顺序
+ * - name:timeouts   (ZSet)   等待者 token -> 放弃等待的截止时间 (用于清理崩溃/超时的等待者)
+ * - name:fence      (String) 栅栏令牌计数器
+ * - 频道 lock:released:name   释放时发布
+ *
+ * 栅栏计数器丢失 (Redis 重启、淘汰、切到落后的从库) 后不能从 1 重新计数，
+ * 否则数据库里记录的令牌比新令牌大，所有写入都会被当作过期写入拒绝。
+ * 因此计数器不存在时不加锁，先用 registerFenceFloor 注册的函数 (例如查数据库中该锁记录过的最大令牌) 补种子再重试。
+ */
+@Component
+public class RedisLeaseLock implements MessageListener {
+
+    private static final String RELEASED_CHANNEL_PREFIX = "lock:released:";
+
+    /**
+     * 加锁。KEYS = [锁, 等待队列, 超时集合, 栅栏计数器]
+     * ARGV = [token, 租约毫秒, 本等待者的截止时间, 当前时间]
+     * 返回 > 0: 加锁成功，值为栅栏令牌；0: 栅栏计数器不存在，需要先补种子；< 0: 未加锁，-返回值为建议的最长等待毫秒数
+     */
+    private static final DefaultRedisScript<Long> ACQUIRE_SCRIPT = new DefaultRedisScript<>(
+            "local now = tonumber(ARGV[4]) " +
+            // 清理队头已超时的等待者
+            "while true do " +
+            "  local first = redis.call('lindex', KEYS[2], 0) " +
+            "  if not first then break end " +
+            "  local deadline = tonumber(redis.call('zscore', KEYS[3], first)) " +
+            "  if deadline == nil or deadline < now then " +
+            "    redis.call('lpop', KEYS[2]) redis.call('zrem', KEYS[3], first) " +
+            "  else break end " +
+            "end " +
+            "if redis.call('exists', KEYS[1]) == 0 then " +
+            "  local first = redis.call('lindex', KEYS[2], 0) " +
+            "  if (not first) or first == ARGV[1] then " +
+            "    if redis.call('exists', KEYS[4]) == 0 then return 0 end " +
+            "    if first then redis.call('lpop', KEYS[2]) redis.call('zrem', KEYS[3], ARGV[1]) end " +
+            "    redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[2]) " +
+            "    return redis.call('incr', KEYS[4]) " +
+            "  end " +
+            "end " +
+            // 进入 (或留在) 等待队列
+            "if not redis.call('zscore', KEYS[3], ARGV[1]) then redis.call('rpush', KEYS[2], ARGV[1]) end " +
+            "redis.call('zadd', KEYS[3], ARGV[3], ARGV[1]) " +
+            "local ttl = redis.call('pttl', KEYS[1]) " +
+            "if ttl > 0 then return -ttl end " +
+            // 锁是空的但轮不到自己: 最多等到队头放弃的时间
+            "local head = redis.call('lindex', KEYS[2], 0) " +
+            "local headDeadline = tonumber(redis.call('zscore', KEYS[3], head) or now) " +
+            "return -math.max(1, headDeadline - now)", Long.class);
+
+    /**
+     * 放弃等待。KEYS = [等待队列, 超时集合]; ARGV = [token]
+     */
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('lrem', KEYS[1], 0, ARGV[1]) " +
+            "return redis.call('zrem', KEYS[2], ARGV[1])", Long.class);
+
+    /**
+     * 续期。KEYS = [锁]; ARGV = [token, 租约毫秒]
+     */
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('pexpire', KEYS[1], ARGV[2]) end " +
+            "return 0", Long.class);
+
+    /**
+     * 释放并通知等待者。KEYS = [锁]; ARGV = [token, 频道]
+     */
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+            "  redis.call('del', KEYS[1]) " +
+            "  redis.call('publish', ARGV[2], ARGV[1]) " +
+            "  return 1 " +
+            "end " +
+            "return 0", Long.class);
+
+    /**
+     * 把栅栏计数器抬到至少 ARGV[1] (只增不减)。KEYS = [栅栏计数器]
+     */
+    private static final DefaultRedisScript<Long> RAISE_FENCE_SCRIPT = new DefaultRedisScript<>(
+            "local current = tonumber(redis.call('get', KEYS[1]) or '0') " +
+            "if current < tonumber(ARGV[1]) then redis.call('set', KEYS[1], ARGV[1]) return tonumber(ARGV[1]) end " +
+            "return current", Long.class);
+
+    /**
+     * 一次成功的加锁 (租约)
+     */
+    @Getter
+    public static final class Lease {
+        private final String name;
+        private final String token;
+        private final long fence;
+        private volatile boolean lost; // 续期失败 (锁已过期并可能被他人持有)
+        private ScheduledFuture<?> watchdog;
+
+        Lease(String name, String token, long fence) {
+            this.name = name;
+            this.token = token;
+            this.fence = fence;
+        }
+    }
+
+    /**
+     * 本机等待同一把锁的线程共享一个监视器；generation 用来避免 "先收到通知、后开始等待" 的丢失唤醒
+     * users 是正在 tryLock 这把锁的线程数，降到 0 时从 waiters 中移除 (只在 waiters.compute 里修改)
+     */
+    private static final class Waiters {
+        long generation; // 由 this 保护
+        int users;
+    }
+
+    @Autowired private StringRedisTemplate redisTemplate;
+    @Autowired private RedisMessageListenerContainer listenerContainer;
+
+    @Value("${shiwu.lock.lease-ms:30000}")
+    private long leaseMillis;
+
+    private final Map<String, Waiters> waiters = new ConcurrentHashMap<>();
+    // 锁名前缀 -> 计数器丢失时的种子 (该锁记录过的最大令牌)
+    private final Map<String, ToLongFunction<String>> fenceFloors = new ConcurrentHashMap<>();
+    private ScheduledExecutorService watchdogExecutor;
+
+    @PostConstruct
+    public void init() {
+        watchdogExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lease-lock-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        listenerContainer.addMessageListener(this, new PatternTopic(RELEASED_CHANNEL_PREFIX + "*"));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        watchdogExecutor.shutdownNow();
+    }
+
+    /**
+     * 注册栅栏令牌的下限: 名字以 namePrefix 开头的锁，计数器丢失时用 floor(锁名) 补种子
+     * (没有注册的锁从 0 开始计数)
+     */
+    public void registerFenceFloor(String namePrefix, ToLongFunction<String> floor) {
+        fenceFloors.put(namePrefix, floor);
+    }
+
+    /**
+     * 把某把锁的栅栏计数器抬到至少 fence (发现数据库里的令牌比计数器还大时调用，例如切到了落后的从库)
+     */
+    public void raiseFence(String name, long fence) {
+        redisTemplate.execute(RAISE_FENCE_SCRIPT, List.of(name + ":fence"), String.valueOf(fence));
+    }
+
+    /**
+     * [核心功能]: 加锁，最多等待 waitMillis (按到达顺序公平排队)
+     * @return 租约；超时返回 null
+     */
+    public Lease tryLock(String name, long waitMillis) {
+        String token = UUID.randomUUID().toString();
+        long deadline = System.currentTimeMillis() + waitMillis;
+        List<String> keys = List.of(name, name + ":queue", name + ":timeouts", name + ":fence");
+        Waiters local = waiters.compute(name, (k, w) -> {
+            Waiters entry = w != null ? w : new Waiters();
+            entry.users++;
+            return entry;
+        });
+
+        try {
+            while (true) {
+                long generation;
+                synchronized (local) {
+                    generation = local.generation;
+                }
+                long now = System.currentTimeMillis();
+                Long result = redisTemplate.execute(ACQUIRE_SCRIPT, keys,
+                        token, String.valueOf(leaseMillis), String.valueOf(deadline), String.valueOf(now));
+                if (result != null && result > 0) {
+                    Lease lease = new Lease(name, token, result);
+                    startWatchdog(lease);
+                    return lease;
+                }
+                if (result != null && result == 0) {
+                    seedFence(name);
+                    continue;
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    redisTemplate.execute(CANCEL_SCRIPT, List.of(name + ":queue", name + ":timeouts"), token);
+                    return null;
+                }
+                // 等 "锁已释放" 消息；最多等到锁的租约到期 (持有者崩溃时不会有消息)
+                long hint = result != null ? -result : remaining;
+                long waitFor = Math.max(1, Math.min(remaining, hint));
+                synchronized (local) {
+                    if (local.generation == generation) {
+                        local.wait(waitFor);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            redisTemplate.execute(CANCEL_SCRIPT, List.of(name + ":queue", name + ":timeouts"), token);
+            return null;
+        } finally {
+            waiters.computeIfPresent(name, (k, w) -> --w.users == 0 ? null : w);
+        }
+    }
+
+    private void seedFence(String name) {
+        long floor = 0;
+        for (Map.Entry<String, ToLongFunction<String>> entry : fenceFloors.entrySet()) {
+            if (name.startsWith(entry.getKey())) {
+                floor = entry.getValue().applyAsLong(name);
+                break;
+            }
+        }
+        raiseFence(name, floor);
+        System.out.println("栅栏计数器不存在，已按 " + floor + " 补种子: " + name);
+    }
+
+    /**
+     * 释放锁 (只会释放自己持有的)，并唤醒所有节点上的等待者
+     */
+    public void unlock(Lease lease) {
+        if (lease.watchdog != null) {
+            lease.watchdog.cancel(false);
+        }
+        redisTemplate.execute(RELEASE_SCRIPT, List.of(lease.name),
+                lease.token, RELEASED_CHANNEL_PREFIX + lease.name);
+    }
+
+    private void startWatchdog(Lease lease) {
+        long period = Math.max(1, leaseMillis / 3);
+        lease.watchdog = watchdogExecutor.scheduleAtFixedRate(() -> {
+            Long renewed = redisTemplate.execute(RENEW_SCRIPT, List.of(lease.name),
+                    lease.token, String.valueOf(leaseMillis));
+            if (renewed == null || renewed == 0L) {
+                lease.lost = true;
+                lease.watchdog.cancel(false);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 收到 "锁已释放" 消息: 唤醒本机等待这把锁的线程
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        Waiters local = waiters.get(channel.substring(RELEASED_CHANNEL_PREFIX.length()));
+        if (local != null) {
+            synchronized (local) {
+                local.generation++;
+                local.notifyAll();
+            }
+        }
+    }
+}
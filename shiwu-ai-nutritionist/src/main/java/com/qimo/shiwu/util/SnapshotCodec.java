@@ -0,0 +1,364 @@
+package com.qimo.shiwu.util;
+
+import com.qimo.shiwu.dto.SkuSnapshot;
+import com.qimo.shiwu.dto.UserSnapshot;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * 缓存快照的紧凑二进制编解码器 (RedisCacheManager 的值序列化器)
+ *
+ * [开发者注意]:
+ * 替换默认的 JDK 序列化 (类描述符 + 字段名占掉大半体积，反序列化要走反射)。
+ * 格式: [类型 1 字节][schema 版本 1 字节][字段存在位图 varint][各非 null 字段依次排列]
+ * - 整数用 varint (有符号的先 zigzag)，小数用 scale + 补码字节，时间用 UTC 秒数 + 纳秒，字符串用长度 + UTF-8；
+ * - 不写字段名，字段顺序就是 schema，所以快照记录增删、调整字段时必须提升对应的版本号；
+ * - 读到未知类型或与当前不一致的版本 (例如滚动发布期间旧节点写入的数据) 时返回 null，
+ *   缓存把它当作未命中，回源后用新格式覆盖，不需要手动清 Redis；
+ * - 快照以外的值 (类型 0) 仍交给 JDK 序列化，其它缓存名不受影响。
+ */
+public class SnapshotCodec implements RedisSerializer<Object> {
+
+    static final byte TYPE_JDK = 0;
+    static final byte TYPE_SKU = 1;
+    static final byte TYPE_USER = 2;
+
+    static final byte SKU_SCHEMA_VERSION = 1;
+    static final byte USER_SCHEMA_VERSION = 1;
+
+    private final JdkSerializationRedisSerializer fallback = new JdkSerializationRedisSerializer();
+
+    @Override
+    public byte[] serialize(Object value) {
+        if (value == null) {
+            return new byte[0];
+        }
+        Writer out = new Writer();
+        if (value instanceof SkuSnapshot sku) {
+            out.writeByte(TYPE_SKU);
+            out.writeByte(SKU_SCHEMA_VERSION);
+            writeSku(out, sku);
+        } else if (value instanceof UserSnapshot user) {
+            out.writeByte(TYPE_USER);
+            out.writeByte(USER_SCHEMA_VERSION);
+            writeUser(out, user);
+        } else {
+            out.writeByte(TYPE_JDK);
+            out.writeBytes(fallback.serialize(value));
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        if (bytes[0] == TYPE_JDK) {
+            return fallback.deserialize(Arrays.copyOfRange(bytes, 1, bytes.length));
+        }
+        if (bytes.length < 2) {
+            return null;
+        }
+        Reader in = new Reader(bytes, 2);
+        try {
+            if (bytes[0] == TYPE_SKU && bytes[1] == SKU_SCHEMA_VERSION) {
+                return readSku(in);
+            }
+            if (bytes[0] == TYPE_USER && bytes[1] == USER_SCHEMA_VERSION) {
+                return readUser(in);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("缓存快照解码失败，按未命中处理: " + e.getMessage());
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------- SKU v1
+
+    private static void writeSku(Writer out, SkuSnapshot s) {
+        out.writeVarLong(presence(s.skuId(), s.skuCode(), s.skuSize(), s.skuPrice(), s.skuStatus(), s.skuHeat(),
+                s.productId(), s.productName(), s.productPicpath(), s.productDesc(), s.inventoryQuantity()));
+        out.writeNumber(s.skuId());
+        out.writeString(s.skuCode());
+        out.writeString(s.skuSize());
+        out.writeDecimal(s.skuPrice());
+        out.writeBoolean(s.skuStatus());
+        out.writeDecimal(s.skuHeat());
+        out.writeNumber(s.productId());
+        out.writeString(s.productName());
+        out.writeString(s.productPicpath());
+        out.writeString(s.productDesc());
+        out.writeNumber(s.inventoryQuantity());
+    }
+
+    private static SkuSnapshot readSku(Reader in) {
+        long mask = in.readVarLong();
+        return new SkuSnapshot(
+                has(mask, 0) ? in.readZigZag() : null,
+                has(mask, 1) ? in.readString() : null,
+                has(mask, 2) ? in.readString() : null,
+                has(mask, 3) ? in.readDecimal() : null,
+                has(mask, 4) ? in.readByte() != 0 : null,
+                has(mask, 5) ? in.readDecimal() : null,
+                has(mask, 6) ? in.readZigZag() : null,
+                has(mask, 7) ? in.readString() : null,
+                has(mask, 8) ? in.readString() : null,
+                has(mask, 9) ? in.readString() : null,
+                has(mask, 10) ? (int) in.readZigZag() : null);
+    }
+
+    // ---------------------------------------------------------------- User v1
+
+    private static void writeUser(Writer out, UserSnapshot u) {
+        out.writeVarLong(presence(u.userId(), u.userName(), u.profile(), u.preference(), u.goal()));
+        out.writeNumber(u.userId());
+        out.writeString(u.userName());
+
+        UserSnapshot.Profile p = u.profile();
+        if (p != null) {
+            out.writeVarLong(presence(p.height(), p.weight(), p.activityLevel(), p.bmr(), p.tdee(), p.recipeUpdateTime()));
+            out.writeDecimal(p.height());
+            out.writeDecimal(p.weight());
+            out.writeString(p.activityLevel());
+            out.writeDecimal(p.bmr());
+            out.writeDecimal(p.tdee());
+            out.writeDateTime(p.recipeUpdateTime());
+        }
+        UserSnapshot.Preference f = u.preference();
+        if (f != null) {
+            out.writeVarLong(presence(f.allergens(), f.taboos(), f.tastePreference(), f.eatingHabit(), f.equipmentLimit()));
+            out.writeString(f.allergens());
+            out.writeString(f.taboos());
+            out.writeString(f.tastePreference());
+            out.writeString(f.eatingHabit());
+            out.writeString(f.equipmentLimit());
+        }
+        UserSnapshot.Goal g = u.goal();
+        if (g != null) {
+            out.writeVarLong(presence(g.goalType(), g.targetWeight(), g.targetDate(), g.heatTarget()));
+            out.writeString(g.goalType());
+            out.writeDecimal(g.targetWeight());
+            out.writeDateTime(g.targetDate());
+            out.writeDecimal(g.heatTarget());
+        }
+    }
+
+    private static UserSnapshot readUser(Reader in) {
+        long mask = in.readVarLong();
+        Long userId = has(mask, 0) ? in.readZigZag() : null;
+        String userName = has(mask, 1) ? in.readString() : null;
+
+        UserSnapshot.Profile profile = null;
+        if (has(mask, 2)) {
+            long m = in.readVarLong();
+            profile = new UserSnapshot.Profile(
+                    has(m, 0) ? in.readDecimal() : null,
+                    has(m, 1) ? in.readDecimal() : null,
+                    has(m, 2) ? in.readString() : null,
+                    has(m, 3) ? in.readDecimal() : null,
+                    has(m, 4) ? in.readDecimal() : null,
+                    has(m, 5) ? in.readDateTime() : null);
+        }
+        UserSnapshot.Preference preference = null;
+        if (has(mask, 3)) {
+            long m = in.readVarLong();
+            preference = new UserSnapshot.Preference(
+                    has(m, 0) ? in.readString() : null,
+                    has(m, 1) ? in.readString() : null,
+                    has(m, 2) ? in.readString() : null,
+                    has(m, 3) ? in.readString() : null,
+                    has(m, 4) ? in.readString() : null);
+        }
+        UserSnapshot.Goal goal = null;
+        if (has(mask, 4)) {
+            long m = in.readVarLong();
+            goal = new UserSnapshot.Goal(
+                    has(m, 0) ? in.readString() : null,
+                    has(m, 1) ? in.readDecimal() : null,
+                    has(m, 2) ? in.readDateTime() : null,
+                    has(m, 3) ? in.readDecimal() : null);
+        }
+        return new UserSnapshot(userId, userName, profile, preference, goal);
+    }
+
+    // ---------------------------------------------------------------- 基本类型
+
+    /**
+     * 字段存在位图: 第 i 位为 1 表示第 i 个字段非 null
+     */
+    private static long presence(Object... fields) {
+        long mask = 0;
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] != null) {
+                mask |= 1L << i;
+            }
+        }
+        return mask;
+    }
+
+    private static boolean has(long mask, int field) {
+        return (mask & (1L << field)) != 0;
+    }
+
+    /**
+     * 写入的字段为 null 时什么都不写 (是否为 null 已经记在存在位图里)
+     */
+    private static final class Writer {
+        private byte[] buf = new byte[128];
+        private int pos;
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        void writeZigZag(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeNumber(Number value) {
+            if (value != null) {
+                writeZigZag(value.longValue());
+            }
+        }
+
+        void writeBoolean(Boolean value) {
+            if (value != null) {
+                writeByte(value ? 1 : 0);
+            }
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            writeBytes(bytes);
+        }
+
+        void writeDecimal(BigDecimal value) {
+            if (value == null) {
+                return;
+            }
+            writeZigZag(value.scale());
+            BigInteger unscaled = value.unscaledValue();
+            if (unscaled.bitLength() < 64) {
+                writeByte(0);
+                writeZigZag(unscaled.longValue());
+            } else {
+                byte[] bytes = unscaled.toByteArray();
+                writeByte(1);
+                writeVarLong(bytes.length);
+                writeBytes(bytes);
+            }
+        }
+
+        void writeDateTime(LocalDateTime value) {
+            if (value == null) {
+                return;
+            }
+            writeZigZag(value.toEpochSecond(ZoneOffset.UTC));
+            writeVarLong(value.getNano());
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void ensure(int extra) {
+            if (pos + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+            }
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        Reader(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        int readByte() {
+            if (pos >= buf.length) {
+                throw new IllegalStateException("数据被截断");
+            }
+            return buf[pos++];
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("varint 过长");
+        }
+
+        long readZigZag() {
+            long raw = readVarLong();
+            return (raw >>> 1) ^ -(raw & 1);
+        }
+
+        byte[] readBytes(int length) {
+            if (length < 0 || pos + length > buf.length) {
+                throw new IllegalStateException("数据被截断");
+            }
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + length);
+            pos += length;
+            return bytes;
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            if (length < 0 || pos + length > buf.length) {
+                throw new IllegalStateException("数据被截断");
+            }
+            String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+        }
+
+        BigDecimal readDecimal() {
+            int scale = (int) readZigZag();
+            if (readByte() == 0) {
+                return BigDecimal.valueOf(readZigZag(), scale);
+            }
+            return new BigDecimal(new BigInteger(readBytes((int) readVarLong())), scale);
+        }
+
+        LocalDateTime readDateTime() {
+            long seconds = readZigZag();
+            return LocalDateTime.ofEpochSecond(seconds, (int) readVarLong(), ZoneOffset.UTC);
+        }
+    }
+}
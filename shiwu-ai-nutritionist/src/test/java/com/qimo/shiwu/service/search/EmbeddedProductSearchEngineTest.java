@@ -0,0 +1,170 @@
+package com.qimo.shiwu.service.search;
+
+import com.qimo.shiwu.data.es.ProductDocument;
+import com.qimo.shiwu.dto.SearchCursorPage;
+import com.qimo.shiwu.dto.SkuSnapshot;
+import com.qimo.shiwu.service.ProductCacheService;
+import com.qimo.shiwu.service.ProductSearchService;
+import com.qimo.shiwu.service.SearchResultCache;
+import com.qimo.shiwu.service.rank.RerankEngine;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 进程内召回引擎，以及 PRIMARY 模式下的 ProductSearchService (不需要 ES / MySQL / Redis)
+ */
+class EmbeddedProductSearchEngineTest {
+
+    private static final BigDecimal MIN = BigDecimal.ZERO;
+    private static final BigDecimal MAX = new BigDecimal("999999");
+
+    private final EmbeddedProductSearchEngine engine = new EmbeddedProductSearchEngine();
+
+    @BeforeEach
+    void loadDocuments() {
+        engine.load(List.of(
+                document(1L, "澳洲谷饲牛腱子", "低脂高蛋白，适合卤制", "59.90", "高蛋白", "低脂"),
+                document(2L, "雪花牛排", "谷饲牛肉，适合煎制", "129.00", "高蛋白"),
+                document(3L, "杭椒", "新鲜杭椒，微辣", "6.50", "蔬菜"),
+                document(4L, "鸡胸肉", "低脂高蛋白", "19.90", "高蛋白", "低脂"),
+                document(5L, "牛肉丸", "手打牛肉丸", "35.00"),
+                document(6L, "牛奶", "全脂牛奶 1L", "12.00")));
+    }
+
+    @Test
+    void matchesBigramsAndSingleCharacters() {
+        assertEquals(List.of(1L), skuIds(engine.searchProducts("牛腱", List.of(), 0, MIN, MAX, PageRequest.of(0, 10))));
+        assertEquals(List.of(3L), skuIds(engine.searchProducts("杭椒", List.of(), 0, MIN, MAX, PageRequest.of(0, 10))));
+        assertEquals(4, engine.searchProducts("牛", List.of(), 0, MIN, MAX, PageRequest.of(0, 10)).getTotalElements());
+        assertTrue(engine.searchProducts("羊肉", List.of(), 0, MIN, MAX, PageRequest.of(0, 10)).isEmpty());
+    }
+
+    @Test
+    void filtersByAllTagsAndPriceRange() {
+        List<String> tags = List.of("高蛋白", "低脂");
+        assertEquals(List.of(1L, 4L), sorted(skuIds(engine.searchProducts("低脂高蛋白", tags, tags.size(), MIN, MAX, PageRequest.of(0, 10)))));
+        assertEquals(List.of(4L), skuIds(engine.searchProducts("低脂高蛋白", tags, tags.size(), MIN, new BigDecimal("20"), PageRequest.of(0, 10))));
+        assertTrue(engine.searchProducts("牛", List.of("蔬菜"), 1, MIN, MAX, PageRequest.of(0, 10)).isEmpty());
+    }
+
+    @Test
+    void recallAfterWalksTheSameOrderAsPaging() {
+        List<Long> expected = skuIds(engine.searchProducts("牛", List.of(), 0, MIN, MAX, PageRequest.of(0, 10)));
+        List<Long> walked = new ArrayList<>();
+        List<Object> searchAfter = null;
+        while (true) {
+            RecallSlice slice = engine.recallAfter("牛", List.of(), MIN, MAX, searchAfter, 2);
+            if (slice.skuIds().isEmpty()) {
+                break;
+            }
+            assertEquals(4, slice.totalHits());
+            walked.addAll(slice.skuIds());
+            searchAfter = slice.lastSortValues();
+        }
+        assertEquals(expected, walked);
+    }
+
+    @Test
+    void equalScoresAreOrderedBySkuIdWhateverTheLoadOrder() {
+        engine.load(List.of(
+                document(30L, "燕麦", "燕麦", "9.90"),
+                document(10L, "燕麦", "燕麦", "9.90"),
+                document(20L, "燕麦", "燕麦", "9.90")));
+        assertEquals(List.of(10L, 20L, 30L), skuIds(engine.searchProducts("燕麦", List.of(), 0, MIN, MAX, PageRequest.of(0, 10))));
+        RecallSlice first = engine.recallAfter("燕麦", List.of(), MIN, MAX, null, 1);
+        assertEquals(List.of(20L, 30L), engine.recallAfter("燕麦", List.of(), MIN, MAX, first.lastSortValues(), 5).skuIds());
+    }
+
+    @Test
+    void searchServiceRunsOnEmbeddedEngineInPrimaryMode() {
+        ProductSearchService service = primaryModeService(2);
+
+        Page<SkuSnapshot> first = service.searchProducts("牛", List.of(), null, null, PageRequest.of(0, 2));
+        Page<SkuSnapshot> second = service.searchProducts("牛", List.of(), null, null, PageRequest.of(1, 2));
+        Page<SkuSnapshot> beyondWindow = service.searchProducts("牛", List.of(), null, null, PageRequest.of(2, 2));
+        assertEquals(4, first.getTotalElements());
+        List<Long> paged = new ArrayList<>();
+        for (Page<SkuSnapshot> page : List.of(first, second, beyondWindow)) {
+            page.forEach(sku -> paged.add(sku.skuId()));
+        }
+        assertEquals(skuIds(engine.searchProducts("牛", List.of(), 0, MIN, MAX, PageRequest.of(0, 10))), paged);
+
+        List<Long> scrolled = new ArrayList<>();
+        String cursor = null;
+        do {
+            SearchCursorPage page = service.searchProductsAfter("牛", List.of(), null, null, null, cursor, 2);
+            page.getItems().forEach(sku -> scrolled.add(sku.skuId()));
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        assertEquals(paged, scrolled);
+        assertNull(service.searchProductsAfter("杭椒", List.of(), null, null, null, null, 2).getNextCursor());
+    }
+
+    /**
+     * PRIMARY 模式的搜索服务: 回填直接按 skuId 造快照，精排保持召回顺序，召回缓存总是未命中
+     */
+    private ProductSearchService primaryModeService(int rankWindow) {
+        ProductCacheService cacheService = mock(ProductCacheService.class);
+        when(cacheService.getSkusByIds(anyList())).thenAnswer(invocation -> {
+            List<Long> ids = invocation.getArgument(0);
+            return ids.stream().map(EmbeddedProductSearchEngineTest::snapshot).toList();
+        });
+        RerankEngine rerankEngine = mock(RerankEngine.class);
+        when(rerankEngine.rerank(any(), anyList(), any(), anyInt())).thenAnswer(invocation -> {
+            List<SkuSnapshot> candidates = invocation.getArgument(1);
+            int topK = invocation.getArgument(3);
+            return new ArrayList<>(candidates.subList(0, Math.min(topK, candidates.size())));
+        });
+
+        ProductSearchService service = new ProductSearchService();
+        ReflectionTestUtils.setField(service, "recallMode", ProductSearchService.RecallMode.PRIMARY);
+        ReflectionTestUtils.setField(service, "rankWindow", rankWindow);
+        ReflectionTestUtils.setField(service, "embeddedEngine", engine);
+        ReflectionTestUtils.setField(service, "productCacheService", cacheService);
+        ReflectionTestUtils.setField(service, "rerankEngine", rerankEngine);
+        ReflectionTestUtils.setField(service, "searchResultCache", mock(SearchResultCache.class));
+        return service;
+    }
+
+    private static ProductDocument document(Long skuId, String name, String desc, String price, String... tags) {
+        ProductDocument doc = new ProductDocument();
+        doc.setId(String.valueOf(skuId));
+        doc.setSkuId(skuId);
+        doc.setProductId(skuId);
+        doc.setProductName(name);
+        doc.setProductDesc(desc);
+        doc.setSkuPrice(new BigDecimal(price));
+        doc.setInventoryQuantity(100);
+        doc.setTags(List.of(tags));
+        return doc;
+    }
+
+    private static SkuSnapshot snapshot(Long skuId) {
+        return new SkuSnapshot(skuId, "SKU-" + skuId, "1份", BigDecimal.TEN, true, null,
+                skuId, "商品" + skuId, null, null, 100);
+    }
+
+    private static List<Long> skuIds(Page<ProductDocument> page) {
+        return page.getContent().stream().map(ProductDocument::getSkuId).toList();
+    }
+
+    private static List<Long> sorted(List<Long> ids) {
+        return ids.stream().sorted().toList();
+    }
+}
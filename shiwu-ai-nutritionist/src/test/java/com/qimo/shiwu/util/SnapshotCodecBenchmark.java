@@ -0,0 +1,51 @@
+package com.qimo.shiwu.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+/**
+ * SnapshotCodec 与 JSON / JDK 序列化的体积和编解码耗时对比
+ *
+ * [开发者注意]:
+ * 这不是单元测试 (mvn test 不会运行它)，需要时手动执行 main 方法，例如在 IDE 里直接运行，
+ * 或 mvn test-compile 后用 test-classpath 启动。结果只供参考，受机器和 JIT 影响。
+ */
+public class SnapshotCodecBenchmark {
+
+    private static final int WARMUP_ROUNDS = 20_000;
+    private static final int MEASURED_ROUNDS = 100_000;
+
+    public static void main(String[] args) {
+        SnapshotCodec codec = new SnapshotCodec();
+        RedisSerializer<Object> jdk = new JdkSerializationRedisSerializer();
+        ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
+
+        for (Object sample : new Object[]{SnapshotCodecTest.sampleSku(), SnapshotCodecTest.sampleUser()}) {
+            Jackson2JsonRedisSerializer<Object> json = new Jackson2JsonRedisSerializer<>(mapper, sample.getClass().asSubclass(Object.class));
+            String name = sample.getClass().getSimpleName();
+            System.out.println(name + " 体积 (字节): binary=" + codec.serialize(sample).length
+                    + ", json=" + json.serialize(sample).length + ", jdk=" + jdk.serialize(sample).length);
+            System.out.println(name + " 编码+解码 (ns/次): binary=" + roundTripNanos(codec, sample)
+                    + ", json=" + roundTripNanos(json, sample) + ", jdk=" + roundTripNanos(jdk, sample));
+        }
+    }
+
+    private static long roundTripNanos(RedisSerializer<Object> serializer, Object value) {
+        long sink = 0;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sink += serializer.deserialize(serializer.serialize(value)).hashCode();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            sink += serializer.deserialize(serializer.serialize(value)).hashCode();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 42) {
+            System.out.println();
+        }
+        return elapsed / MEASURED_ROUNDS;
+    }
+}
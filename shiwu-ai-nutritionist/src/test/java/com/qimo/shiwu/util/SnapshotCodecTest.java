@@ -0,0 +1,92 @@
+package com.qimo.shiwu.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.qimo.shiwu.dto.SkuSnapshot;
+import com.qimo.shiwu.dto.UserSnapshot;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * SnapshotCodec 的正确性，以及与 JSON / JDK 序列化的体积对比 (不需要 MySQL / Redis)
+ * 耗时对比不放在单元测试里，见 SnapshotCodecBenchmark
+ */
+class SnapshotCodecTest {
+
+    private final SnapshotCodec codec = new SnapshotCodec();
+
+    static SkuSnapshot sampleSku() {
+        return new SkuSnapshot(1830412345678901248L, "SKU-BEEF-500G", "500g", new BigDecimal("59.90"), true,
+                new BigDecimal("250.00"), 1830412345678900000L, "澳洲谷饲牛腱子",
+                "/img/product/beef-shank.jpg", "低脂高蛋白，适合卤制", 128);
+    }
+
+    static UserSnapshot sampleUser() {
+        return new UserSnapshot(1830412399999901248L, "test_user_001",
+                new UserSnapshot.Profile(new BigDecimal("175.0"), new BigDecimal("70.5"), "中度活动",
+                        new BigDecimal("1650.25"), new BigDecimal("2557.89"), LocalDateTime.of(2024, 5, 1, 12, 30, 15, 123_000_000)),
+                new UserSnapshot.Preference("花生,海鲜", "香菜", "清淡", "一日三餐", "只有微波炉"),
+                new UserSnapshot.Goal("减脂", new BigDecimal("65.0"), LocalDateTime.of(2024, 12, 31, 0, 0), new BigDecimal("1800")));
+    }
+
+    @Test
+    void roundTripsSnapshots() {
+        SkuSnapshot sku = sampleSku();
+        UserSnapshot user = sampleUser();
+        assertEquals(sku, codec.deserialize(codec.serialize(sku)));
+        assertEquals(user, codec.deserialize(codec.serialize(user)));
+    }
+
+    @Test
+    void roundTripsNullFieldsAndLargeValues() {
+        SkuSnapshot sparse = new SkuSnapshot(-1L, null, "1kg", new BigDecimal("123456789012345678901234567890.123"),
+                null, null, null, null, null, null, -5);
+        UserSnapshot noDetails = new UserSnapshot(42L, "新用户", null, null, null);
+        assertEquals(sparse, codec.deserialize(codec.serialize(sparse)));
+        assertEquals(noDetails, codec.deserialize(codec.serialize(noDetails)));
+    }
+
+    @Test
+    void otherValuesFallBackToJdkSerialization() {
+        assertEquals("plain string", codec.deserialize(codec.serialize("plain string")));
+    }
+
+    @Test
+    void unknownVersionOrCorruptDataIsTreatedAsMiss() {
+        byte[] bytes = codec.serialize(sampleSku());
+        byte[] newerVersion = bytes.clone();
+        newerVersion[1] = (byte) (SnapshotCodec.SKU_SCHEMA_VERSION + 1);
+        assertNull(codec.deserialize(newerVersion));
+
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length / 2);
+        assertNull(codec.deserialize(truncated));
+
+        // 旧版本直接缓存实体时写入的 JDK 序列化数据 (0xACED 开头)
+        assertNull(codec.deserialize(new JdkSerializationRedisSerializer().serialize("legacy")));
+    }
+
+    @Test
+    void isMuchSmallerThanJsonAndJdk() {
+        RedisSerializer<Object> jdk = new JdkSerializationRedisSerializer();
+        ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
+
+        for (Object sample : new Object[]{sampleSku(), sampleUser()}) {
+            Jackson2JsonRedisSerializer<Object> json = new Jackson2JsonRedisSerializer<>(mapper, sample.getClass().asSubclass(Object.class));
+            int binarySize = codec.serialize(sample).length;
+            assertEquals(sample, json.deserialize(json.serialize(sample)));
+            assertEquals(sample, jdk.deserialize(jdk.serialize(sample)));
+            assertTrue(binarySize * 2 < json.serialize(sample).length, "二进制编码应不到 JSON 的一半");
+            assertTrue(binarySize * 4 < jdk.serialize(sample).length, "二进制编码应不到 JDK 序列化的四分之一");
+        }
+    }
+}